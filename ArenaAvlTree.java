@@ -0,0 +1,935 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * AVL tree storage mode that keeps every node in primitive arrays instead of
+ * one AvlNode object per member. A node is an index (a slot) into the parallel
+ * arrays below, member names are packed into one shared char arena and the
+ * slots released by delete are kept on a free list and reused by insert.
+ * Every slot also keeps the size of its subtree, for the order statistics
+ * queries, and an open-addressing table of slots finds members by name, with
+ * the members of one name chained newest first like in {@link NameIndex}.
+ * The public operations behave exactly like the ones of {@link AvlTree}: they
+ * perform the same rotations and write the same log lines.
+ */
+public class ArenaAvlTree {
+
+    private static final int NIL = -1;
+    private static final byte FREE = -1;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int INITIAL_ARENA_CAPACITY = 256;
+    private static final int EMPTY = 0;
+
+    float[] gmsValues;
+    int[] leftChildren;
+    int[] rightChildren;
+    byte[] heights;
+    int[] sizes;
+    int[] nameOffsets;
+    int[] nameLengths;
+
+    char[] nameArena;
+    int arenaSize;
+    int liveNameChars;
+
+    int root = NIL;
+    int size;
+    int slotCount;
+    int freeHead = NIL;
+
+    Writer myWriter;
+
+    private int[] rankQueue = new int[INITIAL_CAPACITY];
+
+    /** Spread name hash per table entry, or EMPTY, and the slot holding the name. */
+    private int[] indexHashes = new int[INITIAL_CAPACITY];
+    private int[] indexSlots = new int[INITIAL_CAPACITY];
+    private int indexSize;
+    /** Neighbours of a slot among the slots of the same name, or NIL. */
+    private int[] newerSameNames;
+    private int[] olderSameNames;
+
+    public ArenaAvlTree(String outputName) throws IOException {
+        this(new FileWriter(outputName));
+    }
+
+    /**
+     * Creates an empty arena tree that logs its operations to the given writer.
+     *
+     * @param writer The writer that receives the operation log.
+     */
+    public ArenaAvlTree(Writer writer) {
+        this.myWriter = writer;
+        gmsValues = new float[INITIAL_CAPACITY];
+        leftChildren = new int[INITIAL_CAPACITY];
+        rightChildren = new int[INITIAL_CAPACITY];
+        heights = new byte[INITIAL_CAPACITY];
+        sizes = new int[INITIAL_CAPACITY];
+        nameOffsets = new int[INITIAL_CAPACITY];
+        nameLengths = new int[INITIAL_CAPACITY];
+        newerSameNames = new int[INITIAL_CAPACITY];
+        olderSameNames = new int[INITIAL_CAPACITY];
+        nameArena = new char[INITIAL_ARENA_CAPACITY];
+    }
+
+    public boolean isEmpty() {
+        return root == NIL;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Takes a slot from the free list, or a new one at the end of the arrays, and
+     * stores the given member in it.
+     *
+     * @param name     The name of the member.
+     * @param gmsValue The grams value of the member.
+     * @return The slot of the new leaf node.
+     */
+    private int allocate(String name, float gmsValue) {
+        int slot;
+        if (freeHead != NIL) {
+            slot = freeHead;
+            freeHead = leftChildren[slot];
+        } else {
+            if (slotCount == gmsValues.length) {
+                growSlots();
+            }
+            slot = slotCount++;
+            heights[slot] = FREE;
+        }
+        storeName(slot, name);
+        gmsValues[slot] = gmsValue;
+        leftChildren[slot] = NIL;
+        rightChildren[slot] = NIL;
+        heights[slot] = 0;
+        sizes[slot] = 1;
+        size++;
+        indexPut(slot);
+        return slot;
+    }
+
+    /**
+     * Returns a slot to the free list. The free list is threaded through the left
+     * child array.
+     *
+     * @param slot The slot of the node removed from the tree.
+     */
+    private void release(int slot) {
+        liveNameChars -= nameLengths[slot];
+        heights[slot] = FREE;
+        leftChildren[slot] = freeHead;
+        rightChildren[slot] = NIL;
+        freeHead = slot;
+        size--;
+    }
+
+    private void growSlots() {
+        int capacity = gmsValues.length * 2;
+        gmsValues = Arrays.copyOf(gmsValues, capacity);
+        leftChildren = Arrays.copyOf(leftChildren, capacity);
+        rightChildren = Arrays.copyOf(rightChildren, capacity);
+        heights = Arrays.copyOf(heights, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+        nameLengths = Arrays.copyOf(nameLengths, capacity);
+        newerSameNames = Arrays.copyOf(newerSameNames, capacity);
+        olderSameNames = Arrays.copyOf(olderSameNames, capacity);
+    }
+
+    /**
+     * Appends a name to the arena. When the arena is full it is compacted if at
+     * least half of it belongs to removed members, and doubled otherwise.
+     *
+     * @param slot The slot that owns the name.
+     * @param name The name to store.
+     */
+    private void storeName(int slot, String name) {
+        int length = name.length();
+        if (arenaSize + length > nameArena.length) {
+            if (arenaSize - liveNameChars >= arenaSize / 2) {
+                compactNames(length);
+            } else {
+                nameArena = Arrays.copyOf(nameArena, Math.max(nameArena.length * 2, arenaSize + length));
+            }
+        }
+        name.getChars(0, length, nameArena, arenaSize);
+        nameOffsets[slot] = arenaSize;
+        nameLengths[slot] = length;
+        arenaSize += length;
+        liveNameChars += length;
+    }
+
+    /**
+     * Copies the names of all live slots into a new arena, dropping the names of
+     * removed members.
+     *
+     * @param extra The number of chars that must fit after the live names.
+     */
+    private void compactNames(int extra) {
+        char[] compacted = new char[Math.max(INITIAL_ARENA_CAPACITY, (liveNameChars + extra) * 2)];
+        int position = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (heights[slot] == FREE) {
+                continue;
+            }
+            System.arraycopy(nameArena, nameOffsets[slot], compacted, position, nameLengths[slot]);
+            nameOffsets[slot] = position;
+            position += nameLengths[slot];
+        }
+        nameArena = compacted;
+        arenaSize = position;
+    }
+
+    /**
+     * Spreads the bits of a String hash code and reserves EMPTY for empty
+     * entries of the name table.
+     */
+    private static int spread(int hashCode) {
+        int h = hashCode * 0x9E3779B9;
+        h ^= h >>> 16;
+        return h == EMPTY ? 1 : h;
+    }
+
+    /**
+     * Returns the spread hash of the name held by a slot, computed on the arena
+     * like {@link String#hashCode()}.
+     */
+    private int nameHash(int slot) {
+        int h = 0;
+        for (int i = nameOffsets[slot], end = i + nameLengths[slot]; i < end; i++) {
+            h = 31 * h + nameArena[i];
+        }
+        return spread(h);
+    }
+
+    private boolean nameEquals(int slot, String name) {
+        if (nameLengths[slot] != name.length()) {
+            return false;
+        }
+        int offset = nameOffsets[slot];
+        for (int i = 0; i < name.length(); i++) {
+            if (nameArena[offset + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the slot holding the member with the given name, or NIL. If
+     * several members share a name, this is the newest of them, like in
+     * {@link NameIndex}.
+     */
+    private int findByName(String name) {
+        int mask = indexHashes.length - 1;
+        int h = spread(name.hashCode());
+        for (int i = h & mask; indexHashes[i] != EMPTY; i = (i + 1) & mask) {
+            if (indexHashes[i] == h && nameEquals(indexSlots[i], name)) {
+                return indexSlots[i];
+            }
+        }
+        return NIL;
+    }
+
+    /**
+     * Indexes a slot as the newest member of its name, in front of the slots
+     * already indexed under that name.
+     */
+    private void indexPut(int slot) {
+        if ((indexSize + 1) * 4L > indexHashes.length * 3L) {
+            resizeIndex(indexHashes.length * 2);
+        }
+        newerSameNames[slot] = NIL;
+        int mask = indexHashes.length - 1;
+        int h = nameHash(slot);
+        int i = h & mask;
+        for (; indexHashes[i] != EMPTY; i = (i + 1) & mask) {
+            int other = indexSlots[i];
+            if (indexHashes[i] == h && nameLengths[other] == nameLengths[slot]
+                    && Arrays.equals(nameArena, nameOffsets[other], nameOffsets[other] + nameLengths[other],
+                            nameArena, nameOffsets[slot], nameOffsets[slot] + nameLengths[slot])) {
+                olderSameNames[slot] = other;
+                newerSameNames[other] = slot;
+                indexSlots[i] = slot;
+                return;
+            }
+        }
+        olderSameNames[slot] = NIL;
+        indexHashes[i] = h;
+        indexSlots[i] = slot;
+        indexSize++;
+    }
+
+    /**
+     * Removes a slot from the index. The next older slot of its name, if any,
+     * becomes the one the name refers to. Nothing happens if the slot is not
+     * indexed. Must be called while the slot still holds the name.
+     */
+    private void indexRemove(int slot) {
+        int older = olderSameNames[slot];
+        int newer = newerSameNames[slot];
+        if (newer != NIL) {
+            olderSameNames[newer] = older;
+            if (older != NIL) {
+                newerSameNames[older] = newer;
+            }
+        } else {
+            int i = indexEntry(slot);
+            if (i < 0) {
+                return;
+            }
+            if (older != NIL) {
+                newerSameNames[older] = NIL;
+                indexSlots[i] = older;
+            } else {
+                deleteIndexEntry(i);
+            }
+        }
+        newerSameNames[slot] = NIL;
+        olderSameNames[slot] = NIL;
+    }
+
+    /**
+     * Puts a slot in the place of another one in the chain of their name, for a
+     * slot that takes over the member of the other one. Must be called while
+     * old still holds the name.
+     */
+    private void indexReplace(int old, int slot) {
+        int older = olderSameNames[old];
+        int newer = newerSameNames[old];
+        newerSameNames[slot] = newer;
+        olderSameNames[slot] = older;
+        if (older != NIL) {
+            newerSameNames[older] = slot;
+        }
+        if (newer != NIL) {
+            olderSameNames[newer] = slot;
+        } else {
+            int i = indexEntry(old);
+            if (i >= 0) {
+                indexSlots[i] = slot;
+            }
+        }
+        newerSameNames[old] = NIL;
+        olderSameNames[old] = NIL;
+    }
+
+    /** Returns the table entry that refers to the slot, or -1. */
+    private int indexEntry(int slot) {
+        int mask = indexHashes.length - 1;
+        for (int i = nameHash(slot) & mask; indexHashes[i] != EMPTY; i = (i + 1) & mask) {
+            if (indexSlots[i] == slot) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Empties a table entry and moves back every following entry of the probe
+     * run that would otherwise become unreachable.
+     */
+    private void deleteIndexEntry(int hole) {
+        int mask = indexHashes.length - 1;
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (indexHashes[i] == EMPTY) {
+                break;
+            }
+            int home = indexHashes[i] & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                indexHashes[hole] = indexHashes[i];
+                indexSlots[hole] = indexSlots[i];
+                hole = i;
+            }
+        }
+        indexHashes[hole] = EMPTY;
+        indexSize--;
+    }
+
+    private void resizeIndex(int capacity) {
+        int[] oldHashes = indexHashes;
+        int[] oldSlots = indexSlots;
+        indexHashes = new int[capacity];
+        indexSlots = new int[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldHashes.length; j++) {
+            if (oldHashes[j] == EMPTY) {
+                continue;
+            }
+            int i = oldHashes[j] & mask;
+            while (indexHashes[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            indexHashes[i] = oldHashes[j];
+            indexSlots[i] = oldSlots[j];
+        }
+    }
+
+    private void writeName(int slot) throws IOException {
+        myWriter.write(nameArena, nameOffsets[slot], nameLengths[slot]);
+    }
+
+    /**
+     * Writes the name and grams value of a slot as one member of a list line,
+     * like {@link TextEventSink#member(String, float)}.
+     */
+    private void writeMember(int slot) throws IOException {
+        myWriter.write(" ");
+        writeName(slot);
+        myWriter.write(" ");
+        myWriter.write(TextEventSink.format(gmsValues[slot]));
+    }
+
+    /**
+     * Writes the result line of an analysis that finds one member.
+     */
+    private void writeResult(String label, int slot) throws IOException {
+        myWriter.write(label);
+        writeMember(slot);
+        myWriter.write("\n");
+    }
+
+    private int nodeHeight(int node) {
+        if (node == NIL) {
+            return -1;
+        }
+        return heights[node];
+    }
+
+    private int nodeSize(int node) {
+        return node == NIL ? 0 : sizes[node];
+    }
+
+    /**
+     * Recomputes the height and the subtree size of a node from its children.
+     */
+    private void updateHeight(int node) {
+        sizes[node] = nodeSize(leftChildren[node]) + nodeSize(rightChildren[node]) + 1;
+        heights[node] = (byte) (Math.max(nodeHeight(leftChildren[node]), nodeHeight(rightChildren[node])) + 1);
+    }
+
+    private int findMinNode(int node) {
+        while (leftChildren[node] != NIL) {
+            node = leftChildren[node];
+        }
+        return node;
+    }
+
+    public void insert(String name, float gmsValue) throws IOException {
+        root = insert(name, gmsValue, root);
+    }
+
+    /**
+     * Inserts a new member into the subtree rooted at the given slot, logging a
+     * welcome line for every member on the way down, exactly like
+     * {@link AvlTree#insert(String, float)}.
+     *
+     * @param name     The name of the member to insert.
+     * @param gmsValue The grams value of the member to insert.
+     * @param node     The root slot of the subtree.
+     * @return The root slot of the subtree after insertion and balancing.
+     * @throws IOException if writing the log fails.
+     */
+    private int insert(String name, float gmsValue, int node) throws IOException {
+        if (node == NIL) {
+            return allocate(name, gmsValue);
+        }
+        // The recursive call may grow the arrays, so the child is stored after it
+        // returns instead of through an array reference taken before the call.
+        if (gmsValue < gmsValues[node]) {
+            writeName(node);
+            myWriter.write(" welcomed ");
+            myWriter.write(name);
+            myWriter.write("\n");
+            int child = insert(name, gmsValue, leftChildren[node]);
+            leftChildren[node] = child;
+
+            if (nodeHeight(leftChildren[node]) - nodeHeight(rightChildren[node]) > 1) {
+                if (gmsValue < gmsValues[leftChildren[node]]) {
+                    node = srWithLeftChild(node);
+                } else {
+                    node = drWithLeftChild(node);
+                }
+            }
+        } else if (gmsValue > gmsValues[node]) {
+            writeName(node);
+            myWriter.write(" welcomed ");
+            myWriter.write(name);
+            myWriter.write("\n");
+            int child = insert(name, gmsValue, rightChildren[node]);
+            rightChildren[node] = child;
+
+            if (nodeHeight(rightChildren[node]) - nodeHeight(leftChildren[node]) > 1) {
+                if (gmsValue > gmsValues[rightChildren[node]]) {
+                    node = srWithRightChild(node);
+                } else {
+                    node = drWithRightChild(node);
+                }
+            }
+        }
+
+        updateHeight(node);
+        return node;
+    }
+
+    private int srWithLeftChild(int node) {
+        int tempNode = leftChildren[node];
+        leftChildren[node] = rightChildren[tempNode];
+        rightChildren[tempNode] = node;
+        updateHeight(node);
+        updateHeight(tempNode);
+        return tempNode;
+    }
+
+    private int srWithRightChild(int node) {
+        int tempNode = rightChildren[node];
+        rightChildren[node] = leftChildren[tempNode];
+        leftChildren[tempNode] = node;
+        updateHeight(node);
+        updateHeight(tempNode);
+        return tempNode;
+    }
+
+    private int drWithLeftChild(int node) {
+        leftChildren[node] = srWithRightChild(leftChildren[node]);
+        return srWithLeftChild(node);
+    }
+
+    private int drWithRightChild(int node) {
+        rightChildren[node] = srWithLeftChild(rightChildren[node]);
+        return srWithRightChild(node);
+    }
+
+    private int calculateBalance(int node) {
+        if (node == NIL) {
+            return 0;
+        }
+        return nodeHeight(leftChildren[node]) - nodeHeight(rightChildren[node]);
+    }
+
+    public void delete(String name, float gmsValue) throws IOException {
+        root = delete(root, gmsValue, true);
+    }
+
+    /**
+     * Deletes the member with the given name exactly like
+     * {@link #delete(String, float)} with its grams value. Nothing happens if
+     * no member has this name.
+     *
+     * @param name The name of the member to delete.
+     * @throws IOException if writing the log fails.
+     */
+    public void deleteByName(String name) throws IOException {
+        int slot = findByName(name);
+        if (slot != NIL) {
+            delete(name, gmsValues[slot]);
+        }
+    }
+
+    /**
+     * Deletes the member with the given grams value from the subtree rooted at
+     * the given slot and rebalances it, exactly like
+     * {@link AvlTree#delete(String, float)}. A member with two children takes
+     * over the name and grams value of its successor, whose slot is then
+     * released.
+     *
+     * @param node     The root slot of the subtree.
+     * @param gmsValue The grams value of the member to delete.
+     * @param first    A flag indicating if the removal has to be logged.
+     * @return The root slot of the subtree after deletion and balancing.
+     * @throws IOException if writing the log fails.
+     */
+    private int delete(int node, float gmsValue, boolean first) throws IOException {
+        if (node == NIL) {
+            return node;
+        }
+
+        if (gmsValue < gmsValues[node]) {
+            leftChildren[node] = delete(leftChildren[node], gmsValue, first);
+        } else if (gmsValue > gmsValues[node]) {
+            rightChildren[node] = delete(rightChildren[node], gmsValue, first);
+        } else {
+            int left = leftChildren[node];
+            int right = rightChildren[node];
+            if (left == NIL || right == NIL) {
+                int replacement = left == NIL ? right : left;
+                if (first) {
+                    writeName(node);
+                    myWriter.write(" left the family, replaced by ");
+                    if (replacement == NIL) {
+                        myWriter.write("nobody");
+                    } else {
+                        writeName(replacement);
+                    }
+                    myWriter.write("\n");
+                }
+                indexRemove(node);
+                release(node);
+                node = replacement;
+            } else {
+                int tempNode = findMinNode(right);
+                if (first) {
+                    writeName(node);
+                    myWriter.write(" left the family, replaced by ");
+                    writeName(tempNode);
+                    myWriter.write("\n");
+                    first = false;
+                }
+                // The node takes over the successor's member and its place in the
+                // name index; the successor's slot is released below, no longer indexed.
+                indexRemove(node);
+                indexReplace(tempNode, node);
+                liveNameChars += nameLengths[tempNode] - nameLengths[node];
+                nameOffsets[node] = nameOffsets[tempNode];
+                nameLengths[node] = nameLengths[tempNode];
+                gmsValues[node] = gmsValues[tempNode];
+                rightChildren[node] = delete(right, gmsValues[tempNode], first);
+            }
+        }
+
+        if (node == NIL) {
+            return node;
+        }
+
+        updateHeight(node);
+
+        int balanceNum = calculateBalance(node);
+
+        if (balanceNum > 1 && calculateBalance(leftChildren[node]) >= 0) {
+            return srWithLeftChild(node);
+        }
+
+        if (balanceNum > 1 && calculateBalance(leftChildren[node]) < 0) {
+            leftChildren[node] = srWithRightChild(leftChildren[node]);
+            return srWithLeftChild(node);
+        }
+
+        if (balanceNum < -1 && calculateBalance(rightChildren[node]) <= 0) {
+            return srWithRightChild(node);
+        }
+
+        if (balanceNum < -1 && calculateBalance(rightChildren[node]) > 0) {
+            rightChildren[node] = srWithLeftChild(rightChildren[node]);
+            return srWithRightChild(node);
+        }
+
+        return node;
+    }
+
+    /**
+     * Returns the depth of the member with the given grams value, or -1 if there is
+     * no such member.
+     *
+     * @param name     The name of the member (not used for the lookup).
+     * @param gmsValue The grams value of the member.
+     * @return The depth of the member, or -1 if it is not in the tree.
+     */
+    public int searchNodeRank(String name, float gmsValue) {
+        int current = root;
+        int i = 0;
+        while (current != NIL) {
+            if (gmsValue < gmsValues[current]) {
+                current = leftChildren[current];
+            } else if (gmsValue > gmsValues[current]) {
+                current = rightChildren[current];
+            } else {
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of members that are lighter than the given grams value,
+     * like {@link AvlTree#rankOf(float)}.
+     */
+    public int rankOf(float gmsValue) {
+        int current = root;
+        int rank = 0;
+        while (current != NIL) {
+            if (gmsValue <= gmsValues[current]) {
+                current = leftChildren[current];
+            } else {
+                rank += nodeSize(leftChildren[current]) + 1;
+                current = rightChildren[current];
+            }
+        }
+        return rank;
+    }
+
+    private int countAtMost(float gmsValue) {
+        int current = root;
+        int count = 0;
+        while (current != NIL) {
+            if (gmsValue < gmsValues[current]) {
+                current = leftChildren[current];
+            } else {
+                count += nodeSize(leftChildren[current]) + 1;
+                current = rightChildren[current];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the slot of the member with exactly k lighter members, or NIL if
+     * k is out of range, like {@link AvlTree#select(int)}.
+     */
+    private int select(int k) {
+        if (k < 0 || k >= size) {
+            return NIL;
+        }
+        int current = root;
+        while (true) {
+            int leftSize = nodeSize(leftChildren[current]);
+            if (k < leftSize) {
+                current = leftChildren[current];
+            } else if (k > leftSize) {
+                k -= leftSize + 1;
+                current = rightChildren[current];
+            } else {
+                return current;
+            }
+        }
+    }
+
+    private int floor(float gmsValue) {
+        int current = root;
+        int floor = NIL;
+        while (current != NIL) {
+            if (gmsValue < gmsValues[current]) {
+                current = leftChildren[current];
+            } else if (gmsValue > gmsValues[current]) {
+                floor = current;
+                current = rightChildren[current];
+            } else {
+                return current;
+            }
+        }
+        return floor;
+    }
+
+    private int ceiling(float gmsValue) {
+        int current = root;
+        int ceiling = NIL;
+        while (current != NIL) {
+            if (gmsValue < gmsValues[current]) {
+                ceiling = current;
+                current = leftChildren[current];
+            } else if (gmsValue > gmsValues[current]) {
+                current = rightChildren[current];
+            } else {
+                return current;
+            }
+        }
+        return ceiling;
+    }
+
+    public void intel_rank_of(float gmsValue) throws IOException {
+        myWriter.write("Rank Of Analysis Result: " + rankOf(gmsValue) + "\n");
+    }
+
+    /**
+     * Writes the k-th heaviest member, counting from 1, like
+     * {@link AvlTree#intel_select(int)}. Nothing is written if there is no such
+     * member.
+     */
+    public void intel_select(int k) throws IOException {
+        int slot = select(size - k);
+        if (slot != NIL) {
+            writeResult("Select Analysis Result:", slot);
+        }
+    }
+
+    public void intel_count(float lo, float hi) throws IOException {
+        int count = lo > hi ? 0 : countAtMost(hi) - rankOf(lo);
+        myWriter.write("Count Analysis Result: " + count + "\n");
+    }
+
+    public void intel_floor(float gmsValue) throws IOException {
+        int slot = floor(gmsValue);
+        if (slot != NIL) {
+            writeResult("Floor Analysis Result:", slot);
+        }
+    }
+
+    public void intel_ceiling(float gmsValue) throws IOException {
+        int slot = ceiling(gmsValue);
+        if (slot != NIL) {
+            writeResult("Ceiling Analysis Result:", slot);
+        }
+    }
+
+    /**
+     * Writes the members whose grams value lies in [lo, hi] in ascending order,
+     * like {@link AvlTree#intel_range(float, float)}. Without parent links the
+     * range is walked in order from the root, skipping the subtrees outside it,
+     * which also takes O(log n + k) time for k members.
+     */
+    public void intel_range(float lo, float hi) throws IOException {
+        myWriter.write("Range Analysis Result:");
+        if (lo <= hi) {
+            writeRange(root, lo, hi);
+        }
+        myWriter.write("\n");
+    }
+
+    private void writeRange(int node, float lo, float hi) throws IOException {
+        if (node == NIL) {
+            return;
+        }
+        if (lo < gmsValues[node]) {
+            writeRange(leftChildren[node], lo, hi);
+        }
+        if (lo <= gmsValues[node] && gmsValues[node] <= hi) {
+            writeMember(node);
+        }
+        if (gmsValues[node] < hi) {
+            writeRange(rightChildren[node], lo, hi);
+        }
+    }
+
+    /**
+     * Writes the k members closest to the given grams value in order of
+     * increasing distance, the lighter one first at equal distances, like
+     * {@link AvlTree#intel_nearest(float, int)}. Without parent links the walk
+     * outwards moves by position, so the k members take O(k log n) time.
+     */
+    public void intel_nearest(float gmsValue, int k) throws IOException {
+        myWriter.write("Nearest Analysis Result:");
+        int lower = countAtMost(gmsValue) - 1;
+        int upper = lower + 1;
+        int lowerSlot = select(lower);
+        int upperSlot = select(upper);
+        for (int remaining = k; remaining > 0 && (lowerSlot != NIL || upperSlot != NIL); remaining--) {
+            if (upperSlot == NIL || (lowerSlot != NIL && (double) gmsValue - gmsValues[lowerSlot]
+                    <= (double) gmsValues[upperSlot] - gmsValue)) {
+                writeMember(lowerSlot);
+                lowerSlot = select(--lower);
+            } else {
+                writeMember(upperSlot);
+                upperSlot = select(++upper);
+            }
+        }
+        myWriter.write("\n");
+    }
+
+    public int intel_divide() throws IOException {
+        long res = intel_divide(root);
+        int result = Math.max((int) (res >>> 32), (int) res);
+        myWriter.write("Division Analysis Result: " + result + "\n");
+        return result;
+    }
+
+    /**
+     * Computes the division analysis values of a subtree, packed into one long so
+     * that no array is allocated per node.
+     *
+     * @param node The root slot of the subtree.
+     * @return The value with the root included in the upper 32 bits and the value
+     *         without the root in the lower 32 bits.
+     */
+    private long intel_divide(int node) {
+        if (node == NIL) {
+            return 0;
+        }
+        long left = intel_divide(leftChildren[node]);
+        long right = intel_divide(rightChildren[node]);
+        int leftWith = (int) (left >>> 32);
+        int leftWithout = (int) left;
+        int rightWith = (int) (right >>> 32);
+        int rightWithout = (int) right;
+        int withRoot = leftWithout + rightWithout + 1;
+        int withoutRoot = Math.max(leftWith, leftWithout) + Math.max(rightWith, rightWithout);
+        return ((long) withRoot << 32) | (withoutRoot & 0xFFFFFFFFL);
+    }
+
+    public void intel_targeter(String name1, String name2, float gmsValue1, float gmsValue2) throws IOException {
+        int current = root;
+        while (true) {
+            if (gmsValue1 < gmsValues[current] && gmsValue2 < gmsValues[current]) {
+                current = leftChildren[current];
+            } else if (gmsValue1 > gmsValues[current] && gmsValue2 > gmsValues[current]) {
+                current = rightChildren[current];
+            } else {
+                myWriter.write("Target Analysis Result: ");
+                writeName(current);
+                myWriter.write(" " + String.format("%.3f", gmsValues[current]).replace(",", ".") + "\n");
+                break;
+            }
+        }
+    }
+
+    /**
+     * Performs the rank analysis for the member with the given name. Nothing is
+     * written if no member has this name.
+     *
+     * @param name The name of the member.
+     * @throws IOException if writing the log fails.
+     */
+    public void intel_rank(String name) throws IOException {
+        int slot = findByName(name);
+        if (slot != NIL) {
+            intel_rank(name, gmsValues[slot]);
+        }
+    }
+
+    /**
+     * Writes all members at the depth of the member with the given grams value,
+     * from left to right, exactly like {@link AvlTree#intel_rank(String, float)}.
+     * The breadth-first search runs over a reused int queue and only enqueues
+     * the subtrees tall enough to reach the depth, so it visits the members of
+     * the answer and their ancestors rather than every member above the depth.
+     *
+     * @param name     The name of the member (not used for the lookup).
+     * @param gmsValue The grams value of the member.
+     * @throws IOException if writing the log fails.
+     */
+    public void intel_rank(String name, float gmsValue) throws IOException {
+        int desRank = searchNodeRank(name, gmsValue);
+        if (desRank < 0) {
+            return;
+        }
+        if (rankQueue.length < size) {
+            rankQueue = new int[Math.max(size, rankQueue.length * 2)];
+        }
+
+        int head = 0;
+        int tail = 0;
+        rankQueue[tail++] = root;
+        for (int rank = 0; rank < desRank; rank++) {
+            // A child below this level reaches the depth only if it is at least this tall.
+            int levelsLeft = desRank - rank - 1;
+            int levelEnd = tail;
+            while (head < levelEnd) {
+                int current = rankQueue[head++];
+                int left = leftChildren[current];
+                if (left != NIL && heights[left] >= levelsLeft) {
+                    rankQueue[tail++] = left;
+                }
+                int right = rightChildren[current];
+                if (right != NIL && heights[right] >= levelsLeft) {
+                    rankQueue[tail++] = right;
+                }
+            }
+        }
+
+        myWriter.write("Rank Analysis Result:");
+        while (head < tail) {
+            int current = rankQueue[head++];
+            myWriter.write(" ");
+            writeName(current);
+            myWriter.write(" ");
+            myWriter.write(String.format("%.3f", gmsValues[current]).replace(",", "."));
+        }
+        myWriter.write("\n");
+    }
+}
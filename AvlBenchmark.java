@@ -0,0 +1,1086 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Micro benchmark for the AVL tree operations. Run with
+ *
+ * java AvlBenchmark [ops|replay|target|freeze|traverse|cache|balance|setops|checkpoint|journal|divide|bulk|concurrent|all] [size] [input file]
+ *
+ * The trees log to a null writer so that only the tree work is measured,
+ * except for the file sink of the replay benchmark. Every result is printed as
+ * one JSON object per line, so runs can be stored and compared by scripts.
+ *
+ * ops measures every tree operation at the sizes 10^3, 10^4, ... up to size,
+ * for sequential, random and adversarial insertion orders. Sizes of 10^7 need
+ * a larger heap, e.g. java -Xmx4g AvlBenchmark ops 10000000.
+ * replay parses a command file like Main does, with each event sink: the
+ * no-op sink, the text sink on a null writer and on a FileWriter, and the
+ * binary sink on a file. Without an input file, a random file of size
+ * commands (20000 by default) is generated.
+ * traverse sums the grams values of all members with the cursor, the iterator,
+ * a sequential and a parallel stream, and a parallel stream over a copied list.
+ * cache replays a query-heavy command file with and without a query result
+ * cache.
+ * balance compares the balance policies; run it with -Davl.metrics=true to
+ * also count the rotations per operation.
+ */
+public class AvlBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURE_ROUNDS = 10;
+
+    private static final int DEFAULT_REPLAY_COMMANDS = 20_000;
+    private static final String[] DISTRIBUTIONS = { "sequential", "random", "adversarial" };
+    /** Number of random members the queries cycle through. Must be a power of two. */
+    private static final int PROBES = 1 << 16;
+    private static final long MIN_ROUND_NANOS = 20_000_000L;
+    private static final int MAX_CHURN_BATCH = 10_000;
+    private static final int MAX_JOURNAL_COMMANDS = 200_000;
+    private static final int SYNCED_COMMANDS = 2_000;
+    private static final int SHORT_TARGET_RUN = 16;
+    private static final int MAX_CACHE_MEMBERS = 1_000;
+    private static final int CACHE_PHASES = 50;
+    private static final int CACHE_QUERIES_PER_PHASE = 200;
+    private static final int CACHE_HOT_MEMBERS = 64;
+    /** Fewer rounds than the other benchmarks: a replay without the cache takes about a second. */
+    private static final int CACHE_WARMUP_ROUNDS = 2;
+    private static final int CACHE_MEASURE_ROUNDS = 3;
+
+    private static int sink;
+
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+    private static final long THROUGHPUT_MILLIS = 1_000;
+    private static final int WRITE_PERCENT = 5;
+
+    public static void main(String[] args) throws Exception {
+        String benchmark = args.length > 0 ? args[0] : "all";
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        if (benchmark.equals("ops") || benchmark.equals("all")) {
+            for (int n = 1_000; n <= size; n *= 10) {
+                for (String distribution : DISTRIBUTIONS) {
+                    benchmarkOperations(distribution, n);
+                }
+            }
+        }
+        if (benchmark.equals("replay") || benchmark.equals("all")) {
+            int commands = args.length > 1 ? size : DEFAULT_REPLAY_COMMANDS;
+            benchmarkReplay(args.length > 2 ? new File(args[2]) : null, commands);
+        }
+        if (benchmark.equals("target") || benchmark.equals("all")) {
+            benchmarkTargetBatch(size);
+        }
+        if (benchmark.equals("freeze") || benchmark.equals("all")) {
+            for (int n = 10_000; n <= size; n *= 10) {
+                benchmarkFreeze(n);
+            }
+        }
+        if (benchmark.equals("traverse") || benchmark.equals("all")) {
+            benchmarkTraversal(size);
+        }
+        if (benchmark.equals("cache") || benchmark.equals("all")) {
+            benchmarkQueryCache(size);
+        }
+        if (benchmark.equals("balance") || benchmark.equals("all")) {
+            for (BalancePolicy policy : BalancePolicy.values()) {
+                benchmarkBalance(policy, size);
+            }
+        }
+        if (benchmark.equals("setops") || benchmark.equals("all")) {
+            benchmarkSetOperations(size);
+        }
+        if (benchmark.equals("checkpoint") || benchmark.equals("all")) {
+            benchmarkCheckpoint(size);
+        }
+        if (benchmark.equals("journal") || benchmark.equals("all")) {
+            benchmarkJournal(size);
+        }
+        if (benchmark.equals("divide") || benchmark.equals("all")) {
+            benchmarkDivide(size);
+        }
+        if (benchmark.equals("bulk") || benchmark.equals("all")) {
+            benchmarkBulkLoad(size);
+        }
+        if (benchmark.equals("concurrent") || benchmark.equals("all")) {
+            benchmarkConcurrent(size);
+        }
+        System.err.println("(checksum " + sink + ")");
+    }
+
+    /**
+     * One application of an operation under measurement. i selects the probe the
+     * operation works on.
+     */
+    private interface Operation {
+        void run(int i) throws IOException;
+    }
+
+    /**
+     * Returns the grams values 0, 1, ..., n - 1 in the insertion order of a
+     * distribution. sequential inserts them in ascending order and random in a
+     * shuffled order. adversarial alternates between the two ends of the range
+     * (0, n - 1, 1, n - 2, ...), so every insert lands on the outermost path of
+     * one of the two sides.
+     */
+    private static float[] insertionOrder(String distribution, int n, Random random) {
+        float[] values = new float[n];
+        for (int i = 0; i < n; i++) {
+            if (distribution.equals("adversarial")) {
+                values[i] = (i & 1) == 0 ? i / 2 : n - 1 - i / 2;
+            } else {
+                values[i] = i;
+            }
+        }
+        if (distribution.equals("random")) {
+            for (int i = n - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                float value = values[i];
+                values[i] = values[j];
+                values[j] = value;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Measures insert, delete, searchNodeRank, intel_targeter, intel_rank and
+     * intel_divide on a tree of n members built in the order of a distribution.
+     * The queries probe random members of the tree. delete and insert are
+     * measured in pairs that remove a batch of random members and put them back,
+     * so the tree keeps its size.
+     */
+    private static void benchmarkOperations(String distribution, int n) throws IOException {
+        Random random = new Random(42);
+        float[] gmsValues = insertionOrder(distribution, n, random);
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = "M" + i;
+        }
+
+        AvlTree tree = new AvlTree(Writer.nullWriter());
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            tree.insert(names[i], gmsValues[i]);
+        }
+        double build = (double) (System.nanoTime() - start) / n;
+        emitOperation("build", distribution, n, new double[] { build, build });
+
+        int[] probes = new int[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            probes[i] = random.nextInt(n);
+        }
+        benchmarkChurn(tree, distribution, names, gmsValues, random);
+
+        emitOperation("searchNodeRank", distribution, n, measure(i -> {
+            int p = probes[i];
+            sink += tree.searchNodeRank(names[p], gmsValues[p]);
+        }));
+        emitOperation("intel_targeter", distribution, n, measure(i -> {
+            int p = probes[i];
+            int q = probes[(i + 1) & (PROBES - 1)];
+            tree.intel_targeter(names[p], names[q], gmsValues[p], gmsValues[q]);
+        }));
+        emitOperation("intel_rank", distribution, n, measure(i -> {
+            int p = probes[i];
+            tree.intel_rank(names[p], gmsValues[p]);
+        }));
+        emitOperation("intel_divide", distribution, n, measure(i -> sink += tree.intel_divide()));
+    }
+
+    /**
+     * Compares the read queries on a tree of n random members against the same
+     * queries on its {@link FrozenAvlTree} copy, and measures the freeze itself.
+     * Hardware cache miss counters are not available to Java, so the cache
+     * behaviour is estimated by the number of 64 byte blocks a descent to a
+     * member reads: one per visited node in the pointer tree, where every node is
+     * a separate object, against the blocks of the frozen node array.
+     */
+    private static void benchmarkFreeze(int n) throws IOException {
+        Random random = new Random(42);
+        float[] gmsValues = insertionOrder("random", n, random);
+        String[] names = new String[n];
+        AvlTree tree = new AvlTree(Writer.nullWriter());
+        for (int i = 0; i < n; i++) {
+            names[i] = "M" + i;
+            tree.insert(names[i], gmsValues[i]);
+        }
+        int[] probes = new int[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            probes[i] = random.nextInt(n);
+        }
+
+        double[] freeze = { Double.MAX_VALUE, 0 };
+        FrozenAvlTree frozen = null;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            long start = System.nanoTime();
+            frozen = tree.freeze();
+            if (round >= WARMUP_ROUNDS) {
+                record(freeze, (System.nanoTime() - start) / 1e6);
+            }
+        }
+        FrozenAvlTree copy = frozen;
+
+        long pointerBlocks = 0;
+        long frozenBlocks = 0;
+        for (int i = 0; i < PROBES; i++) {
+            float gmsValue = gmsValues[probes[i]];
+            pointerBlocks += tree.searchNodeRank(null, gmsValue) + 1;
+            frozenBlocks += copy.blocksTouched(gmsValue);
+        }
+
+        double[] search = measure(i -> sink += tree.searchNodeRank(null, gmsValues[probes[i]]));
+        double[] frozenSearch = measure(i -> sink += copy.depthOf(gmsValues[probes[i]]));
+        double[] target = measure(i -> tree.intel_targeter(null, null, gmsValues[probes[i]],
+                gmsValues[probes[(i + 1) & (PROBES - 1)]]));
+        double[] frozenTarget = measure(i -> copy.intel_targeter(gmsValues[probes[i]],
+                gmsValues[probes[(i + 1) & (PROBES - 1)]]));
+        double[] rank = measure(i -> tree.intel_rank(names[probes[i]], gmsValues[probes[i]]));
+        double[] frozenRank = measure(i -> copy.intel_rank(names[probes[i]], gmsValues[probes[i]]));
+        // The deepest level is the sparsest one: its answer is small, but a full search reaches it last.
+        int deepest = 0;
+        for (int i = 1; i < n; i++) {
+            if (tree.searchNodeRank(null, gmsValues[i]) > tree.searchNodeRank(null, gmsValues[deepest])) {
+                deepest = i;
+            }
+        }
+        int deep = deepest;
+        double[] deepRank = measure(i -> tree.intel_rank(names[deep], gmsValues[deep]));
+
+        emit("freeze", "size", n, "freezeMs", freeze[0], "pointerBlocksPerDescent", (double) pointerBlocks / PROBES,
+                "frozenBlocksPerDescent", (double) frozenBlocks / PROBES, "searchNs", search[0], "frozenSearchNs",
+                frozenSearch[0], "targetNs", target[0], "frozenTargetNs", frozenTarget[0], "rankNs", rank[0],
+                "frozenRankNs", frozenRank[0], "deepestRankNs", deepRank[0]);
+    }
+
+    /**
+     * Measures a full in-order pass over size random members, summing their
+     * grams values, per traversal method. The list copy is included in the time
+     * of the copying variant, as it would be for a query.
+     */
+    private static void benchmarkTraversal(int size) throws IOException {
+        Random random = new Random(42);
+        float[] gmsValues = insertionOrder("random", size, random);
+        AvlTree tree = new AvlTree(NoOpEventSink.INSTANCE, BalancePolicy.AVL);
+        for (int i = 0; i < size; i++) {
+            tree.insert("M" + i, gmsValues[i]);
+        }
+        AvlCursor cursor = tree.cursor();
+
+        double[] cursorPass = measure(i -> {
+            double sum = 0;
+            for (boolean valid = cursor.first(); valid; valid = cursor.next()) {
+                sum += cursor.gmsValue();
+            }
+            sink += (int) sum;
+        });
+        double[] iteratorPass = measure(i -> {
+            double sum = 0;
+            for (AvlTree.AvlNode node : tree) {
+                sum += node.gmsValue;
+            }
+            sink += (int) sum;
+        });
+        double[] streamPass = measure(i -> sink += (int) tree.stream().mapToDouble(node -> node.gmsValue).sum());
+        double[] parallelPass = measure(
+                i -> sink += (int) tree.stream().parallel().mapToDouble(node -> node.gmsValue).sum());
+        double[] copiedPass = measure(i -> {
+            List<AvlTree.AvlNode> copy = new ArrayList<>(tree.size());
+            tree.forEach(copy::add);
+            sink += (int) copy.parallelStream().mapToDouble(node -> node.gmsValue).sum();
+        });
+
+        emit("traverse", "size", size, "threads", ForkJoinPool.getCommonPoolParallelism(), "cursorNsPerMember",
+                cursorPass[0] / size, "iteratorNsPerMember", iteratorPass[0] / size, "streamNsPerMember",
+                streamPass[0] / size, "parallelStreamNsPerMember", parallelPass[0] / size,
+                "copiedParallelStreamNsPerMember", copiedPass[0] / size);
+    }
+
+    /**
+     * Measures inserting size random members under a balance policy and then
+     * deleting and reinserting random batches of them, with the resulting tree
+     * height. With the metrics enabled, the rotations per thousand inserts and
+     * deletes are reported too.
+     */
+    private static void benchmarkBalance(BalancePolicy policy, int size) throws IOException {
+        Random random = new Random(42);
+        float[] gmsValues = insertionOrder("random", size, random);
+        String[] names = new String[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = "M" + i;
+        }
+
+        AvlTree tree = new AvlTree(Writer.nullWriter(), policy);
+        long rotations = AvlMetrics.ENABLED ? AvlMetrics.rotationCount() : 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            tree.insert(names[i], gmsValues[i]);
+        }
+        double build = (double) (System.nanoTime() - start) / size;
+        long buildRotations = AvlMetrics.ENABLED ? AvlMetrics.rotationCount() - rotations : 0;
+
+        int batch = Math.max(1, Math.min(size / 10, MAX_CHURN_BATCH));
+        double[] delete = { Double.MAX_VALUE, 0 };
+        double[] insert = { Double.MAX_VALUE, 0 };
+        long deleteRotations = 0;
+        long insertRotations = 0;
+        long churned = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            long deleteNanos = 0;
+            long insertNanos = 0;
+            long ops = 0;
+            while (deleteNanos + insertNanos < MIN_ROUND_NANOS) {
+                int from = random.nextInt(size - batch + 1);
+                long before = AvlMetrics.ENABLED ? AvlMetrics.rotationCount() : 0;
+                long deleteStart = System.nanoTime();
+                for (int i = from; i < from + batch; i++) {
+                    tree.delete(names[i], gmsValues[i]);
+                }
+                long middle = System.nanoTime();
+                long deleted = AvlMetrics.ENABLED ? AvlMetrics.rotationCount() : 0;
+                for (int i = from; i < from + batch; i++) {
+                    tree.insert(names[i], gmsValues[i]);
+                }
+                insertNanos += System.nanoTime() - middle;
+                deleteNanos += middle - deleteStart;
+                ops += batch;
+                if (round >= WARMUP_ROUNDS && AvlMetrics.ENABLED) {
+                    deleteRotations += deleted - before;
+                    insertRotations += AvlMetrics.rotationCount() - deleted;
+                }
+            }
+            if (round >= WARMUP_ROUNDS) {
+                record(delete, (double) deleteNanos / ops);
+                record(insert, (double) insertNanos / ops);
+                churned += ops;
+            }
+        }
+        sink += tree.size();
+
+        List<Object> fields = new ArrayList<>(List.of("policy", policy.name(), "size", size, "height",
+                tree.root.height, "buildNsPerOp", build, "insertNsPerOp", insert[0], "deleteNsPerOp", delete[0]));
+        if (AvlMetrics.ENABLED) {
+            fields.addAll(List.of("buildRotationsPer1000Ops", 1e3 * buildRotations / size,
+                    "insertRotationsPer1000Ops", 1e3 * insertRotations / churned, "deleteRotationsPer1000Ops",
+                    1e3 * deleteRotations / churned));
+        }
+        emit("balance", fields.toArray());
+    }
+
+    private static void benchmarkChurn(AvlTree tree, String distribution, String[] names, float[] gmsValues,
+            Random random) throws IOException {
+        int n = names.length;
+        int batch = Math.max(1, Math.min(n / 10, MAX_CHURN_BATCH));
+        int[] members = new int[n];
+        for (int i = 0; i < n; i++) {
+            members[i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int member = members[i];
+            members[i] = members[j];
+            members[j] = member;
+        }
+
+        double[] delete = { Double.MAX_VALUE, 0 };
+        double[] insert = { Double.MAX_VALUE, 0 };
+        int next = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            long deleteNanos = 0;
+            long insertNanos = 0;
+            long ops = 0;
+            while (deleteNanos + insertNanos < MIN_ROUND_NANOS) {
+                if (next + batch > n) {
+                    next = 0;
+                }
+                long start = System.nanoTime();
+                for (int i = next; i < next + batch; i++) {
+                    tree.delete(names[members[i]], gmsValues[members[i]]);
+                }
+                long middle = System.nanoTime();
+                for (int i = next; i < next + batch; i++) {
+                    tree.insert(names[members[i]], gmsValues[members[i]]);
+                }
+                insertNanos += System.nanoTime() - middle;
+                deleteNanos += middle - start;
+                ops += batch;
+                next += batch;
+            }
+            if (round >= WARMUP_ROUNDS) {
+                record(delete, (double) deleteNanos / ops);
+                record(insert, (double) insertNanos / ops);
+            }
+        }
+        emitOperation("delete", distribution, n, delete);
+        emitOperation("insert", distribution, n, insert);
+    }
+
+    /**
+     * Runs an operation in rounds of at least MIN_ROUND_NANOS. The number of
+     * operations per round is calibrated before the warmup rounds.
+     *
+     * @return The best and the mean time per operation of the measured rounds,
+     *         in nanoseconds.
+     */
+    private static double[] measure(Operation operation) throws IOException {
+        int batch = 1;
+        int index = 0;
+        while (true) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++) {
+                operation.run(index++ & (PROBES - 1));
+            }
+            if (System.nanoTime() - start >= MIN_ROUND_NANOS || batch >= 1 << 30) {
+                break;
+            }
+            batch *= 2;
+        }
+        double[] result = { Double.MAX_VALUE, 0 };
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++) {
+                operation.run(index++ & (PROBES - 1));
+            }
+            if (round >= WARMUP_ROUNDS) {
+                record(result, (double) (System.nanoTime() - start) / batch);
+            }
+        }
+        return result;
+    }
+
+    private static void record(double[] result, double nanosPerOp) {
+        result[0] = Math.min(result[0], nanosPerOp);
+        result[1] += nanosPerOp / MEASURE_ROUNDS;
+    }
+
+    private static void emitOperation(String operation, String distribution, int size, double[] result) {
+        emit("operation", "op", operation, "distribution", distribution, "size", size, "nsPerOp", result[0],
+                "meanNsPerOp", result[1]);
+    }
+
+    /**
+     * Replays a command file through {@link CommandParser} and the handler Main
+     * uses, once per event sink: none drops the events, null formats the text log
+     * into a null writer, file writes it to a FileWriter like Main, and binary
+     * writes the binary records to a file.
+     *
+     * @param input    The command file, or null to generate one.
+     * @param commands The number of commands to generate.
+     */
+    private static void benchmarkReplay(File input, int commands) throws IOException {
+        File file = input;
+        if (file == null) {
+            file = File.createTempFile("avl-replay", ".txt");
+            file.deleteOnExit();
+            writeCommandFile(file, commands, new Random(42));
+        }
+        File output = File.createTempFile("avl-replay", ".out");
+        output.deleteOnExit();
+
+        for (String sinkName : new String[] { "none", "null", "file", "binary" }) {
+            double[] result = { Double.MAX_VALUE, 0 };
+            for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+                long start = System.nanoTime();
+                if (sinkName.equals("none")) {
+                    AvlTree tree = new AvlTree(NoOpEventSink.INSTANCE, BalancePolicy.AVL);
+                    new CommandParser(new Main.TreeHandler(tree)).parse(file);
+                } else if (sinkName.equals("binary")) {
+                    try (BinaryEventSink events = new BinaryEventSink(new FileOutputStream(output))) {
+                        new CommandParser(new Main.TreeHandler(new AvlTree(events, BalancePolicy.AVL))).parse(file);
+                    }
+                } else {
+                    Writer writer = sinkName.equals("null") ? Writer.nullWriter() : new FileWriter(output);
+                    new CommandParser(new Main.TreeHandler(new AvlTree(writer))).parse(file);
+                    writer.close();
+                }
+                if (round >= WARMUP_ROUNDS) {
+                    record(result, (System.nanoTime() - start) / 1e6);
+                }
+            }
+            emit("replay", "input", input == null ? "generated" : input.getPath(), "sink", sinkName, "bytes",
+                    file.length(), "outputBytes", sinkName.equals("file") || sinkName.equals("binary")
+                            ? output.length() : 0, "ms", result[0], "meanMs", result[1]);
+        }
+    }
+
+    /**
+     * Replays a command file of phases that change a few members and then repeat
+     * target, rank and division analyses on a small set of hot members, once
+     * computing every answer and once with a {@link QueryCache}.
+     */
+    private static void benchmarkQueryCache(int size) throws IOException {
+        int members = Math.min(size, MAX_CACHE_MEMBERS);
+        Random random = new Random(42);
+        File file = File.createTempFile("avl-cache", ".txt");
+        file.deleteOnExit();
+        List<String> lines = new ArrayList<>();
+        float[] gmsValues = new float[members + CACHE_PHASES];
+        for (int i = 0; i < gmsValues.length; i++) {
+            // Distinct values: a random offset within a step of ten per member.
+            gmsValues[i] = i * 10 + random.nextInt(10);
+        }
+        for (int i = 0; i < members; i++) {
+            String member = "M" + i + " " + String.format(Locale.ROOT, "%.3f", gmsValues[i]);
+            lines.add(i == 0 ? member : "MEMBER_IN " + member);
+        }
+        for (int phase = 0; phase < CACHE_PHASES; phase++) {
+            int added = members + phase;
+            lines.add("MEMBER_IN M" + added + " " + String.format(Locale.ROOT, "%.3f", gmsValues[added]));
+            for (int q = 0; q < CACHE_QUERIES_PER_PHASE; q++) {
+                int p = random.nextInt(CACHE_HOT_MEMBERS) * (members / CACHE_HOT_MEMBERS);
+                int r = random.nextInt(CACHE_HOT_MEMBERS) * (members / CACHE_HOT_MEMBERS);
+                String first = "M" + p + " " + String.format(Locale.ROOT, "%.3f", gmsValues[p]);
+                int kind = random.nextInt(10);
+                if (kind < 5) {
+                    lines.add("INTEL_TARGET " + first + " M" + r + " "
+                            + String.format(Locale.ROOT, "%.3f", gmsValues[r]));
+                } else if (kind < 9) {
+                    lines.add("INTEL_RANK " + first);
+                } else {
+                    lines.add("INTEL_DIVIDE");
+                }
+            }
+        }
+        Files.write(file.toPath(), lines);
+
+        QueryCache cache = null;
+        for (boolean cached : new boolean[] { false, true }) {
+            double best = Double.MAX_VALUE;
+            double total = 0;
+            for (int round = 0; round < CACHE_WARMUP_ROUNDS + CACHE_MEASURE_ROUNDS; round++) {
+                cache = cached ? new QueryCache() : null;
+                long start = System.nanoTime();
+                AvlTree tree = new AvlTree(Writer.nullWriter());
+                new CommandParser(new Main.TreeHandler(tree, null, null, cache)).parse(file);
+                if (round >= CACHE_WARMUP_ROUNDS) {
+                    double ms = (System.nanoTime() - start) / 1e6;
+                    best = Math.min(best, ms);
+                    total += ms;
+                }
+                sink += tree.size();
+            }
+            emit("cache", "members", members, "commands", lines.size(), "cached", cached ? "yes" : "no", "ms",
+                    best, "meanMs", total / CACHE_MEASURE_ROUNDS, "hitRate", cache == null ? 0.0 : cache.getHitRate());
+        }
+    }
+
+    /**
+     * Writes a random command file in the input format of Main: half of the
+     * commands are MEMBER_IN, the rest are MEMBER_OUT, INTEL_TARGET, INTEL_RANK
+     * and INTEL_DIVIDE on members that are in the tree at that point.
+     */
+    private static void writeCommandFile(File file, int commands, Random random) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        Set<Integer> used = new HashSet<>();
+        try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+            for (int i = 0; i <= commands; i++) {
+                int kind = random.nextInt(100);
+                if (i == 0 || kind < 50 || names.size() < 2) {
+                    int thousandths;
+                    do {
+                        thousandths = random.nextInt(100_000_000);
+                    } while (!used.add(thousandths));
+                    String name = "M" + i;
+                    String value = String.format(Locale.ROOT, "%.3f", thousandths / 1000.0);
+                    names.add(name);
+                    values.add(value);
+                    writer.write(i == 0 ? name + " " + value + "\n" : "MEMBER_IN " + name + " " + value + "\n");
+                } else if (kind < 65) {
+                    int p = random.nextInt(names.size());
+                    int last = names.size() - 1;
+                    writer.write("MEMBER_OUT " + names.get(p) + " " + values.get(p) + "\n");
+                    names.set(p, names.get(last));
+                    values.set(p, values.get(last));
+                    names.remove(last);
+                    values.remove(last);
+                } else if (kind < 80) {
+                    int p = random.nextInt(names.size());
+                    int q = random.nextInt(names.size());
+                    writer.write("INTEL_TARGET " + names.get(p) + " " + values.get(p) + " " + names.get(q) + " "
+                            + values.get(q) + "\n");
+                } else if (kind < 93) {
+                    int p = random.nextInt(names.size());
+                    writer.write("INTEL_RANK " + names.get(p) + " " + values.get(p) + "\n");
+                } else {
+                    writer.write("INTEL_DIVIDE\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints one result as a JSON object on its own line. fields holds
+     * alternating keys and values; strings are quoted, floating point values are
+     * printed with one decimal.
+     */
+    private static void emit(String benchmark, Object... fields) {
+        StringBuilder json = new StringBuilder("{\"benchmark\":\"").append(benchmark).append('"');
+        for (int i = 0; i < fields.length; i += 2) {
+            json.append(",\"").append(fields[i]).append("\":");
+            Object value = fields[i + 1];
+            if (value instanceof String) {
+                json.append('"').append(((String) value).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            } else if (value instanceof Double || value instanceof Float) {
+                json.append(String.format(Locale.ROOT, "%.1f", value));
+            } else {
+                json.append(value);
+            }
+        }
+        System.out.println(json.append('}'));
+    }
+
+    /**
+     * Compares answering a run of size target analyses one by one with
+     * intel_targeter against answering the run with a {@link TargetBatch}, once
+     * for random pairs of members and once for pairs of the same member, and
+     * once flushing the batch after the whole run and once every
+     * SHORT_TARGET_RUN queries.
+     */
+    private static void benchmarkTargetBatch(int size) throws IOException {
+        Random random = new Random(42);
+        AvlTree tree = new AvlTree(Writer.nullWriter());
+        float[] gmsValues = new float[size];
+        for (int i = 0; i < size; i++) {
+            gmsValues[i] = random.nextFloat() * 1_000_000f;
+            tree.insert("M" + i, gmsValues[i]);
+        }
+
+        for (String pairing : new String[] { "random", "same" }) {
+            for (int run : new int[] { size, SHORT_TARGET_RUN }) {
+                benchmarkTargetRuns(tree, gmsValues, random, pairing, run);
+            }
+        }
+    }
+
+    private static void benchmarkTargetRuns(AvlTree tree, float[] gmsValues, Random random, String pairing, int run)
+            throws IOException {
+        int size = gmsValues.length;
+        float[] pairs = new float[2 * size];
+        for (int i = 0; i < size; i++) {
+            pairs[2 * i] = gmsValues[random.nextInt(size)];
+            pairs[2 * i + 1] = pairing.equals("same") ? pairs[2 * i] : gmsValues[random.nextInt(size)];
+        }
+        TargetBatch batch = new TargetBatch(tree);
+        double[] walk = { Double.MAX_VALUE, 0 };
+        double[] batched = { Double.MAX_VALUE, 0 };
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                tree.intel_targeter(null, null, pairs[2 * i], pairs[2 * i + 1]);
+            }
+            long middle = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                batch.add(pairs[2 * i], pairs[2 * i + 1]);
+                if ((i + 1) % run == 0) {
+                    batch.flush();
+                }
+            }
+            batch.flush();
+            long end = System.nanoTime();
+            if (round >= WARMUP_ROUNDS) {
+                record(walk, (double) (middle - start) / size);
+                record(batched, (double) (end - middle) / size);
+            }
+        }
+        emit("targetBatch", "size", size, "pairs", pairing, "run", run, "walkNsPerOp", walk[0], "batchNsPerOp",
+                batched[0], "speedup", walk[0] / batched[0]);
+    }
+
+    /**
+     * Compares merging two interleaved trees of size / 2 members each with union
+     * against inserting the members of one into the other one by one.
+     */
+    private static void benchmarkSetOperations(int size) throws IOException {
+        int half = size / 2;
+        String[] evenNames = new String[half];
+        float[] evenValues = new float[half];
+        String[] oddNames = new String[half];
+        float[] oddValues = new float[half];
+        for (int i = 0; i < half; i++) {
+            evenNames[i] = "E" + i;
+            evenValues[i] = 2f * i;
+            oddNames[i] = "O" + i;
+            oddValues[i] = 2f * i + 1f;
+        }
+        double[] union = { Double.MAX_VALUE, 0 };
+        double[] inserted = { Double.MAX_VALUE, 0 };
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            AvlTree tree = new AvlTree(Writer.nullWriter());
+            tree.bulkLoad(evenNames, evenValues);
+            AvlTree other = new AvlTree(Writer.nullWriter());
+            other.bulkLoad(oddNames, oddValues);
+            long start = System.nanoTime();
+            tree.union(other);
+            long time = System.nanoTime() - start;
+            sink += tree.size();
+
+            AvlTree target = new AvlTree(Writer.nullWriter());
+            target.bulkLoad(evenNames, evenValues);
+            start = System.nanoTime();
+            for (int i = 0; i < half; i++) {
+                target.insert(oddNames[i], oddValues[i]);
+            }
+            long insertTime = System.nanoTime() - start;
+            sink += target.size();
+            if (round >= WARMUP_ROUNDS) {
+                record(union, time / 1e6);
+                record(inserted, insertTime / 1e6);
+            }
+        }
+        emit("union", "size", size, "parallelism", ForkJoinPool.commonPool().getParallelism(), "unionMs", union[0],
+                "insertMs", inserted[0], "speedup", inserted[0] / union[0]);
+    }
+
+    /**
+     * Compares restoring a tree of size random members from a checkpoint against
+     * rebuilding it by inserting the members one by one, as a replay of the
+     * command history does.
+     */
+    private static void benchmarkCheckpoint(int size) throws IOException {
+        Random random = new Random(42);
+        String[] names = new String[size];
+        float[] gmsValues = new float[size];
+        AvlTree tree = new AvlTree(Writer.nullWriter());
+        for (int i = 0; i < size; i++) {
+            names[i] = "M" + i;
+            gmsValues[i] = random.nextFloat() * 1_000_000f;
+            tree.insert(names[i], gmsValues[i]);
+        }
+        File file = File.createTempFile("avl-checkpoint", ".bin");
+        file.deleteOnExit();
+
+        double[] write = { Double.MAX_VALUE, 0 };
+        double[] restore = { Double.MAX_VALUE, 0 };
+        double[] rebuild = { Double.MAX_VALUE, 0 };
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            long start = System.nanoTime();
+            tree.writeCheckpoint(file);
+            long written = System.nanoTime();
+            AvlTree restored = AvlTree.restoreCheckpoint(file, Writer.nullWriter());
+            long restoredAt = System.nanoTime();
+            AvlTree rebuilt = new AvlTree(Writer.nullWriter());
+            for (int i = 0; i < size; i++) {
+                rebuilt.insert(names[i], gmsValues[i]);
+            }
+            long rebuiltAt = System.nanoTime();
+            sink += restored.size() + rebuilt.size();
+            if (round >= WARMUP_ROUNDS) {
+                record(write, (written - start) / 1e6);
+                record(restore, (restoredAt - written) / 1e6);
+                record(rebuild, (rebuiltAt - restoredAt) / 1e6);
+            }
+        }
+        emit("checkpoint", "size", size, "bytes", file.length(), "writeMs", write[0], "restoreMs", restore[0],
+                "insertMs", rebuild[0], "speedup", rebuild[0] / restore[0]);
+    }
+
+    /**
+     * Compares the throughput of inserting and removing members without a
+     * journal, with a group committed journal and with a journal that syncs every
+     * command, and measures the replay of the journal. Syncing every command is
+     * measured on at most SYNCED_COMMANDS commands, since every sync waits for
+     * the disk.
+     */
+    private static void benchmarkJournal(int size) throws IOException {
+        int commands = Math.min(size, MAX_JOURNAL_COMMANDS);
+        Random random = new Random(42);
+        String[] names = new String[commands];
+        float[] gmsValues = new float[commands];
+        for (int i = 0; i < commands; i++) {
+            names[i] = "M" + i;
+            gmsValues[i] = random.nextFloat() * 1_000_000f;
+        }
+        File file = File.createTempFile("avl-journal", ".bin");
+        file.deleteOnExit();
+
+        double[] none = { Double.MAX_VALUE, 0 };
+        double[] grouped = { Double.MAX_VALUE, 0 };
+        double[] replay = { Double.MAX_VALUE, 0 };
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            long start = System.nanoTime();
+            applyJournaled(null, names, gmsValues, commands);
+            long unjournaled = System.nanoTime();
+            file.delete();
+            try (CommandJournal journal = new CommandJournal(file)) {
+                applyJournaled(journal, names, gmsValues, commands);
+            }
+            long journaled = System.nanoTime();
+            AvlTree recovered = new AvlTree(Writer.nullWriter());
+            int replayed = CommandJournal.replay(file, recovered);
+            long replayedAt = System.nanoTime();
+            sink += replayed + recovered.size();
+            if (round >= WARMUP_ROUNDS) {
+                record(none, (unjournaled - start) / 1e6);
+                record(grouped, (journaled - unjournaled) / 1e6);
+                record(replay, (replayedAt - journaled) / 1e6);
+            }
+        }
+
+        int synced = Math.min(commands, SYNCED_COMMANDS);
+        file.delete();
+        long start = System.nanoTime();
+        try (CommandJournal journal = new CommandJournal(file, 1, 0)) {
+            applyJournaled(journal, names, gmsValues, synced);
+        }
+        double syncedMs = (System.nanoTime() - start) / 1e6;
+
+        emit("journal", "commands", 2 * commands, "bytes", file.length() * commands / synced, "noJournalOpsPerSec",
+                2 * commands / none[0] * 1e3, "groupCommitOpsPerSec", 2 * commands / grouped[0] * 1e3,
+                "syncEachOpsPerSec", 2 * synced / syncedMs * 1e3, "replayMs", replay[0], "groupCommitOverhead",
+                grouped[0] / none[0]);
+    }
+
+    /**
+     * Inserts the first n members and removes them again, journaling every
+     * command first unless journal is null, as Main does with --journal.
+     */
+    private static void applyJournaled(CommandJournal journal, String[] names, float[] gmsValues, int n)
+            throws IOException {
+        AvlTree tree = new AvlTree(Writer.nullWriter());
+        for (int i = 0; i < n; i++) {
+            if (journal != null) {
+                journal.memberIn(names[i], gmsValues[i]);
+            }
+            tree.insert(names[i], gmsValues[i]);
+        }
+        for (int i = 0; i < n; i++) {
+            if (journal != null) {
+                journal.memberOut(names[i], gmsValues[i]);
+            }
+            tree.delete(names[i], gmsValues[i]);
+        }
+        sink += tree.size();
+    }
+
+    private static void benchmarkDivide(int size) throws IOException {
+        AvlTree tree = new AvlTree(Writer.nullWriter());
+        Random random = new Random(42);
+        while (tree.size() < size) {
+            tree.insert("M" + tree.size(), random.nextFloat() * 1_000_000f);
+        }
+
+        if (tree.intel_divide() != tree.recomputeDivide()) {
+            throw new IllegalStateException("Incremental and recomputed division results differ");
+        }
+
+        double incremental = measureDivide(tree, true, 1_000_000);
+        double recompute = measureDivide(tree, false, 5);
+        emit("divide", "size", size, "incrementalNsPerOp", incremental, "recomputeNsPerOp", recompute, "speedup",
+                recompute / incremental);
+    }
+
+    /**
+     * Compares building a tree from a sorted roster with bulkLoad against
+     * inserting the same members one by one, and merging a sorted run into an
+     * existing tree with insertSortedRun against one by one inserts.
+     */
+    private static void benchmarkBulkLoad(int size) throws IOException {
+        String[] names = new String[size];
+        float[] gmsValues = new float[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = "M" + i;
+            gmsValues[i] = i * 0.5f;
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            long start = System.nanoTime();
+            AvlTree tree = new AvlTree(Writer.nullWriter());
+            tree.bulkLoad(names, gmsValues);
+            sink += tree.size();
+            best = round < WARMUP_ROUNDS ? best : Math.min(best, System.nanoTime() - start);
+        }
+        long bulk = best;
+
+        best = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            long start = System.nanoTime();
+            AvlTree tree = new AvlTree(Writer.nullWriter());
+            for (int i = 0; i < size; i++) {
+                tree.insert(names[i], gmsValues[i]);
+            }
+            sink += tree.size();
+            best = round < WARMUP_ROUNDS ? best : Math.min(best, System.nanoTime() - start);
+        }
+        long oneByOne = best;
+        emit("coldStart", "size", size, "bulkLoadMs", bulk / 1e6, "insertMs", oneByOne / 1e6, "speedup",
+                (double) oneByOne / bulk);
+
+        // Merge the odd half of the members into a tree holding the even half.
+        int half = size / 2;
+        String[] evenNames = new String[half];
+        float[] evenValues = new float[half];
+        String[] oddNames = new String[half];
+        float[] oddValues = new float[half];
+        for (int i = 0; i < half; i++) {
+            evenNames[i] = names[2 * i];
+            evenValues[i] = gmsValues[2 * i];
+            oddNames[i] = names[2 * i + 1];
+            oddValues[i] = gmsValues[2 * i + 1];
+        }
+        long merged = Long.MAX_VALUE;
+        long inserted = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            AvlTree tree = new AvlTree(Writer.nullWriter());
+            tree.bulkLoad(evenNames, evenValues);
+            long start = System.nanoTime();
+            tree.insertSortedRun(oddNames, oddValues, 0, half);
+            long time = System.nanoTime() - start;
+            merged = round < WARMUP_ROUNDS ? merged : Math.min(merged, time);
+
+            tree = new AvlTree(Writer.nullWriter());
+            tree.bulkLoad(evenNames, evenValues);
+            start = System.nanoTime();
+            for (int i = 0; i < half; i++) {
+                tree.insert(oddNames[i], oddValues[i]);
+            }
+            time = System.nanoTime() - start;
+            inserted = round < WARMUP_ROUNDS ? inserted : Math.min(inserted, time);
+            sink += tree.size();
+        }
+        emit("sortedRun", "size", half, "insertSortedRunMs", merged / 1e6, "insertMs", inserted / 1e6, "speedup",
+                (double) inserted / merged);
+    }
+
+    private static double measureDivide(AvlTree tree, boolean incremental, int opsPerRound) throws IOException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runDivide(tree, incremental, opsPerRound);
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            long start = System.nanoTime();
+            runDivide(tree, incremental, opsPerRound);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / opsPerRound;
+    }
+
+    private static void runDivide(AvlTree tree, boolean incremental, int ops) throws IOException {
+        for (int i = 0; i < ops; i++) {
+            sink += incremental ? tree.intel_divide() : tree.recomputeDivide();
+        }
+    }
+
+    /**
+     * Builds a tree holding the members with the even grams values 0, 2, 4, ...
+     * Workloads only insert and delete odd values, so the even members are always
+     * present and values like 1.5 are never present.
+     */
+    private static AvlTree stableTree(int size) {
+        String[] names = new String[size];
+        float[] gmsValues = new float[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = "S" + i;
+            gmsValues[i] = 2f * i;
+        }
+        AvlTree tree = new AvlTree(Writer.nullWriter());
+        tree.bulkLoad(names, gmsValues);
+        return tree;
+    }
+
+    /**
+     * Query and update operations of a shared tree, implemented once with the
+     * optimistic {@link ConcurrentAvlTree} and once with a single global lock.
+     */
+    private interface SharedTree {
+        void update(float gmsValue, boolean insert) throws IOException;
+
+        int query(float gmsValue);
+    }
+
+    private static void benchmarkConcurrent(int size) throws InterruptedException {
+        for (int threads : THREAD_COUNTS) {
+            ConcurrentAvlTree stamped = new ConcurrentAvlTree(stableTree(size));
+            double optimistic = measureThroughput(threads, size, new SharedTree() {
+                public void update(float gmsValue, boolean insert) throws IOException {
+                    if (insert) {
+                        stamped.insert("V", gmsValue);
+                    } else {
+                        stamped.delete("V", gmsValue);
+                    }
+                }
+
+                public int query(float gmsValue) {
+                    return stamped.searchNodeRank("S", gmsValue) + stamped.rankOf(gmsValue);
+                }
+            });
+
+            AvlTree plain = stableTree(size);
+            ReentrantLock globalLock = new ReentrantLock();
+            double global = measureThroughput(threads, size, new SharedTree() {
+                public void update(float gmsValue, boolean insert) throws IOException {
+                    globalLock.lock();
+                    try {
+                        if (insert) {
+                            plain.insert("V", gmsValue);
+                        } else {
+                            plain.delete("V", gmsValue);
+                        }
+                    } finally {
+                        globalLock.unlock();
+                    }
+                }
+
+                public int query(float gmsValue) {
+                    globalLock.lock();
+                    try {
+                        return plain.searchNodeRank("S", gmsValue) + plain.rankOf(gmsValue);
+                    } finally {
+                        globalLock.unlock();
+                    }
+                }
+            });
+            emit("concurrent", "size", size, "threads", threads, "writePercent", WRITE_PERCENT, "stampedOpsPerSec",
+                    optimistic, "globalLockOpsPerSec", global);
+        }
+    }
+
+    private static double measureThroughput(int threadCount, int size, SharedTree tree) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + THROUGHPUT_MILLIS;
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                int local = 0;
+                while ((done & 1023) != 0 || System.currentTimeMillis() < deadline) {
+                    if (random.nextInt(100) < WRITE_PERCENT) {
+                        try {
+                            tree.update(2f * random.nextInt(size) + 1f, random.nextBoolean());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    } else {
+                        local += tree.query(2f * random.nextInt(size));
+                    }
+                    done++;
+                }
+                ops.add(done);
+                sink += local;
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return ops.sum() / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,322 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Self checks of the tree modes, for scripts: every check prints one line per
+ * case and the process exits with status 1 if any case fails. Run with
+ *
+ * java AvlCheck [modes|concurrent|all] [input file...]
+ *
+ * modes runs command files through Main in the default and in the arena
+ * storage mode and requires both outputs to be identical. Besides the given
+ * input files it checks a few fixed cases around duplicate names and a random
+ * file with every command type, in which members often share a name.
+ * concurrent is a multi-threaded stress test of {@link ConcurrentAvlTree}:
+ * writers keep inserting and deleting odd members while readers check answers
+ * that must hold whatever the writers do. Afterwards the structure of the
+ * wrapped tree is verified.
+ */
+public class AvlCheck {
+
+    private static final int RANDOM_COMMANDS = 20_000;
+    private static final int STABLE_MEMBERS = 10_000;
+    private static final int WRITERS = 2;
+    private static final int READERS = 4;
+    private static final long STRESS_MILLIS = 2_000;
+
+    /** A command file of a fixed case: a name for the report and its lines. */
+    private static final String[][] CASES = {
+            { "successor-takes-duplicate-name", "R 50.0", "MEMBER_IN A 30.0", "MEMBER_IN B 70.0",
+                    "MEMBER_IN X 55.0", "MEMBER_IN X 20.0", "MEMBER_OUT R 50.0", "MEMBER_OUT X",
+                    "INTEL_RANK X", "MEMBER_OUT X", "INTEL_RANK X" },
+            { "older-duplicate-stays-reachable", "R 50.0", "MEMBER_IN X 55.0", "MEMBER_IN X 20.0",
+                    "MEMBER_OUT X 20.0", "INTEL_RANK X", "MEMBER_OUT X", "INTEL_RANK X" },
+    };
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        String check = args.length > 0 ? args[0] : "all";
+
+        if (check.equals("modes") || check.equals("all")) {
+            for (String[] lines : CASES) {
+                File file = File.createTempFile("avl-check", ".txt");
+                file.deleteOnExit();
+                Files.write(file.toPath(), List.of(lines).subList(1, lines.length), StandardCharsets.UTF_8);
+                checkModes(lines[0], file);
+            }
+            File random = File.createTempFile("avl-check", ".txt");
+            random.deleteOnExit();
+            writeCommandFile(random, RANDOM_COMMANDS, new Random(42));
+            checkModes("random-all-commands", random);
+            for (int i = 1; i < args.length; i++) {
+                checkModes(args[i], new File(args[i]));
+            }
+        }
+        if (check.equals("concurrent") || check.equals("all")) {
+            checkConcurrent();
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void report(String check, String name, String failure) {
+        if (failure == null) {
+            System.out.println(check + " ok " + name);
+        } else {
+            System.out.println(check + " FAILED " + name + ": " + failure);
+            failures++;
+        }
+    }
+
+    /**
+     * Runs a command file through Main in the default and in the arena mode and
+     * compares the outputs line by line.
+     */
+    private static void checkModes(String name, File input) throws IOException {
+        File expected = File.createTempFile("avl-check", ".out");
+        File actual = File.createTempFile("avl-check", ".out");
+        try {
+            Main.main(new String[] { input.getPath(), expected.getPath() });
+            Main.main(new String[] { input.getPath(), actual.getPath(), "--arena" });
+            List<String> tree = Files.readAllLines(expected.toPath(), StandardCharsets.UTF_8);
+            List<String> arena = Files.readAllLines(actual.toPath(), StandardCharsets.UTF_8);
+            String failure = null;
+            for (int i = 0; i < Math.max(tree.size(), arena.size()) && failure == null; i++) {
+                String line = i < tree.size() ? tree.get(i) : "<end of output>";
+                String arenaLine = i < arena.size() ? arena.get(i) : "<end of output>";
+                if (!line.equals(arenaLine)) {
+                    failure = "line " + (i + 1) + " is \"" + line + "\", but \"" + arenaLine + "\" with --arena";
+                }
+            }
+            report("modes", name, failure);
+        } catch (RuntimeException e) {
+            report("modes", name, e.toString());
+        } finally {
+            expected.delete();
+            actual.delete();
+        }
+    }
+
+    /**
+     * Writes a random command file with every command type. A third of the new
+     * members reuse the name of an earlier one. The generator tracks the members
+     * by name like the name index does, so the member queries only name members
+     * that are still in the tree.
+     */
+    private static void writeCommandFile(File file, int commands, Random random) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<Float> gmsValues = new ArrayList<>();
+        Map<String, List<Float>> byName = new HashMap<>();
+        Set<Integer> used = new HashSet<>();
+        int created = 0;
+        try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+            for (int i = 0; i <= commands; i++) {
+                int kind = random.nextInt(100);
+                if (i == 0 || kind < 40 || names.size() < 2) {
+                    int eighths;
+                    do {
+                        eighths = random.nextInt(200_000);
+                    } while (!used.add(eighths));
+                    String name = created > 0 && random.nextInt(3) == 0 ? "M" + random.nextInt(created)
+                            : "M" + created++;
+                    float gmsValue = eighths / 8f;
+                    names.add(name);
+                    gmsValues.add(gmsValue);
+                    byName.computeIfAbsent(name, key -> new ArrayList<>()).add(gmsValue);
+                    writer.write((i == 0 ? "" : "MEMBER_IN ") + name + " " + format(gmsValue) + "\n");
+                } else if (kind < 48) {
+                    int p = random.nextInt(names.size());
+                    writer.write("MEMBER_OUT " + names.get(p) + " " + format(gmsValues.get(p)) + "\n");
+                    remove(names, gmsValues, byName, p);
+                } else if (kind < 56) {
+                    String name = names.get(random.nextInt(names.size()));
+                    List<Float> members = byName.get(name);
+                    remove(names, gmsValues, byName, gmsValues.indexOf(members.get(members.size() - 1)));
+                    writer.write("MEMBER_OUT " + name + "\n");
+                } else if (kind < 62) {
+                    int p = random.nextInt(names.size());
+                    int q = random.nextInt(names.size());
+                    writer.write("INTEL_TARGET " + names.get(p) + " " + format(gmsValues.get(p)) + " " + names.get(q)
+                            + " " + format(gmsValues.get(q)) + "\n");
+                } else if (kind < 66) {
+                    int p = random.nextInt(names.size());
+                    writer.write("INTEL_RANK " + names.get(p) + " " + format(gmsValues.get(p)) + "\n");
+                } else if (kind < 70) {
+                    writer.write("INTEL_RANK " + names.get(random.nextInt(names.size())) + "\n");
+                } else if (kind < 72) {
+                    writer.write("INTEL_DIVIDE\n");
+                } else if (kind < 76) {
+                    writer.write("INTEL_RANK_OF " + format(random.nextInt(200_000) / 8f) + "\n");
+                } else if (kind < 80) {
+                    writer.write("INTEL_SELECT " + (random.nextInt(names.size() + 4) - 2) + "\n");
+                } else if (kind < 84) {
+                    writer.write("INTEL_COUNT " + format(random.nextInt(200_000) / 8f) + " "
+                            + format(random.nextInt(200_000) / 8f) + "\n");
+                } else if (kind < 88) {
+                    writer.write("INTEL_FLOOR " + format(random.nextInt(200_200) / 8f - 12.5f) + "\n");
+                } else if (kind < 92) {
+                    writer.write("INTEL_CEILING " + format(random.nextInt(200_200) / 8f - 12.5f) + "\n");
+                } else if (kind < 96) {
+                    float lo = random.nextInt(200_000) / 8f;
+                    writer.write("INTEL_RANGE " + format(lo) + " " + format(lo + 50 * random.nextInt(3) - 5) + "\n");
+                } else {
+                    writer.write("INTEL_NEAREST " + format(random.nextInt(200_000) / 8f) + " " + random.nextInt(13)
+                            + "\n");
+                }
+            }
+        }
+    }
+
+    private static void remove(List<String> names, List<Float> gmsValues, Map<String, List<Float>> byName, int p) {
+        byName.get(names.get(p)).remove(gmsValues.get(p));
+        int last = names.size() - 1;
+        names.set(p, names.get(last));
+        gmsValues.set(p, gmsValues.get(last));
+        names.remove(last);
+        gmsValues.remove(last);
+    }
+
+    /**
+     * Runs writers and readers on a {@link ConcurrentAvlTree} over the members
+     * with the even grams values 0, 2, 4, ... The writers only insert and delete
+     * odd values, so every even member stays present and values like 1.5 never
+     * are.
+     */
+    private static void checkConcurrent() throws InterruptedException {
+        String[] names = new String[STABLE_MEMBERS];
+        float[] gmsValues = new float[STABLE_MEMBERS];
+        for (int i = 0; i < STABLE_MEMBERS; i++) {
+            names[i] = "S" + i;
+            gmsValues[i] = 2f * i;
+        }
+        AvlTree wrapped = new AvlTree(Writer.nullWriter());
+        wrapped.bulkLoad(names, gmsValues);
+        ConcurrentAvlTree tree = new ConcurrentAvlTree(wrapped);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        LongAdder checks = new LongAdder();
+        long deadline = System.currentTimeMillis() + STRESS_MILLIS;
+
+        Thread[] threads = new Thread[WRITERS + READERS];
+        for (int t = 0; t < threads.length; t++) {
+            boolean writer = t < WRITERS;
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (System.currentTimeMillis() < deadline && failure.get() == null) {
+                        float odd = 2f * random.nextInt(STABLE_MEMBERS) + 1f;
+                        float even = 2f * random.nextInt(STABLE_MEMBERS);
+                        if (writer) {
+                            if (random.nextBoolean()) {
+                                tree.insert("V", odd);
+                            } else {
+                                tree.delete("V", odd);
+                            }
+                            continue;
+                        }
+                        require(tree.searchNodeRank("S", even) >= 0, "stable member not found");
+                        require(tree.searchNodeRank("X", even + 0.5f) == -1, "absent member found");
+                        Member target = tree.target(even, even);
+                        require(target != null && target.getGmsValue() == even, "wrong target");
+                        int rank = tree.rankOf(even);
+                        require(rank >= even / 2 && rank <= even, "rank out of bounds");
+                        require(tree.countBetween(even, even) == 1, "wrong count of one member");
+                        int size = tree.size();
+                        require(size >= STABLE_MEMBERS && size <= 2 * STABLE_MEMBERS, "size out of bounds");
+                        Member selected = tree.select(0);
+                        require(selected != null && selected.getGmsValue() <= 1f, "wrong minimum");
+                        List<Member> level = tree.rankMembers("S", even);
+                        require(level.stream().anyMatch(m -> m.getGmsValue() == even), "member missing from level");
+                        checks.increment();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        String result = failure.get() != null ? failure.get().toString() : verify(wrapped);
+        report("concurrent", checks.sum() + " reader checks", result);
+    }
+
+    private static void require(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    /**
+     * Verifies the structure of a tree: parent links, grams order, heights,
+     * AVL balance, subtree sizes and the name index.
+     *
+     * @return A description of the first violation, or null if there is none.
+     */
+    private static String verify(AvlTree tree) {
+        int[] count = new int[1];
+        String failure = verify(tree, tree.root, null, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, count);
+        if (failure == null && tree.size() != count[0]) {
+            failure = "size " + tree.size() + " but " + count[0] + " nodes";
+        }
+        return failure;
+    }
+
+    private static String verify(AvlTree tree, AvlTree.AvlNode node, AvlTree.AvlNode parent, float lo, float hi,
+            int[] count) {
+        if (node == null) {
+            return null;
+        }
+        count[0]++;
+        if (node.parent != parent) {
+            return "wrong parent link at " + node.gmsValue;
+        }
+        if (!(node.gmsValue > lo && node.gmsValue < hi)) {
+            return "member " + node.gmsValue + " out of order";
+        }
+        AvlTree.AvlNode named = tree.findByName(node.name);
+        if (named == null || !named.name.equals(node.name)) {
+            return "member " + node.name + " missing from the name index";
+        }
+        String failure = verify(tree, node.leftChild, node, lo, node.gmsValue, count);
+        if (failure == null) {
+            failure = verify(tree, node.rightChild, node, node.gmsValue, hi, count);
+        }
+        if (failure != null) {
+            return failure;
+        }
+        int leftHeight = node.leftChild == null ? -1 : node.leftChild.height;
+        int rightHeight = node.rightChild == null ? -1 : node.rightChild.height;
+        int leftSize = node.leftChild == null ? 0 : node.leftChild.size;
+        int rightSize = node.rightChild == null ? 0 : node.rightChild.size;
+        if (node.height != Math.max(leftHeight, rightHeight) + 1 || Math.abs(leftHeight - rightHeight) > 1) {
+            return "height or balance wrong at " + node.gmsValue;
+        }
+        if (node.size != leftSize + rightSize + 1) {
+            return "size wrong at " + node.gmsValue;
+        }
+        return null;
+    }
+
+    private static String format(float gmsValue) {
+        return String.format(Locale.ROOT, "%.3f", gmsValue);
+    }
+}
@@ -0,0 +1,306 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of an {@link AvlTree} that restores the exact shape of the
+ * tree in O(n), without comparisons or rotations.
+ *
+ * The file holds a header and one section per node attribute, each listing the
+ * nodes in preorder:
+ *
+ * <pre>
+ * int   magic ("AVLC"), version, node count, name arena length, balance policy
+ * long  epoch
+ * float grams value       [count]
+ * byte  height            [count]
+ * byte  shape             [count]   bit 0: has a left child, bit 1: has a right child
+ * byte  balance           [count]   WAVL rank, or 1 for a red node
+ * int   name length       [count]   in UTF-8 bytes
+ * byte  name arena        [arena length]
+ * long  CRC32 of everything before it
+ * </pre>
+ *
+ * The balance policy is stored as the ordinal of {@link BalancePolicy}. Version
+ * 1 files have neither the policy nor the balance section and restore AVL
+ * trees. The epoch numbers the checkpoints of a tree and tells a
+ * {@link CommandJournal} which of its records the checkpoint already holds;
+ * version 1 and 2 files have none and restore with epoch 0.
+ *
+ * The preorder sequence and the shape flags determine the tree completely, so
+ * restoring only links the nodes in file order. Sizes and division values are
+ * recomputed afterwards in reverse preorder, which visits every node after its
+ * descendants; the recomputed heights must equal the stored ones. The name
+ * index is rebuilt in ascending grams order, like after a bulk load.
+ *
+ * A checkpoint is written to a temporary file next to the target, synced and
+ * then renamed over the target in one atomic step, so a crash or a full disk
+ * during the save leaves the previous checkpoint intact.
+ */
+public final class AvlCheckpoint {
+
+    private static final int MAGIC = 0x41564C43;
+    private static final int VERSION = 3;
+    private static final int HEADER_BYTES = 28;
+    private static final int V2_HEADER_BYTES = 20;
+    private static final int V1_HEADER_BYTES = 16;
+    private static final int LEFT = 1;
+    private static final int RIGHT = 2;
+
+    private AvlCheckpoint() {
+    }
+
+    /**
+     * Writes a snapshot of the tree to a file, atomically replacing the previous
+     * one: the file holds either the old or the new snapshot, whenever the
+     * process stops.
+     *
+     * @param tree  The tree to save.
+     * @param file  The checkpoint file.
+     * @param epoch The epoch of the checkpoint.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void write(AvlTree tree, File file, long epoch) throws IOException {
+        int count = tree.size();
+        AvlTree.AvlNode[] nodes = preorder(tree.root, count);
+        byte[][] names = new byte[count][];
+        long arenaLength = 0;
+        for (int i = 0; i < count; i++) {
+            names[i] = nodes[i].name.getBytes(StandardCharsets.UTF_8);
+            arenaLength += names[i].length;
+        }
+        if (arenaLength > Integer.MAX_VALUE) {
+            throw new IOException("Names take more than " + Integer.MAX_VALUE + " bytes");
+        }
+        long length = HEADER_BYTES + 11L * count + arenaLength + Long.BYTES;
+
+        Path target = file.toPath().toAbsolutePath();
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        boolean moved = false;
+        try {
+            write(tree, nodes, names, arenaLength, length, epoch, temporary);
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+            syncDirectory(target.getParent());
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    private static void write(AvlTree tree, AvlTree.AvlNode[] nodes, byte[][] names, long arenaLength, long length,
+            long epoch, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(nodes.length).putInt((int) arenaLength)
+                    .putInt(tree.policy.ordinal()).putLong(epoch);
+            for (AvlTree.AvlNode node : nodes) {
+                buffer.putFloat(node.gmsValue);
+            }
+            for (AvlTree.AvlNode node : nodes) {
+                buffer.put((byte) node.height);
+            }
+            for (AvlTree.AvlNode node : nodes) {
+                buffer.put((byte) ((node.leftChild != null ? LEFT : 0) | (node.rightChild != null ? RIGHT : 0)));
+            }
+            for (AvlTree.AvlNode node : nodes) {
+                buffer.put(tree.policy == BalancePolicy.WAVL ? node.rank : (byte) (node.red ? 1 : 0));
+            }
+            for (byte[] name : names) {
+                buffer.putInt(name.length);
+            }
+            for (byte[] name : names) {
+                buffer.put(name);
+            }
+            buffer.putLong(checksum(buffer, (int) (length - Long.BYTES)));
+            buffer.force();
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Syncs a directory, so that a rename in it survives a crash. Platforms that
+     * cannot open a directory as a channel (Windows) make renames durable by
+     * themselves and are skipped.
+     */
+    static void syncDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Restores a tree from a checkpoint file.
+     *
+     * @param file   The checkpoint file.
+     * @param writer The writer that receives the operation log of the restored
+     *               tree.
+     * @return The restored tree, with the same shape as the saved one.
+     * @throws IOException if the file cannot be read or is not a valid checkpoint.
+     */
+    public static AvlTree read(File file, Writer writer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < V1_HEADER_BYTES + Long.BYTES || length > Integer.MAX_VALUE) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int version = buffer.getInt(4);
+            if (buffer.getInt(0) != MAGIC || version < 1 || version > VERSION) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            int headerBytes = version == 1 ? V1_HEADER_BYTES : version == 2 ? V2_HEADER_BYTES : HEADER_BYTES;
+            int balanceBytes = version == 1 ? 0 : 1;
+            int count = buffer.getInt(8);
+            int arenaLength = buffer.getInt(12);
+            if (count < 0 || arenaLength < 0
+                    || length != headerBytes + (10L + balanceBytes) * count + arenaLength + Long.BYTES
+                    || buffer.getLong((int) length - Long.BYTES) != checksum(buffer, (int) length - Long.BYTES)) {
+                throw new IOException("Corrupt checkpoint file: " + file);
+            }
+            int policy = version == 1 ? BalancePolicy.AVL.ordinal() : buffer.getInt(16);
+            if (policy < 0 || policy >= BalancePolicy.values().length) {
+                throw new IOException("Corrupt checkpoint: unknown balance policy " + policy);
+            }
+            AvlTree tree = new AvlTree(writer, BalancePolicy.values()[policy]);
+            tree.checkpointEpoch = version < 3 ? 0 : buffer.getLong(20);
+            tree.root = link(buffer, headerBytes, balanceBytes, count, tree);
+            tree.rebuildNameIndex();
+            return tree;
+        }
+    }
+
+    private static long checksum(ByteBuffer buffer, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().position(0).limit(length));
+        return crc.getValue();
+    }
+
+    private static AvlTree.AvlNode[] preorder(AvlTree.AvlNode root, int count) {
+        AvlTree.AvlNode[] nodes = new AvlTree.AvlNode[count];
+        AvlTree.AvlNode[] stack = new AvlTree.AvlNode[root == null ? 0 : root.height + 1];
+        int top = 0;
+        int index = 0;
+        if (root != null) {
+            stack[top++] = root;
+        }
+        while (top > 0) {
+            AvlTree.AvlNode node = stack[--top];
+            nodes[index++] = node;
+            if (node.rightChild != null) {
+                stack[top++] = node.rightChild;
+            }
+            if (node.leftChild != null) {
+                stack[top++] = node.leftChild;
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Creates the nodes in preorder and links each one to the attachment point
+     * left by the previous one: the left child slot of the previous node if it
+     * has a left child, else its right child slot if it has a right child, else
+     * the right child slot of the closest ancestor still waiting for its right
+     * child. Those ancestors are kept on a stack.
+     */
+    private static AvlTree.AvlNode link(ByteBuffer buffer, int headerBytes, int balanceBytes, int count, AvlTree tree)
+            throws IOException {
+        int keys = headerBytes;
+        int heights = keys + 4 * count;
+        int shapes = heights + count;
+        int balances = shapes + count;
+        int lengths = balances + balanceBytes * count;
+        int arena = lengths + 4 * count;
+        int arenaEnd = arena + buffer.getInt(12);
+
+        AvlTree.AvlNode[] nodes = new AvlTree.AvlNode[count];
+        AvlTree.AvlNode[] pending = new AvlTree.AvlNode[64];
+        int top = 0;
+        AvlTree.AvlNode parent = null;
+        boolean left = false;
+        byte[] scratch = new byte[64];
+        for (int i = 0; i < count; i++) {
+            int nameLength = buffer.getInt(lengths + 4 * i);
+            if (nameLength < 0 || nameLength > arenaEnd - arena) {
+                throw new IOException("Corrupt checkpoint: bad name length");
+            }
+            if (scratch.length < nameLength) {
+                scratch = new byte[Math.max(nameLength, scratch.length * 2)];
+            }
+            buffer.get(arena, scratch, 0, nameLength);
+            arena += nameLength;
+            AvlTree.AvlNode node = tree.new AvlNode(new String(scratch, 0, nameLength, StandardCharsets.UTF_8),
+                    buffer.getFloat(keys + 4 * i));
+            nodes[i] = node;
+            if (balanceBytes > 0) {
+                byte balance = buffer.get(balances + i);
+                if (tree.policy == BalancePolicy.WAVL) {
+                    node.rank = balance;
+                } else {
+                    node.red = balance == 1;
+                }
+            }
+
+            if (i > 0) {
+                if (parent == null) {
+                    throw new IOException("Corrupt checkpoint: more nodes than the shape allows");
+                }
+                node.parent = parent;
+                if (left) {
+                    parent.leftChild = node;
+                } else {
+                    parent.rightChild = node;
+                }
+            }
+
+            int shape = buffer.get(shapes + i);
+            if ((shape & LEFT) != 0) {
+                if ((shape & RIGHT) != 0) {
+                    if (top == pending.length) {
+                        pending = Arrays.copyOf(pending, top * 2);
+                    }
+                    pending[top++] = node;
+                }
+                parent = node;
+                left = true;
+            } else if ((shape & RIGHT) != 0) {
+                parent = node;
+                left = false;
+            } else {
+                parent = top > 0 ? pending[--top] : null;
+                left = false;
+            }
+        }
+        if (parent != null) {
+            throw new IOException("Corrupt checkpoint: fewer nodes than the shape requires");
+        }
+
+        for (int i = count - 1; i >= 0; i--) {
+            AvlTree.AvlNode node = nodes[i];
+            tree.updateNode(node);
+            if (node.height != buffer.get(heights + i)) {
+                throw new IOException("Corrupt checkpoint: height mismatch");
+            }
+        }
+        return count == 0 ? null : nodes[0];
+    }
+}
@@ -0,0 +1,123 @@
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+
+/**
+ * In-order cursor over the members of an {@link AvlTree}. It moves forwards
+ * and backwards along the parent links, so once it is created it walks the
+ * tree without allocating anything: no iterator objects, no stack and no
+ * copies of the members.
+ *
+ * A cursor starts out unpositioned. {@link #first()}, {@link #last()},
+ * {@link #seek(float)} and {@link #seekFloor(float)} position it in O(log n);
+ * {@link #next()} and {@link #previous()} move it by one member in amortized
+ * O(1). Each of these returns whether the cursor is on a member afterwards.
+ *
+ * The tree must not be modified while the cursor is positioned (a removal can
+ * move a member into another node); moving or reading a cursor after a
+ * modification throws a {@link ConcurrentModificationException}. Positioning it
+ * again makes it usable again.
+ */
+public final class AvlCursor {
+
+    private final AvlTree tree;
+    private AvlTree.AvlNode node;
+    private int modCount;
+
+    AvlCursor(AvlTree tree) {
+        this.tree = tree;
+        this.modCount = tree.modCount;
+    }
+
+    /**
+     * Moves to the lightest member.
+     *
+     * @return Whether the tree has a member.
+     */
+    public boolean first() {
+        return position(tree.root == null ? null : tree.findMinNode(tree.root));
+    }
+
+    /**
+     * Moves to the heaviest member.
+     *
+     * @return Whether the tree has a member.
+     */
+    public boolean last() {
+        return position(tree.root == null ? null : tree.findMaxNode(tree.root));
+    }
+
+    /**
+     * Moves to the lightest member whose grams value is at least the given
+     * value, the start of a forward walk from that value.
+     *
+     * @param gmsValue The lower bound (inclusive).
+     * @return Whether there is such a member.
+     */
+    public boolean seek(float gmsValue) {
+        return position(tree.ceiling(gmsValue));
+    }
+
+    /**
+     * Moves to the heaviest member whose grams value is at most the given value,
+     * the start of a backward walk from that value.
+     *
+     * @param gmsValue The upper bound (inclusive).
+     * @return Whether there is such a member.
+     */
+    public boolean seekFloor(float gmsValue) {
+        return position(tree.floor(gmsValue));
+    }
+
+    /**
+     * Moves to the next heavier member.
+     *
+     * @return Whether there is one; if not, the cursor is unpositioned.
+     * @throws NoSuchElementException if the cursor is not on a member.
+     */
+    public boolean next() {
+        node = tree.successor(current());
+        return node != null;
+    }
+
+    /**
+     * Moves to the next lighter member.
+     *
+     * @return Whether there is one; if not, the cursor is unpositioned.
+     * @throws NoSuchElementException if the cursor is not on a member.
+     */
+    public boolean previous() {
+        node = tree.predecessor(current());
+        return node != null;
+    }
+
+    /**
+     * Returns whether the cursor is on a member.
+     */
+    public boolean isValid() {
+        return node != null;
+    }
+
+    public String name() {
+        return current().name;
+    }
+
+    public float gmsValue() {
+        return current().gmsValue;
+    }
+
+    private boolean position(AvlTree.AvlNode node) {
+        this.node = node;
+        this.modCount = tree.modCount;
+        return node != null;
+    }
+
+    private AvlTree.AvlNode current() {
+        if (tree.modCount != modCount) {
+            throw new ConcurrentModificationException("The tree was modified after the cursor was positioned");
+        }
+        if (node == null) {
+            throw new NoSuchElementException("The cursor is not on a member");
+        }
+        return node;
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.IOException;
+
+/**
+ * Receives the log of an {@link AvlTree}: the members that welcome a new member
+ * on its way down, the members that leave the family, and the results of the
+ * analyses. The events carry the names and grams values as they are; how (and
+ * whether) they are written is up to the sink.
+ *
+ * Three sinks are provided: {@link TextEventSink} writes the text log of the
+ * command line program, {@link BinaryEventSink} writes a compact binary record
+ * per event, and {@link NoOpEventSink} drops all events. Since no event builds
+ * a string before it reaches the sink, a tree with the no-op sink does no work
+ * for its log at all once the JIT has inlined the empty calls.
+ *
+ * The results listing several members (rank, range and nearest analyses) are
+ * reported as a begin event, one {@link #member} event per member and an
+ * {@link #endList} event.
+ */
+public interface AvlEventSink {
+
+    /**
+     * A member on the way down from the root welcomes a new member.
+     *
+     * @param welcomer The name of the welcoming member.
+     * @param newcomer The name of the new member.
+     * @throws IOException if the sink fails to write the event.
+     */
+    void welcomed(String welcomer, String newcomer) throws IOException;
+
+    /**
+     * A member leaves the family.
+     *
+     * @param name        The name of the leaving member.
+     * @param replacement The name of the member taking its place, or null if
+     *                    nobody does.
+     * @throws IOException if the sink fails to write the event.
+     */
+    void leftFamily(String name, String replacement) throws IOException;
+
+    /**
+     * The result of a target analysis.
+     *
+     * @throws IOException if the sink fails to write the event.
+     */
+    void target(String name, float gmsValue) throws IOException;
+
+    /**
+     * The result of a division analysis.
+     *
+     * @throws IOException if the sink fails to write the event.
+     */
+    void divide(int result) throws IOException;
+
+    /**
+     * The result of a rank of analysis: the number of lighter members.
+     *
+     * @throws IOException if the sink fails to write the event.
+     */
+    void rankOf(int rank) throws IOException;
+
+    /**
+     * The result of a count analysis.
+     *
+     * @throws IOException if the sink fails to write the event.
+     */
+    void count(int count) throws IOException;
+
+    /**
+     * The result of a select analysis.
+     *
+     * @throws IOException if the sink fails to write the event.
+     */
+    void select(String name, float gmsValue) throws IOException;
+
+    /**
+     * The result of a floor analysis.
+     *
+     * @throws IOException if the sink fails to write the event.
+     */
+    void floor(String name, float gmsValue) throws IOException;
+
+    /**
+     * The result of a ceiling analysis.
+     *
+     * @throws IOException if the sink fails to write the event.
+     */
+    void ceiling(String name, float gmsValue) throws IOException;
+
+    /**
+     * Starts the result of a rank analysis.
+     *
+     * @throws IOException if the sink fails to write the event.
+     */
+    void rankBegin() throws IOException;
+
+    /**
+     * Starts the result of a range analysis.
+     *
+     * @throws IOException if the sink fails to write the event.
+     */
+    void rangeBegin() throws IOException;
+
+    /**
+     * Starts the result of a nearest analysis.
+     *
+     * @throws IOException if the sink fails to write the event.
+     */
+    void nearestBegin() throws IOException;
+
+    /**
+     * A member of the result started last.
+     *
+     * @throws IOException if the sink fails to write the event.
+     */
+    void member(String name, float gmsValue) throws IOException;
+
+    /**
+     * Ends the result started last.
+     *
+     * @throws IOException if the sink fails to write the event.
+     */
+    void endList() throws IOException;
+}
@@ -0,0 +1,306 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide operation counters of the AVL trees and latency histograms of
+ * the parsed commands.
+ *
+ * The metrics are switched on with -Davl.metrics=true. Every recording call
+ * site is guarded by the static final {@link #ENABLED} flag, which the JIT
+ * treats as a constant, so with the metrics off the guarded code is removed
+ * from the compiled hot paths.
+ *
+ * Counted are the single rotations (a double rotation counts as one double
+ * rotation and two single rotations), the descents from the root by insert,
+ * delete, searchNodeRank and intel_targeter with the number of nodes they
+ * compare against, the depth they reach, and the hits and misses of the
+ * {@link QueryCache query result caches}. Command latencies are kept in
+ * histograms with power of two buckets, one per command type.
+ */
+public final class AvlMetrics implements AvlMetricsMBean {
+
+    public static final boolean ENABLED = Boolean.getBoolean("avl.metrics");
+
+    public static final String OBJECT_NAME = "AvlTree:type=Metrics";
+
+    /**
+     * Command type names, indexed by the command type constants of
+     * {@link CommandBatch}.
+     */
+    private static final String[] COMMAND_TYPES = { "MEMBER_IN", "MEMBER_OUT", "INTEL_TARGET", "INTEL_RANK",
+            "INTEL_DIVIDE", "INTEL_RANK_OF", "INTEL_SELECT", "INTEL_COUNT", "MEMBER_OUT_BY_NAME",
+            "INTEL_RANK_BY_NAME", "INTEL_FLOOR", "INTEL_CEILING", "INTEL_RANGE", "INTEL_NEAREST" };
+
+    /** Bucket b counts the latencies of at least 2^(b - 1) and below 2^b nanoseconds. */
+    private static final int BUCKETS = 64;
+    private static final int MAX_TRACKED_DEPTH = 64;
+
+    private static final LongAdder rotations = new LongAdder();
+    private static final LongAdder doubleRotations = new LongAdder();
+    private static final LongAdder descents = new LongAdder();
+    private static final LongAdder comparisons = new LongAdder();
+    private static final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    private static final LongAdder queryCacheHits = new LongAdder();
+    private static final LongAdder queryCacheMisses = new LongAdder();
+    private static final AtomicLongArray depthCounts = new AtomicLongArray(MAX_TRACKED_DEPTH);
+    private static final AtomicLongArray latencies = new AtomicLongArray(COMMAND_TYPES.length * BUCKETS);
+    private static final AtomicLongArray totalNanos = new AtomicLongArray(COMMAND_TYPES.length);
+
+    private AvlMetrics() {
+    }
+
+    public static void rotation() {
+        rotations.increment();
+    }
+
+    public static void doubleRotation() {
+        doubleRotations.increment();
+    }
+
+    /**
+     * Returns the number of single rotations so far, including the two of every
+     * double rotation.
+     */
+    public static long rotationCount() {
+        return rotations.sum();
+    }
+
+    /**
+     * Records a descent from the root.
+     *
+     * @param nodes The number of nodes compared against on the way down. The
+     *              depth reached is one less.
+     */
+    public static void descent(int nodes) {
+        descents.increment();
+        comparisons.add(nodes);
+        int depth = Math.max(nodes - 1, 0);
+        maxDepth.accumulate(depth);
+        depthCounts.incrementAndGet(Math.min(depth, MAX_TRACKED_DEPTH - 1));
+    }
+
+    public static void queryCacheHit() {
+        queryCacheHits.increment();
+    }
+
+    public static void queryCacheMiss() {
+        queryCacheMisses.increment();
+    }
+
+    /**
+     * Records the latency of a command.
+     *
+     * @param type      A command type constant of {@link CommandBatch}.
+     * @param startNanos The {@link System#nanoTime()} at the start of the command.
+     */
+    public static void command(byte type, long startNanos) {
+        long nanos = Math.max(System.nanoTime() - startNanos, 0);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+        latencies.incrementAndGet(type * BUCKETS + bucket);
+        totalNanos.addAndGet(type, nanos);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, unless they are
+     * registered already.
+     */
+    public static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new AvlMetrics(), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // Registered by an earlier call.
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register " + OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Prints the report to the given stream every interval seconds, from a daemon
+     * thread.
+     *
+     * @return The executor running the dump, to be shut down by the caller.
+     */
+    public static ScheduledExecutorService startPeriodicDump(PrintStream out, long intervalSeconds) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "avl-metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> out.print(report()), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return executor;
+    }
+
+    private static long commandCount(int type) {
+        long count = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            count += latencies.get(type * BUCKETS + b);
+        }
+        return count;
+    }
+
+    private static long percentile(int type, double percentile) {
+        long count = commandCount(type);
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += latencies.get(type * BUCKETS + b);
+            if (seen >= Math.max(rank, 1)) {
+                return b == 0 ? 0 : 1L << Math.min(b, 62);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static int commandType(String name) {
+        for (int type = 0; type < COMMAND_TYPES.length; type++) {
+            if (COMMAND_TYPES[type].equals(name)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown command type: " + name);
+    }
+
+    /**
+     * Formats all counters and the latency summary of every command type that was
+     * timed at least once.
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT,
+                "avl metrics: rotations=%d doubleRotations=%d descents=%d comparisons=%d meanDepth=%.2f maxDepth=%d%n",
+                rotations.sum(), doubleRotations.sum(), descents.sum(), comparisons.sum(), meanDepth(), maxDepth.get()));
+        long cacheLookups = queryCacheHits.sum() + queryCacheMisses.sum();
+        if (cacheLookups > 0) {
+            report.append(String.format(Locale.ROOT, "  query cache hits=%d misses=%d hitRate=%.3f%n",
+                    queryCacheHits.sum(), queryCacheMisses.sum(), (double) queryCacheHits.sum() / cacheLookups));
+        }
+        for (int type = 0; type < COMMAND_TYPES.length; type++) {
+            long count = commandCount(type);
+            if (count == 0) {
+                continue;
+            }
+            report.append(String.format(Locale.ROOT, "  %s count=%d mean=%.0fns p50<=%dns p99<=%dns max<=%dns%n",
+                    COMMAND_TYPES[type], count, (double) totalNanos.get(type) / count, percentile(type, 50),
+                    percentile(type, 99), percentile(type, 100)));
+        }
+        return report.toString();
+    }
+
+    private static double meanDepth() {
+        long count = 0;
+        long total = 0;
+        for (int depth = 0; depth < MAX_TRACKED_DEPTH; depth++) {
+            long atDepth = depthCounts.get(depth);
+            count += atDepth;
+            total += atDepth * depth;
+        }
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    @Override
+    public long getRotations() {
+        return rotations.sum();
+    }
+
+    @Override
+    public long getDoubleRotations() {
+        return doubleRotations.sum();
+    }
+
+    @Override
+    public long getDescents() {
+        return descents.sum();
+    }
+
+    @Override
+    public long getComparisons() {
+        return comparisons.sum();
+    }
+
+    @Override
+    public double getMeanDepth() {
+        return meanDepth();
+    }
+
+    @Override
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    @Override
+    public long getQueryCacheHits() {
+        return queryCacheHits.sum();
+    }
+
+    @Override
+    public long getQueryCacheMisses() {
+        return queryCacheMisses.sum();
+    }
+
+    @Override
+    public String[] getCommandTypes() {
+        return COMMAND_TYPES.clone();
+    }
+
+    @Override
+    public long[] getCommandCounts() {
+        long[] counts = new long[COMMAND_TYPES.length];
+        for (int type = 0; type < counts.length; type++) {
+            counts[type] = commandCount(type);
+        }
+        return counts;
+    }
+
+    @Override
+    public double[] getCommandMeanNanos() {
+        double[] means = new double[COMMAND_TYPES.length];
+        for (int type = 0; type < means.length; type++) {
+            long count = commandCount(type);
+            means[type] = count == 0 ? 0 : (double) totalNanos.get(type) / count;
+        }
+        return means;
+    }
+
+    @Override
+    public long getLatencyPercentileNanos(String commandType, double percentile) {
+        return percentile(commandType(commandType), percentile);
+    }
+
+    @Override
+    public String getReport() {
+        return report();
+    }
+
+    @Override
+    public void reset() {
+        rotations.reset();
+        doubleRotations.reset();
+        descents.reset();
+        comparisons.reset();
+        maxDepth.reset();
+        queryCacheHits.reset();
+        queryCacheMisses.reset();
+        for (int i = 0; i < depthCounts.length(); i++) {
+            depthCounts.set(i, 0);
+        }
+        for (int i = 0; i < latencies.length(); i++) {
+            latencies.set(i, 0);
+        }
+        for (int i = 0; i < totalNanos.length(); i++) {
+            totalNanos.set(i, 0);
+        }
+    }
+}
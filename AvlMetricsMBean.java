@@ -0,0 +1,42 @@
+/**
+ * JMX view of {@link AvlMetrics}. Registered under {@link AvlMetrics#OBJECT_NAME}
+ * when the metrics are enabled.
+ */
+public interface AvlMetricsMBean {
+
+    long getRotations();
+
+    long getDoubleRotations();
+
+    long getDescents();
+
+    long getComparisons();
+
+    double getMeanDepth();
+
+    long getMaxDepth();
+
+    long getQueryCacheHits();
+
+    long getQueryCacheMisses();
+
+    String[] getCommandTypes();
+
+    long[] getCommandCounts();
+
+    double[] getCommandMeanNanos();
+
+    /**
+     * Returns an upper bound of the given latency percentile of a command type,
+     * accurate to a power of two.
+     *
+     * @param commandType One of {@link #getCommandTypes()}.
+     * @param percentile  The percentile, between 0 and 100.
+     * @return The percentile in nanoseconds, or 0 if no such command was timed.
+     */
+    long getLatencyPercentileNanos(String commandType, double percentile);
+
+    String getReport();
+
+    void reset();
+}
@@ -0,0 +1,127 @@
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the members of an {@link AvlTree} in ascending grams
+ * order, for (parallel) streams over the tree that do not copy it into a list.
+ *
+ * A spliterator covers a range of positions [from, to) in grams order. The
+ * subtree sizes give every range its exact size, so the spliterator and all
+ * its splits are SIZED. A split cuts the range at the member where the paths
+ * to its first and last members part (their lowest common ancestor), so the
+ * two halves are the members on either side of a subtree root: close to even
+ * halves, since the subtrees of a balanced tree are balanced, and found in
+ * O(log n) without touching the members themselves. The first member of a
+ * range is looked up by position when the traversal starts, after which the
+ * members are followed along the parent links.
+ *
+ * The tree must not be modified while it is traversed; a modification is
+ * detected and reported with a {@link ConcurrentModificationException}.
+ */
+public final class AvlSpliterator implements Spliterator<AvlTree.AvlNode> {
+
+    private static final Comparator<AvlTree.AvlNode> GMS_ORDER = (a, b) -> Float.compare(a.gmsValue, b.gmsValue);
+
+    private final AvlTree tree;
+    private final int modCount;
+    private int from;
+    private final int to;
+    /** The member at position from, or null if it is not looked up yet. */
+    private AvlTree.AvlNode next;
+
+    AvlSpliterator(AvlTree tree) {
+        this(tree, tree.modCount, 0, tree.size(), null);
+    }
+
+    private AvlSpliterator(AvlTree tree, int modCount, int from, int to, AvlTree.AvlNode next) {
+        this.tree = tree;
+        this.modCount = modCount;
+        this.from = from;
+        this.to = to;
+        this.next = next;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super AvlTree.AvlNode> action) {
+        checkModCount();
+        if (from >= to) {
+            return false;
+        }
+        AvlTree.AvlNode node = next != null ? next : tree.select(from);
+        from++;
+        next = from < to ? tree.successor(node) : null;
+        action.accept(node);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super AvlTree.AvlNode> action) {
+        checkModCount();
+        if (from >= to) {
+            return;
+        }
+        AvlTree.AvlNode node = next != null ? next : tree.select(from);
+        int remaining = to - from;
+        from = to;
+        next = null;
+        for (; remaining > 1; remaining--) {
+            action.accept(node);
+            node = tree.successor(node);
+        }
+        action.accept(node);
+        checkModCount();
+    }
+
+    /**
+     * Splits off the members before the lowest common ancestor of the second and
+     * the last member of the range, so that both parts are non-empty.
+     */
+    @Override
+    public Spliterator<AvlTree.AvlNode> trySplit() {
+        checkModCount();
+        if (to - from < 2) {
+            return null;
+        }
+        int lo = from + 1;
+        int hi = to - 1;
+        AvlTree.AvlNode current = tree.root;
+        int before = 0;
+        while (true) {
+            int position = before + (current.leftChild == null ? 0 : current.leftChild.size);
+            if (hi < position) {
+                current = current.leftChild;
+            } else if (lo > position) {
+                before = position + 1;
+                current = current.rightChild;
+            } else {
+                Spliterator<AvlTree.AvlNode> prefix = new AvlSpliterator(tree, modCount, from, position, next);
+                from = position;
+                next = current;
+                return prefix;
+            }
+        }
+    }
+
+    @Override
+    public long estimateSize() {
+        return to - from;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SORTED | DISTINCT | NONNULL | SIZED | SUBSIZED;
+    }
+
+    @Override
+    public Comparator<? super AvlTree.AvlNode> getComparator() {
+        return GMS_ORDER;
+    }
+
+    private void checkModCount() {
+        if (tree.modCount != modCount) {
+            throw new ConcurrentModificationException("The tree was modified during the traversal");
+        }
+    }
+}
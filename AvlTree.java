@@ -1,10 +1,17 @@
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.lang.annotation.Retention;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.lang.model.util.ElementScanner14;
 import javax.swing.text.html.parser.Element;
@@ -12,15 +19,25 @@ import javax.xml.crypto.Data;
 
 import org.w3c.dom.Node;
 
-public class AvlTree {
+public class AvlTree implements Iterable<AvlTree.AvlNode> {
 
     class AvlNode {
         String name;
         float gmsValue;
         int height;
+        int size;
+        int withRoot;
+        int withoutRoot;
         AvlNode leftChild;
         AvlNode rightChild;
         AvlNode parent;
+        /** Rank of the node under {@link BalancePolicy#WAVL}. */
+        byte rank;
+        /** Color of the node under {@link BalancePolicy#RED_BLACK}. */
+        boolean red;
+        /** Neighbours among the members of the same name, see {@link NameIndex}. */
+        AvlNode newerSameName;
+        AvlNode olderSameName;
 
         public AvlNode() {
             this(null, -1, null, 0, null, null);
@@ -31,6 +48,9 @@ public class AvlTree {
             this.gmsValue = gmsValue;
             this.parent = parent;
             this.height = height;
+            this.size = 1;
+            this.withRoot = 1;
+            this.withoutRoot = 0;
             this.leftChild = leftChild;
             this.rightChild = rightChild;
         }
@@ -55,6 +75,10 @@ public class AvlTree {
             return height;
         }
 
+        public int getSize() {
+            return size;
+        }
+
         public AvlNode getLeftChild() {
             return leftChild;
         }
@@ -70,9 +94,37 @@ public class AvlTree {
     }
 
     AvlNode root;
+    final NameIndex nameIndex = new NameIndex();
 
     File output;
-    FileWriter myWriter;
+    /** Receives the log of the tree: welcomes, departures and analysis results. */
+    AvlEventSink events;
+    /** The member events of {@link #events} as a visitor, created once per sink for the rank walk. */
+    private MemberVisitor memberEvents;
+
+    /**
+     * Number of structural modifications, incremented by every operation that
+     * adds, removes or moves members. A {@link FrozenAvlTree} is valid while this
+     * count is unchanged since it was frozen.
+     */
+    int modCount;
+
+    final BalancePolicy policy;
+
+    /**
+     * Epoch of the checkpoint the tree was restored from or last saved to, 0 if
+     * there is none. A {@link CommandJournal} continues one epoch, so that replay
+     * can skip records that a later checkpoint already holds.
+     */
+    long checkpointEpoch;
+
+    /**
+     * Receives the members found by a level walk, in the form of
+     * {@link AvlEventSink#member}.
+     */
+    interface MemberVisitor {
+        void visit(String name, float gmsValue) throws IOException;
+    }
 
     public AvlTree(String outputName) throws IOException {
         this(null, outputName);
@@ -81,8 +133,65 @@ public class AvlTree {
 
     public AvlTree(AvlNode root, String outputName) throws IOException {
         output = new File(outputName);
-        myWriter = new FileWriter(outputName);
+        events = new TextEventSink(new FileWriter(outputName));
+        memberEvents = events::member;
+        this.policy = BalancePolicy.AVL;
         this.root = root;
+        rebuildNameIndex();
+    }
+
+    /**
+     * Creates an empty AVL tree that logs its operations to the given writer
+     * instead of opening an output file itself.
+     *
+     * @param writer The writer that receives the operation log.
+     */
+    public AvlTree(Writer writer) {
+        this(writer, BalancePolicy.AVL);
+    }
+
+    /**
+     * Creates an empty tree that logs its operations to the given writer and
+     * keeps its shape balanced by the given policy.
+     *
+     * @param writer The writer that receives the operation log.
+     * @param policy The balance policy of the tree.
+     */
+    public AvlTree(Writer writer, BalancePolicy policy) {
+        this(new TextEventSink(writer), policy);
+    }
+
+    /**
+     * Creates an empty tree that reports its log to the given event sink and
+     * keeps its shape balanced by the given policy.
+     *
+     * @param events The sink that receives the log.
+     * @param policy The balance policy of the tree.
+     */
+    public AvlTree(AvlEventSink events, BalancePolicy policy) {
+        this.events = events;
+        this.memberEvents = events::member;
+        this.policy = policy;
+    }
+
+    public BalancePolicy getBalancePolicy() {
+        return policy;
+    }
+
+    public AvlEventSink getEventSink() {
+        return events;
+    }
+
+    /**
+     * Replaces the sink that receives the log of the tree, for example with
+     * {@link NoOpEventSink#INSTANCE} while replaying commands that were logged
+     * before.
+     *
+     * @param events The new sink.
+     */
+    public void setEventSink(AvlEventSink events) {
+        this.events = events;
+        this.memberEvents = events::member;
     }
 
     public boolean isEmpty() {
@@ -102,6 +211,70 @@ public class AvlTree {
         return findMinNode(this.root);
     }
 
+    /**
+     * Refills the name index from the current tree, for code paths that replace
+     * the tree as a whole.
+     */
+    void rebuildNameIndex() {
+        nameIndex.clear();
+        for (AvlNode node = isEmpty() ? null : findMinNode(root); node != null; node = successor(node)) {
+            nameIndex.put(node.name, node);
+        }
+    }
+
+    /**
+     * Finds a member by name in O(1) through the name index. If several members
+     * share the name, this is the newest of them, see {@link NameIndex}; once it
+     * leaves the tree, the next older one is found.
+     *
+     * @param name The name of the member.
+     * @return The node holding the member, or null if no member has this name.
+     */
+    public AvlNode findByName(String name) {
+        return nameIndex.get(name);
+    }
+
+    /**
+     * Writes a binary checkpoint of the tree, see {@link AvlCheckpoint}, and moves
+     * the tree to the epoch of the new checkpoint.
+     *
+     * @param file The checkpoint file.
+     * @throws IOException if the file cannot be written.
+     */
+    public void writeCheckpoint(File file) throws IOException {
+        AvlCheckpoint.write(this, file, checkpointEpoch + 1);
+        checkpointEpoch++;
+    }
+
+    public long getCheckpointEpoch() {
+        return checkpointEpoch;
+    }
+
+    /**
+     * Restores a tree from a binary checkpoint in O(n). The restored tree has
+     * exactly the shape of the saved one, so all later results are the same as if
+     * the saved tree had been used.
+     *
+     * @param file   The checkpoint file.
+     * @param writer The writer that receives the operation log.
+     * @return The restored tree.
+     * @throws IOException if the file cannot be read or is not a valid checkpoint.
+     */
+    public static AvlTree restoreCheckpoint(File file, Writer writer) throws IOException {
+        return AvlCheckpoint.read(file, writer);
+    }
+
+    /**
+     * Copies the tree into a read-only array layout that answers the target and
+     * rank analyses with fewer cache misses, see {@link FrozenAvlTree}. The copy
+     * is valid until the tree is next modified.
+     *
+     * @return The frozen copy.
+     */
+    public FrozenAvlTree freeze() {
+        return new FrozenAvlTree(this);
+    }
+
     /**
      * Gets the height of an AVL node. The height of a null node is considered to be
      * -1,
@@ -118,6 +291,49 @@ public class AvlTree {
         return node.height;
     }
 
+    /**
+     * Gets the number of nodes in the subtree rooted at an AVL node. The size of a
+     * null node is 0.
+     *
+     * @param node The AVL node for which the subtree size is to be determined.
+     * @return The number of nodes in the subtree, or 0 if the node is null.
+     */
+    private int avlNodeSize(AvlNode node) {
+        if (node == null) {
+            return 0;
+        }
+        return node.size;
+    }
+
+    /**
+     * Recomputes the values an AVL node keeps about its subtree (height, size and
+     * the two division analysis values) from the values of its children. The
+     * children must already be up to date.
+     *
+     * @param node The AVL node to update.
+     */
+    void updateNode(AvlNode node) {
+        AvlNode left = node.leftChild;
+        AvlNode right = node.rightChild;
+        node.height = Math.max(avlNodeHeight(left), avlNodeHeight(right)) + 1;
+        node.size = avlNodeSize(left) + avlNodeSize(right) + 1;
+        int leftWith = left == null ? 0 : left.withRoot;
+        int leftWithout = left == null ? 0 : left.withoutRoot;
+        int rightWith = right == null ? 0 : right.withRoot;
+        int rightWithout = right == null ? 0 : right.withoutRoot;
+        node.withRoot = leftWithout + rightWithout + 1;
+        node.withoutRoot = Math.max(leftWith, leftWithout) + Math.max(rightWith, rightWithout);
+    }
+
+    /**
+     * Returns the number of members in the AVL tree.
+     *
+     * @return The number of members.
+     */
+    public int size() {
+        return avlNodeSize(this.root);
+    }
+
     /**
      * Finds and returns the minimum node in a given subtree rooted at the specified
      * node.
@@ -127,7 +343,7 @@ public class AvlTree {
      * @param node The root node of the subtree in which to find the minimum node.
      * @return The minimum node in the specified subtree.
      */
-    private AvlNode findMinNode(AvlNode node) {
+    AvlNode findMinNode(AvlNode node) {
         while (node.leftChild != null) {
             node = node.leftChild;
         }
@@ -156,96 +372,212 @@ public class AvlTree {
      * @param node The root node of the subtree in which to find the maximum node.
      * @return The maximum node in the specified subtree.
      */
-    private AvlNode findMaxNode(AvlNode node) {
+    AvlNode findMaxNode(AvlNode node) {
         while (node.rightChild != null) {
             node = node.rightChild;
         }
         return node;
     }
 
+    /**
+     * Inserts a new member with the specified name and grams value into the AVL
+     * tree. Every member on the way down from the root welcomes the new member
+     * in the log. If a member with the same grams value already exists, nothing
+     * is inserted.
+     * The descent and the rebalancing walk back up (through the parent links) are
+     * iterative. Rotations stop as soon as a subtree keeps its height, and the
+     * division values stop being recomputed once they are unchanged too, after
+     * which only the subtree sizes of the remaining ancestors are incremented.
+     *
+     * @param name     The name associated with the grams value to be inserted.
+     * @param gmsValue The grams value to be inserted.
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
     public void insert(String name, float gmsValue) throws IOException {
-        this.root = this.insert(name, gmsValue, this.root, null);
-
+        insert(name, gmsValue, true);
     }
 
     /**
-     * Inserts a new node with the specified name and grams value into the AVL tree
-     * rooted at the given node.
-     * If a node with the same grams value already exists in the tree, it will not
-     * be inserted.
+     * Inserts a new member, optionally without writing the welcome lines.
      *
      * @param name     The name associated with the grams value to be inserted.
      * @param gmsValue The grams value to be inserted.
-     * @param node     The current node in the tree where insertion is being
-     *                 performed.
-     * @param parent   The parent node of the current node (null if the current node
-     *                 is the root).
-     * @return The root of the updated AVL tree after insertion.
+     * @param logging  Whether the welcome lines are written.
      * @throws IOException if there's an issue writing to an external resource
      *                     (e.g., a file) for logging.
      */
-    private AvlNode insert(String name, float gmsValue, AvlNode node, AvlNode parent) throws IOException {
-        if (node == null) {
-            return new AvlNode(name, gmsValue, parent);
+    private void insert(String name, float gmsValue, boolean logging) throws IOException {
+        AvlNode parent = null;
+        AvlNode current = root;
+        int visited = 0;
+        while (current != null) {
+            visited++;
+            if (gmsValue < current.gmsValue) {
+                if (logging) {
+                    events.welcomed(current.name, name);
+                }
+                parent = current;
+                current = current.leftChild;
+            } else if (gmsValue > current.gmsValue) {
+                if (logging) {
+                    events.welcomed(current.name, name);
+                }
+                parent = current;
+                current = current.rightChild;
+            } else {
+                if (AvlMetrics.ENABLED) {
+                    AvlMetrics.descent(visited);
+                }
+                return;
+            }
+        }
+        if (AvlMetrics.ENABLED) {
+            AvlMetrics.descent(visited);
+        }
+
+        modCount++;
+        AvlNode node = new AvlNode(name, gmsValue, parent);
+        nameIndex.put(name, node);
+        if (parent == null) {
+            root = node;
+        } else if (gmsValue < parent.gmsValue) {
+            parent.leftChild = node;
+        } else {
+            parent.rightChild = node;
+        }
+        if (policy == BalancePolicy.AVL) {
+            retraceInsert(parent, gmsValue);
+        } else {
+            if (policy == BalancePolicy.WAVL) {
+                wavlInsertFixup(node);
+            } else {
+                redBlackInsertFixup(node);
+            }
+            refreshPath(node);
         }
-        if (gmsValue < node.getGmsValue()) {
+    }
 
-            myWriter.write(node.name + " welcomed " + name + "\n");
-            node.leftChild = insert(name, gmsValue, node.leftChild, node);
+    /**
+     * Walks from the parent of a newly inserted leaf up to the root, updating the
+     * nodes and rotating where the insertion unbalanced a subtree.
+     *
+     * @param node     The parent of the inserted leaf.
+     * @param gmsValue The grams value of the inserted leaf, used to pick between a
+     *                 single and a double rotation.
+     */
+    private void retraceInsert(AvlNode node, float gmsValue) {
+        boolean rebalancing = true;
+        boolean updating = true;
+        while (node != null) {
+            AvlNode parent = node.parent;
+            if (!updating) {
+                node.size++;
+                node = parent;
+                continue;
+            }
 
-            if (avlNodeHeight(node.leftChild) - avlNodeHeight(node.rightChild) > 1) {
+            int oldHeight = node.height;
+            int oldWithRoot = node.withRoot;
+            int oldWithoutRoot = node.withoutRoot;
+            AvlNode subtree = node;
+            if (!rebalancing) {
+                updateNode(node);
+            } else if (avlNodeHeight(node.leftChild) - avlNodeHeight(node.rightChild) > 1) {
                 if (gmsValue < node.leftChild.gmsValue) {
-                    node = srWithLeftChild(node);
+                    subtree = srWithLeftChild(node);
                 } else {
-                    node = drWithLeftChild(node);
+                    subtree = drWithLeftChild(node);
                 }
-            }
-        } else if (gmsValue > node.getGmsValue()) {
-            myWriter.write(node.name + " welcomed " + name + "\n");
-            node.rightChild = insert(name, gmsValue, node.rightChild, node);
-
-            if (avlNodeHeight(node.rightChild) - avlNodeHeight(node.leftChild) > 1) {
+                replaceChild(parent, node, subtree);
+            } else if (avlNodeHeight(node.rightChild) - avlNodeHeight(node.leftChild) > 1) {
                 if (gmsValue > node.rightChild.gmsValue) {
-                    node = srWithRightChild(node);
+                    subtree = srWithRightChild(node);
                 } else {
-                    node = drWithRightChild(node);
+                    subtree = drWithRightChild(node);
                 }
+                replaceChild(parent, node, subtree);
+            } else {
+                updateNode(node);
+            }
+
+            if (subtree.height == oldHeight) {
+                rebalancing = false;
+                updating = subtree.withRoot != oldWithRoot || subtree.withoutRoot != oldWithoutRoot;
             }
+            node = parent;
         }
+    }
 
-        node.height = Math.max(avlNodeHeight(node.leftChild), avlNodeHeight(node.rightChild)) + 1;
-        return node;
+    /**
+     * Puts a new subtree root in the place of the old one, below the given parent
+     * or at the root of the tree.
+     *
+     * @param parent   The parent of the old subtree root (null if it was the root
+     *                 of the tree).
+     * @param oldChild The old subtree root.
+     * @param newChild The new subtree root (may be null).
+     */
+    private void replaceChild(AvlNode parent, AvlNode oldChild, AvlNode newChild) {
+        if (newChild != null) {
+            newChild.parent = parent;
+        }
+        if (parent == null) {
+            root = newChild;
+        } else if (parent.leftChild == oldChild) {
+            parent.leftChild = newChild;
+        } else {
+            parent.rightChild = newChild;
+        }
     }
 
     /**
      * Performs a single right rotation (SR) on the given AVL node to fix an
-     * imbalance.
+     * imbalance. The parent links of the moved nodes are updated; the caller links
+     * the returned node to the old parent of the given node.
      *
      * @param node The AVL node where the single right rotation is performed.
      * @return The new root node after the rotation.
      */
     private AvlNode srWithLeftChild(AvlNode node) {
+        if (AvlMetrics.ENABLED) {
+            AvlMetrics.rotation();
+        }
         AvlNode tempNode = node.leftChild;
         node.leftChild = tempNode.rightChild;
+        if (node.leftChild != null) {
+            node.leftChild.parent = node;
+        }
         tempNode.rightChild = node;
-        node.height = Math.max(avlNodeHeight(node.leftChild), avlNodeHeight(node.rightChild)) + 1;
-        tempNode.height = Math.max(avlNodeHeight(tempNode.leftChild), avlNodeHeight(tempNode.rightChild)) + 1;
+        tempNode.parent = node.parent;
+        node.parent = tempNode;
+        updateNode(node);
+        updateNode(tempNode);
         return tempNode;
     }
 
     /**
      * Performs a single left rotation (SR) on the given AVL node to fix an
-     * imbalance.
+     * imbalance. The parent links of the moved nodes are updated; the caller links
+     * the returned node to the old parent of the given node.
      *
      * @param node The AVL node where the single left rotation is performed.
      * @return The new root node after the rotation.
      */
     private AvlNode srWithRightChild(AvlNode node) {
+        if (AvlMetrics.ENABLED) {
+            AvlMetrics.rotation();
+        }
         AvlNode tempNode = node.rightChild;
         node.rightChild = tempNode.leftChild;
+        if (node.rightChild != null) {
+            node.rightChild.parent = node;
+        }
         tempNode.leftChild = node;
-        node.height = Math.max(avlNodeHeight(node.leftChild), avlNodeHeight(node.rightChild)) + 1;
-        tempNode.height = Math.max(avlNodeHeight(tempNode.leftChild), avlNodeHeight(tempNode.rightChild)) + 1;
+        tempNode.parent = node.parent;
+        node.parent = tempNode;
+        updateNode(node);
+        updateNode(tempNode);
         return tempNode;
     }
 
@@ -260,6 +592,9 @@ public class AvlTree {
      * @return The new root node after the double right-left rotation.
      */
     private AvlNode drWithLeftChild(AvlNode node) {
+        if (AvlMetrics.ENABLED) {
+            AvlMetrics.doubleRotation();
+        }
         node.leftChild = srWithRightChild(node.leftChild);
         return srWithLeftChild(node);
     }
@@ -275,6 +610,9 @@ public class AvlTree {
      * @return The new root node after the double left-right rotation.
      */
     private AvlNode drWithRightChild(AvlNode node) {
+        if (AvlMetrics.ENABLED) {
+            AvlMetrics.doubleRotation();
+        }
         node.rightChild = srWithLeftChild(node.rightChild);
         return srWithRightChild(node);
     }
@@ -300,129 +638,1398 @@ public class AvlTree {
             } else if (gmsValue > current.gmsValue) {
                 current = current.rightChild;
             } else {
+                if (AvlMetrics.ENABLED) {
+                    AvlMetrics.descent(i + 1);
+                }
                 return i;
             }
             i++;
         }
+        if (AvlMetrics.ENABLED) {
+            AvlMetrics.descent(i);
+        }
         return -1;
     }
 
     /**
-     * Calculates the balance factor of an AVL node, which is the difference between
-     * the height
-     * of the left subtree and the height of the right subtree.
+     * Returns the number of members that are lighter than the given grams value.
+     * This is the position the value has, or would have, in the sorted order of
+     * all members.
      *
-     * @param node The AVL node for which to calculate the balance factor.
-     * @return The balance factor of the node (positive if left-heavy, negative if
-     *         right-heavy, 0 if balanced).
+     * @param gmsValue The grams value to rank.
+     * @return The number of members with a grams value smaller than gmsValue.
      */
-    private int calculateBalance(AvlNode node) {
-        if (node == null) {
-            return 0;
+    public int rankOf(float gmsValue) {
+        AvlNode current = root;
+        int rank = 0;
+        while (current != null) {
+            if (gmsValue <= current.gmsValue) {
+                current = current.leftChild;
+            } else {
+                rank += avlNodeSize(current.leftChild) + 1;
+                current = current.rightChild;
+            }
         }
-        return avlNodeHeight(node.leftChild) - avlNodeHeight(node.rightChild);
+        return rank;
+    }
 
+    /**
+     * Returns the number of members whose grams value is smaller than or equal to
+     * the given grams value.
+     *
+     * @param gmsValue The upper bound (inclusive).
+     * @return The number of members with a grams value of at most gmsValue.
+     */
+    private int countAtMost(float gmsValue) {
+        AvlNode current = root;
+        int count = 0;
+        while (current != null) {
+            if (gmsValue < current.gmsValue) {
+                current = current.leftChild;
+            } else {
+                count += avlNodeSize(current.leftChild) + 1;
+                current = current.rightChild;
+            }
+        }
+        return count;
     }
 
-    public void delete(String name, float gmsValue) throws IOException {
-        root = delete(root, new AvlNode(name, gmsValue), true);
+    /**
+     * Finds the member with exactly k lighter members, i.e. the k-th lightest
+     * member counting from 0. This is the inverse of {@link #rankOf(float)}.
+     *
+     * @param k The 0-based position in ascending grams order.
+     * @return The node at position k, or null if k is out of range.
+     */
+    public AvlNode select(int k) {
+        if (k < 0 || k >= size()) {
+            return null;
+        }
+        AvlNode current = root;
+        while (true) {
+            int leftSize = avlNodeSize(current.leftChild);
+            if (k < leftSize) {
+                current = current.leftChild;
+            } else if (k > leftSize) {
+                k -= leftSize + 1;
+                current = current.rightChild;
+            } else {
+                return current;
+            }
+        }
     }
 
     /**
-     * Deletes a node with the specified name and grams value from the AVL tree, if
-     * it exists, and maintains
-     * the balance of the tree. The method may also perform rotations to maintain
-     * the AVL tree's properties.
+     * Counts the members whose grams value lies in the closed range [lo, hi].
      *
-     * @param root  The current root of the subtree where deletion is being
-     *              performed.
-     * @param item  The AVL node to be deleted.
-     * @param first A flag indicating if this is the initial call in the deletion
-     *              process.
-     * @return The updated root of the subtree after deletion and balancing.
-     * @throws IOException if there's an issue writing to an external resource
-     *                     (e.g., a file) for logging.
+     * @param lo The lower bound (inclusive).
+     * @param hi The upper bound (inclusive).
+     * @return The number of members in the range, or 0 if lo is greater than hi.
      */
-    private AvlNode delete(AvlNode root, AvlNode item, boolean first) throws IOException {
-        if (root == null) {
-            return root;
+    public int countBetween(float lo, float hi) {
+        if (lo > hi) {
+            return 0;
         }
+        return countAtMost(hi) - rankOf(lo);
+    }
 
-        if (item.gmsValue < root.gmsValue) {
-            root.leftChild = delete(root.leftChild, item, first);
+    /**
+     * Finds the heaviest member whose grams value is at most the given value.
+     *
+     * @param gmsValue The upper bound (inclusive).
+     * @return The node of that member, or null if every member is heavier.
+     */
+    public AvlNode floor(float gmsValue) {
+        AvlNode current = root;
+        AvlNode floor = null;
+        while (current != null) {
+            if (gmsValue < current.gmsValue) {
+                current = current.leftChild;
+            } else if (gmsValue > current.gmsValue) {
+                floor = current;
+                current = current.rightChild;
+            } else {
+                return current;
+            }
         }
+        return floor;
+    }
 
-        else if (item.gmsValue > root.gmsValue) {
-            root.rightChild = delete(root.rightChild, item, first);
+    /**
+     * Finds the lightest member whose grams value is at least the given value.
+     *
+     * @param gmsValue The lower bound (inclusive).
+     * @return The node of that member, or null if every member is lighter.
+     */
+    public AvlNode ceiling(float gmsValue) {
+        AvlNode current = root;
+        AvlNode ceiling = null;
+        while (current != null) {
+            if (gmsValue < current.gmsValue) {
+                ceiling = current;
+                current = current.leftChild;
+            } else if (gmsValue > current.gmsValue) {
+                current = current.rightChild;
+            } else {
+                return current;
+            }
         }
+        return ceiling;
+    }
 
-        else {
-            if (root.leftChild == null && root.rightChild != null) {
-                if (first) {
-                    myWriter.write(root.name + " left the family, replaced by " + root.rightChild.name + "\n");
+    /**
+     * Returns the members whose grams value lies in the closed range [lo, hi], in
+     * ascending order. The iterator finds the first member in O(log n) and then
+     * follows the parent links from member to member, so the whole range takes
+     * O(log n + k) time for k members and no list is built. The tree must not be
+     * modified while the iterator is in use; next() throws a
+     * {@link ConcurrentModificationException} if it was.
+     *
+     * @param lo The lower bound (inclusive).
+     * @param hi The upper bound (inclusive).
+     * @return An iterator over the nodes in the range.
+     */
+    public Iterator<AvlNode> range(float lo, float hi) {
+        return new Iterator<AvlNode>() {
+            private final int expectedModCount = modCount;
+            private AvlNode next = lo <= hi ? ceiling(lo) : null;
+
+            @Override
+            public boolean hasNext() {
+                return next != null && next.gmsValue <= hi;
+            }
 
+            @Override
+            public AvlNode next() {
+                checkModCount(expectedModCount);
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
-                root = root.rightChild;
-            } else if (root.leftChild != null && root.rightChild == null) {
-                if (first) {
-                    myWriter.write(root.name + " left the family, replaced by " + root.leftChild.name + "\n");
+                AvlNode node = next;
+                next = successor(node);
+                return node;
+            }
+        };
+    }
 
-                }
-                root = root.leftChild;
-            } else if (root.leftChild == null && root.rightChild == null) {
-                if (first) {
-                    myWriter.write(root.name + " left the family, replaced by nobody" + "\n");
+    /**
+     * Returns the k members whose grams values are closest to the given value, in
+     * order of increasing distance. Of two members at the same distance the
+     * lighter one comes first. The iterator walks outwards from the floor of the
+     * value in both directions, so the k members take O(log n + k) time and no
+     * list is built. The tree must not be modified while the iterator is in use;
+     * next() throws a {@link ConcurrentModificationException} if it was.
+     *
+     * @param gmsValue The grams value to measure the distances from.
+     * @param k        The maximum number of members to return.
+     * @return An iterator over the nodes of the nearest members.
+     */
+    public Iterator<AvlNode> nearest(float gmsValue, int k) {
+        AvlNode floor = floor(gmsValue);
+        AvlNode above = floor != null ? successor(floor) : root == null ? null : findMinNode(root);
+        return new Iterator<AvlNode>() {
+            private final int expectedModCount = modCount;
+            private AvlNode lower = floor;
+            private AvlNode upper = above;
+            private int remaining = k;
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0 && (lower != null || upper != null);
+            }
 
+            @Override
+            public AvlNode next() {
+                checkModCount(expectedModCount);
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                remaining--;
+                AvlNode node;
+                if (upper == null || (lower != null
+                        && (double) gmsValue - lower.gmsValue <= (double) upper.gmsValue - gmsValue)) {
+                    node = lower;
+                    lower = predecessor(lower);
+                } else {
+                    node = upper;
+                    upper = successor(upper);
                 }
-                root = null;
+                return node;
             }
+        };
+    }
 
-            else if (root.rightChild != null && root.leftChild != null) {
-
-                AvlNode tempNode = findMinNode(root.rightChild);
-                if (first) {
-                    myWriter.write(root.name + " left the family, replaced by " + tempNode.name + "\n");
+    /**
+     * Returns the members in ascending grams order, like {@link #range} over all
+     * grams values. The tree must not be modified while the iterator is in use;
+     * next() throws a {@link ConcurrentModificationException} if it was.
+     */
+    @Override
+    public Iterator<AvlNode> iterator() {
+        return range(Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+    }
 
-                    first = false;
-                }
-                root.name = tempNode.name;
-                root.gmsValue = tempNode.gmsValue;
-                root.rightChild = delete(root.rightChild, tempNode, first);
-            }
+    /**
+     * Fails an iteration that was started before the last modification, like
+     * {@link AvlCursor} and {@link AvlSpliterator} do: a removal can move a member
+     * into another node, so the iterator could skip or repeat members.
+     */
+    private void checkModCount(int expectedModCount) {
+        if (modCount != expectedModCount) {
+            throw new ConcurrentModificationException("The tree was modified during the iteration");
         }
+    }
 
-        if (root == null) {
-            return root;
-        }
+    /**
+     * Returns a new, unpositioned cursor over the members, which walks the tree in
+     * both directions without allocating.
+     */
+    public AvlCursor cursor() {
+        return new AvlCursor(this);
+    }
 
-        root.height = Math.max(avlNodeHeight(root.leftChild), avlNodeHeight(root.rightChild)) + 1;
+    /**
+     * Returns a spliterator over the members in ascending grams order that splits
+     * at subtree roots, with exact sizes for every split.
+     */
+    @Override
+    public Spliterator<AvlNode> spliterator() {
+        return new AvlSpliterator(this);
+    }
 
-        int balanceNum = calculateBalance(root);
+    /**
+     * Returns a sequential stream over the members in ascending grams order; call
+     * parallel() on it to process the members on several threads. The tree must
+     * not be modified while the stream is in use.
+     */
+    public Stream<AvlNode> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
 
-        if (balanceNum > 1 && calculateBalance(root.leftChild) >= 0) {
-            return srWithLeftChild(root);
+    /**
+     * Calculates the balance factor of an AVL node, which is the difference between
+     * the height
+     * of the left subtree and the height of the right subtree.
+     *
+     * @param node The AVL node for which to calculate the balance factor.
+     * @return The balance factor of the node (positive if left-heavy, negative if
+     *         right-heavy, 0 if balanced).
+     */
+    private int calculateBalance(AvlNode node) {
+        if (node == null) {
+            return 0;
         }
+        return avlNodeHeight(node.leftChild) - avlNodeHeight(node.rightChild);
 
-        if (balanceNum > 1 && calculateBalance(root.leftChild) < 0) {
-            root.leftChild = srWithRightChild(root.leftChild);
-            return srWithLeftChild(root);
-        }
+    }
 
-        if (balanceNum < -1 && calculateBalance(root.rightChild) <= 0) {
-            return srWithRightChild(root);
+    /**
+     * Deletes the member with the specified grams value from the AVL tree, if it
+     * exists, logs who replaces it and rebalances the tree. A member with two
+     * children is replaced by its successor: the node takes over the successor's
+     * name and grams value and the successor's node is removed instead.
+     * The search and the rebalancing walk back up (through the parent links) are
+     * iterative and allocate nothing. Rotations stop as soon as a subtree keeps
+     * its height, and the division values stop being recomputed once they are
+     * unchanged too, after which only the subtree sizes of the remaining
+     * ancestors are decremented.
+     *
+     * @param name     The name of the member to delete (not used for the lookup).
+     * @param gmsValue The grams value of the member to delete.
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void delete(String name, float gmsValue) throws IOException {
+        AvlNode node = root;
+        int visited = 0;
+        while (node != null) {
+            visited++;
+            if (gmsValue < node.gmsValue) {
+                node = node.leftChild;
+            } else if (gmsValue > node.gmsValue) {
+                node = node.rightChild;
+            } else {
+                break;
+            }
         }
-
-        if (balanceNum < -1 && calculateBalance(root.rightChild) > 0) {
-            root.rightChild = srWithLeftChild(root.rightChild);
-            return srWithRightChild(root);
+        if (AvlMetrics.ENABLED) {
+            AvlMetrics.descent(visited);
+        }
+        if (node == null) {
+            return;
         }
 
-        return root;
+        modCount++;
+        if (node.leftChild != null && node.rightChild != null) {
+            AvlNode tempNode = findMinNode(node.rightChild);
+            events.leftFamily(node.name, tempNode.name);
+            // The node takes over the successor's member, and with it its place in the name index.
+            nameIndex.remove(node.name, node);
+            node.name = tempNode.name;
+            node.gmsValue = tempNode.gmsValue;
+            nameIndex.replace(node.name, tempNode, node);
+            removeNode(tempNode);
+            return;
+        } else if (node.leftChild != null) {
+            events.leftFamily(node.name, node.leftChild.name);
+        } else if (node.rightChild != null) {
+            events.leftFamily(node.name, node.rightChild.name);
+        } else {
+            events.leftFamily(node.name, null);
+        }
+        nameIndex.remove(node.name, node);
+        removeNode(node);
     }
 
+    /**
+     * Deletes the member with the given name, found through the name index, exactly
+     * like {@link #delete(String, float)} with its grams value. Nothing happens if
+     * no member has this name.
+     *
+     * @param name The name of the member to delete.
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void deleteByName(String name) throws IOException {
+        AvlNode node = nameIndex.get(name);
+        if (node != null) {
+            delete(name, node.gmsValue);
+        }
+    }
+
+    /**
+     * Unlinks a node that has at most one child from the tree, puts its child in
+     * its place and rebalances the tree from its parent up.
+     *
+     * @param node The node to remove.
+     */
+    private void removeNode(AvlNode node) {
+        AvlNode child = node.leftChild != null ? node.leftChild : node.rightChild;
+        AvlNode parent = node.parent;
+        replaceChild(parent, node, child);
+        node.parent = null;
+        node.leftChild = null;
+        node.rightChild = null;
+        if (policy == BalancePolicy.AVL) {
+            retraceDelete(parent);
+        } else {
+            if (policy == BalancePolicy.WAVL) {
+                wavlDeleteFixup(parent, child);
+            } else if (!node.red) {
+                redBlackDeleteFixup(parent, child);
+            }
+            refreshPath(parent);
+        }
+    }
+
+    /**
+     * Walks from the parent of a removed node up to the root, updating the nodes
+     * and rotating where the removal unbalanced a subtree.
+     *
+     * @param node The parent of the removed node.
+     */
+    private void retraceDelete(AvlNode node) {
+        boolean rebalancing = true;
+        boolean updating = true;
+        while (node != null) {
+            AvlNode parent = node.parent;
+            if (!updating) {
+                node.size--;
+                node = parent;
+                continue;
+            }
+
+            int oldHeight = node.height;
+            int oldWithRoot = node.withRoot;
+            int oldWithoutRoot = node.withoutRoot;
+            updateNode(node);
+            AvlNode subtree = node;
+            if (rebalancing) {
+                int balanceNum = calculateBalance(node);
+                if (balanceNum > 1 && calculateBalance(node.leftChild) >= 0) {
+                    subtree = srWithLeftChild(node);
+                } else if (balanceNum > 1) {
+                    subtree = drWithLeftChild(node);
+                } else if (balanceNum < -1 && calculateBalance(node.rightChild) <= 0) {
+                    subtree = srWithRightChild(node);
+                } else if (balanceNum < -1) {
+                    subtree = drWithRightChild(node);
+                }
+                if (subtree != node) {
+                    replaceChild(parent, node, subtree);
+                }
+            }
+
+            if (subtree.height == oldHeight) {
+                rebalancing = false;
+                updating = subtree.withRoot != oldWithRoot || subtree.withoutRoot != oldWithoutRoot;
+            }
+            node = parent;
+        }
+    }
+
+    /**
+     * Recomputes the subtree values of a node and all its ancestors. Used by the
+     * WAVL and red-black policies after their rebalancing, which only maintains
+     * ranks and colors: every node whose subtree changed is the node where the
+     * change happened or one of its ancestors, except for nodes that a rotation
+     * moved away from that path, which the rotation itself updated.
+     *
+     * @param node The lowest node whose subtree changed, or null.
+     */
+    private void refreshPath(AvlNode node) {
+        while (node != null) {
+            updateNode(node);
+            node = node.parent;
+        }
+    }
+
+    private static int rank(AvlNode node) {
+        return node == null ? -1 : node.rank;
+    }
+
+    private static boolean isRed(AvlNode node) {
+        return node != null && node.red;
+    }
+
+    /**
+     * Rotates the left child of a node up into its place.
+     *
+     * @return The new subtree root.
+     */
+    private AvlNode rotateRight(AvlNode node) {
+        AvlNode parent = node.parent;
+        AvlNode subtree = srWithLeftChild(node);
+        replaceChild(parent, node, subtree);
+        return subtree;
+    }
+
+    /**
+     * Rotates the right child of a node up into its place.
+     *
+     * @return The new subtree root.
+     */
+    private AvlNode rotateLeft(AvlNode node) {
+        AvlNode parent = node.parent;
+        AvlNode subtree = srWithRightChild(node);
+        replaceChild(parent, node, subtree);
+        return subtree;
+    }
+
+    /**
+     * Restores the WAVL rank rule after a new leaf of rank 0 was linked in.
+     * While the parent of the node has the same rank as the node (a 0-child),
+     * the parent is promoted if its other child is a 1-child; otherwise one
+     * single or double rotation ends the rebalancing.
+     *
+     * @param node The new leaf.
+     */
+    private void wavlInsertFixup(AvlNode node) {
+        node.rank = 0;
+        AvlNode parent = node.parent;
+        while (parent != null && parent.rank == node.rank) {
+            boolean left = parent.leftChild == node;
+            AvlNode sibling = left ? parent.rightChild : parent.leftChild;
+            if (parent.rank - rank(sibling) == 1) {
+                parent.rank++;
+                node = parent;
+                parent = node.parent;
+                continue;
+            }
+            AvlNode inner = left ? node.rightChild : node.leftChild;
+            if (node.rank - rank(inner) == 2) {
+                if (left) {
+                    rotateRight(parent);
+                } else {
+                    rotateLeft(parent);
+                }
+                parent.rank--;
+            } else {
+                AvlNode grandparent = parent.parent;
+                replaceChild(grandparent, parent, left ? drWithLeftChild(parent) : drWithRightChild(parent));
+                inner.rank++;
+                node.rank--;
+                parent.rank--;
+            }
+            return;
+        }
+    }
+
+    /**
+     * Restores the WAVL rank rule after a node was removed. A parent that became
+     * a leaf of rank 1 is demoted first. Then, while a node is a 3-child of its
+     * parent, the parent is demoted if its other child is a 2-child, or both are
+     * demoted if the other child has two 2-children; otherwise one single or
+     * double rotation ends the rebalancing.
+     *
+     * @param parent The parent of the removed node, or null.
+     * @param node   The child that took the place of the removed node, or null.
+     */
+    private void wavlDeleteFixup(AvlNode parent, AvlNode node) {
+        if (parent != null && parent.leftChild == null && parent.rightChild == null && parent.rank == 1) {
+            parent.rank = 0;
+            node = parent;
+            parent = node.parent;
+        }
+        while (parent != null && parent.rank - rank(node) == 3) {
+            boolean left = parent.leftChild == node;
+            AvlNode sibling = left ? parent.rightChild : parent.leftChild;
+            if (parent.rank - rank(sibling) == 2) {
+                parent.rank--;
+            } else if (sibling.rank - rank(sibling.leftChild) == 2 && sibling.rank - rank(sibling.rightChild) == 2) {
+                parent.rank--;
+                sibling.rank--;
+            } else {
+                AvlNode outer = left ? sibling.rightChild : sibling.leftChild;
+                if (sibling.rank - rank(outer) == 1) {
+                    if (left) {
+                        rotateLeft(parent);
+                    } else {
+                        rotateRight(parent);
+                    }
+                    sibling.rank++;
+                    parent.rank--;
+                    if (parent.leftChild == null && parent.rightChild == null) {
+                        parent.rank--;
+                    }
+                } else {
+                    AvlNode inner = left ? sibling.leftChild : sibling.rightChild;
+                    AvlNode grandparent = parent.parent;
+                    replaceChild(grandparent, parent, left ? drWithRightChild(parent) : drWithLeftChild(parent));
+                    inner.rank += 2;
+                    sibling.rank--;
+                    parent.rank -= 2;
+                }
+                return;
+            }
+            node = parent;
+            parent = node.parent;
+        }
+    }
+
+    /**
+     * Restores the red-black rules after a new leaf was linked in, colored red.
+     * While the node and its parent are both red, a red uncle is recolored black
+     * together with the parent, moving the violation up to the grandparent;
+     * otherwise one single or double rotation ends the rebalancing.
+     *
+     * @param node The new leaf.
+     */
+    private void redBlackInsertFixup(AvlNode node) {
+        node.red = true;
+        while (isRed(node.parent)) {
+            AvlNode parent = node.parent;
+            AvlNode grandparent = parent.parent;
+            boolean left = grandparent.leftChild == parent;
+            AvlNode uncle = left ? grandparent.rightChild : grandparent.leftChild;
+            if (isRed(uncle)) {
+                parent.red = false;
+                uncle.red = false;
+                grandparent.red = true;
+                node = grandparent;
+                continue;
+            }
+            AvlNode greatGrandparent = grandparent.parent;
+            AvlNode subtree;
+            if (left) {
+                subtree = node == parent.leftChild ? srWithLeftChild(grandparent) : drWithLeftChild(grandparent);
+            } else {
+                subtree = node == parent.rightChild ? srWithRightChild(grandparent) : drWithRightChild(grandparent);
+            }
+            replaceChild(greatGrandparent, grandparent, subtree);
+            subtree.red = false;
+            grandparent.red = true;
+            break;
+        }
+        root.red = false;
+    }
+
+    /**
+     * Restores the red-black rules after a black node was removed, which left
+     * the paths through its place one black node short. The missing black is
+     * pushed up while the sibling and its children are black; otherwise up to
+     * three rotations end the rebalancing.
+     *
+     * @param parent The parent of the removed node, or null.
+     * @param node   The child that took the place of the removed node, or null.
+     */
+    private void redBlackDeleteFixup(AvlNode parent, AvlNode node) {
+        while (parent != null && !isRed(node)) {
+            // A missing child is on the left if the left child is missing: the black
+            // height of the other side is at least one, so the sibling exists.
+            boolean left = parent.leftChild == node;
+            AvlNode sibling = left ? parent.rightChild : parent.leftChild;
+            if (sibling.red) {
+                sibling.red = false;
+                parent.red = true;
+                if (left) {
+                    rotateLeft(parent);
+                } else {
+                    rotateRight(parent);
+                }
+                sibling = left ? parent.rightChild : parent.leftChild;
+            }
+            if (!isRed(sibling.leftChild) && !isRed(sibling.rightChild)) {
+                sibling.red = true;
+                node = parent;
+                parent = node.parent;
+                continue;
+            }
+            if (left && !isRed(sibling.rightChild)) {
+                sibling.leftChild.red = false;
+                sibling.red = true;
+                sibling = rotateRight(sibling);
+            } else if (!left && !isRed(sibling.leftChild)) {
+                sibling.rightChild.red = false;
+                sibling.red = true;
+                sibling = rotateLeft(sibling);
+            }
+            sibling.red = parent.red;
+            parent.red = false;
+            if (left) {
+                sibling.rightChild.red = false;
+                rotateLeft(parent);
+            } else {
+                sibling.leftChild.red = false;
+                rotateRight(parent);
+            }
+            node = root;
+            break;
+        }
+        if (node != null) {
+            node.red = false;
+        }
+    }
+
+    /**
+     * Sets the ranks and colors of a tree built by {@link #link}, whose missing
+     * children are all on its last two levels: the ranks are the heights, and
+     * the nodes are black except for those on the last level, which are red.
+     *
+     * @param node     The root of the subtree.
+     * @param depth    The depth of the node.
+     * @param maxDepth The depth of the last level of the tree.
+     */
+    private void resetBalance(AvlNode node, int depth, int maxDepth) {
+        if (node == null) {
+            return;
+        }
+        node.rank = (byte) node.height;
+        node.red = depth == maxDepth && depth > 0;
+        resetBalance(node.leftChild, depth + 1, maxDepth);
+        resetBalance(node.rightChild, depth + 1, maxDepth);
+    }
+
+    /**
+     * Links sorted nodes into the root of this tree like {@link #link} and sets
+     * their ranks and colors.
+     */
+    private void relink(AvlNode[] nodes, int lo, int hi) {
+        root = link(nodes, lo, hi, null);
+        if (policy != BalancePolicy.AVL) {
+            resetBalance(root, 0, avlNodeHeight(root));
+        }
+    }
+
+    /**
+     * Returns the nodes of the tree rooted at the given node in ascending order.
+     */
+    private AvlNode[] inorder(AvlNode root) {
+        AvlNode[] nodes = new AvlNode[root == null ? 0 : root.size];
+        int i = 0;
+        for (AvlNode node = root == null ? null : findMinNode(root); node != null; node = successor(node)) {
+            nodes[i++] = node;
+        }
+        return nodes;
+    }
+
+    /**
+     * Builds a perfectly balanced tree from members sorted by grams value in O(n),
+     * without comparisons or rotations. Nothing is written to the log.
+     *
+     * @param names     The names of the members.
+     * @param gmsValues The grams values of the members, in strictly ascending
+     *                  order.
+     * @throws IllegalStateException    if the tree is not empty.
+     * @throws IllegalArgumentException if the arrays differ in length or the grams
+     *                                  values are not strictly ascending.
+     */
+    public void bulkLoad(String[] names, float[] gmsValues) {
+        if (!isEmpty()) {
+            throw new IllegalStateException("bulkLoad requires an empty tree");
+        }
+        if (names.length != gmsValues.length) {
+            throw new IllegalArgumentException("names and gmsValues differ in length");
+        }
+        modCount++;
+        AvlNode[] nodes = new AvlNode[names.length];
+        for (int i = 0; i < nodes.length; i++) {
+            if (i > 0 && !(gmsValues[i - 1] < gmsValues[i])) {
+                throw new IllegalArgumentException("gmsValues are not strictly ascending at index " + i);
+            }
+            nodes[i] = new AvlNode(names[i], gmsValues[i]);
+            nameIndex.put(names[i], nodes[i]);
+        }
+        relink(nodes, 0, nodes.length - 1);
+    }
+
+    /**
+     * Inserts a run of members sorted by grams value without writing welcome
+     * lines. Members whose grams value is already in the tree (or appeared
+     * earlier in the run) are skipped, just like {@link #insert(String, float)}
+     * skips them.
+     * Short runs are inserted one by one. Long runs are merged with the in-order
+     * sequence of the existing members and the tree is rebuilt perfectly
+     * balanced in O(n + m), reusing the existing nodes. The resulting shape then
+     * differs from the one of one-by-one inserts, so this path is meant for
+     * loading data when the log (and depth based analysis) is not needed.
+     *
+     * @param names     The names of the members to insert.
+     * @param gmsValues The grams values of the members, in ascending order.
+     * @param from      The index of the first member of the run (inclusive).
+     * @param to        The index of the last member of the run (exclusive).
+     * @throws IllegalArgumentException if the grams values of the run are not in
+     *                                  ascending order.
+     * @throws IOException              never in practice; declared by the one by
+     *                                  one insert path.
+     */
+    public void insertSortedRun(String[] names, float[] gmsValues, int from, int to) throws IOException {
+        for (int i = from + 1; i < to; i++) {
+            if (gmsValues[i - 1] > gmsValues[i]) {
+                throw new IllegalArgumentException("gmsValues are not in ascending order at index " + i);
+            }
+        }
+        int existing = size();
+        int runLength = to - from;
+        if ((long) runLength * (32 - Integer.numberOfLeadingZeros(existing + runLength)) < existing) {
+            for (int i = from; i < to; i++) {
+                insert(names[i], gmsValues[i], false);
+            }
+            return;
+        }
+
+        modCount++;
+        AvlNode[] nodes = new AvlNode[existing + runLength];
+        int count = 0;
+        AvlNode current = isEmpty() ? null : findMinNode(root);
+        int i = from;
+        while (current != null || i < to) {
+            if (i == to || (current != null && current.gmsValue <= gmsValues[i])) {
+                nodes[count++] = current;
+                current = successor(current);
+            } else {
+                if (count == 0 || nodes[count - 1].gmsValue < gmsValues[i]) {
+                    nodes[count] = new AvlNode(names[i], gmsValues[i]);
+                    nameIndex.put(names[i], nodes[count]);
+                    count++;
+                }
+                i++;
+            }
+        }
+        relink(nodes, 0, count - 1);
+    }
+
+    /**
+     * Returns the in-order successor of a node using the parent links.
+     *
+     * @param node The node whose successor is wanted.
+     * @return The node with the next larger grams value, or null if there is none.
+     */
+    AvlNode successor(AvlNode node) {
+        if (node.rightChild != null) {
+            return findMinNode(node.rightChild);
+        }
+        AvlNode parent = node.parent;
+        while (parent != null && node == parent.rightChild) {
+            node = parent;
+            parent = parent.parent;
+        }
+        return parent;
+    }
+
+    /**
+     * Returns the in-order predecessor of a node using the parent links.
+     *
+     * @param node The node whose predecessor is wanted.
+     * @return The next lighter node, or null if the node is the lightest.
+     */
+    AvlNode predecessor(AvlNode node) {
+        if (node.leftChild != null) {
+            return findMaxNode(node.leftChild);
+        }
+        AvlNode parent = node.parent;
+        while (parent != null && node == parent.leftChild) {
+            node = parent;
+            parent = parent.parent;
+        }
+        return parent;
+    }
+
+    /**
+     * Links the nodes in [lo, hi], which are sorted by grams value, into a
+     * perfectly balanced subtree by always picking the middle node as the root.
+     *
+     * @param nodes  The sorted nodes.
+     * @param lo     The index of the first node (inclusive).
+     * @param hi     The index of the last node (inclusive).
+     * @param parent The parent of the subtree root.
+     * @return The root of the subtree, or null if the range is empty.
+     */
+    private AvlNode link(AvlNode[] nodes, int lo, int hi, AvlNode parent) {
+        if (lo > hi) {
+            return null;
+        }
+        int mid = (lo + hi) >>> 1;
+        AvlNode node = nodes[mid];
+        node.parent = parent;
+        node.leftChild = link(nodes, lo, mid - 1, node);
+        node.rightChild = link(nodes, mid + 1, hi, node);
+        updateNode(node);
+        return node;
+    }
+
+    /**
+     * Moves all members of another tree into this tree. Every member of the other
+     * tree must be heavier than every member of this tree. The trees are joined
+     * in O(log n) time; only moving the name index entries is linear in the
+     * number of moved members. Unless both trees use the AVL policy, the members
+     * are relinked into a balanced tree in linear time instead. The other tree is
+     * left empty.
+     *
+     * @param other The tree whose members are appended.
+     * @throws IllegalArgumentException if the trees overlap in grams values.
+     */
+    public void join(AvlTree other) {
+        if (other == this) {
+            throw new IllegalArgumentException("Cannot join a tree with itself");
+        }
+        if (other.isEmpty()) {
+            return;
+        }
+        if (!isEmpty() && !(findMaxNode(root).gmsValue < findMinNode(other.root).gmsValue)) {
+            throw new IllegalArgumentException("Every member of the joined tree must be heavier");
+        }
+        for (AvlNode node = findMinNode(other.root); node != null; node = successor(node)) {
+            nameIndex.put(node.name, node);
+        }
+        modCount++;
+        other.modCount++;
+        if (policy == BalancePolicy.AVL && other.policy == BalancePolicy.AVL) {
+            root = joinTrees(root, other.root);
+            root.parent = null;
+        } else {
+            AvlNode[] lower = inorder(root);
+            AvlNode[] upper = inorder(other.root);
+            AvlNode[] nodes = Arrays.copyOf(lower, lower.length + upper.length);
+            System.arraycopy(upper, 0, nodes, lower.length, upper.length);
+            relink(nodes, 0, nodes.length - 1);
+        }
+        other.root = null;
+        other.nameIndex.clear();
+    }
+
+    /**
+     * Splits this tree at a grams value. The members lighter than the value stay
+     * in this tree, the others are moved into a new tree that logs to the same
+     * writer and has the same balance policy. The split takes O(log n) time; only
+     * moving the name index entries is linear in the number of moved members.
+     * Under the WAVL and red-black policies, both halves are relinked into
+     * balanced trees in linear time instead.
+     *
+     * @param gmsValue The grams value to split at.
+     * @return A new tree holding the members whose grams value is at least
+     *         gmsValue.
+     */
+    public AvlTree split(float gmsValue) {
+        modCount++;
+        AvlTree upper = new AvlTree(events, policy);
+        AvlNode right;
+        if (policy == BalancePolicy.AVL) {
+            Split split = split(root, gmsValue);
+            right = split.found == null ? split.right : joinNodes(null, split.found, split.right);
+            root = split.left;
+            if (root != null) {
+                root.parent = null;
+            }
+            upper.root = right;
+        } else {
+            AvlNode[] nodes = inorder(root);
+            int cut = 0;
+            while (cut < nodes.length && nodes[cut].gmsValue < gmsValue) {
+                cut++;
+            }
+            relink(nodes, 0, cut - 1);
+            upper.relink(nodes, cut, nodes.length - 1);
+            right = upper.root;
+        }
+        if (right != null) {
+            right.parent = null;
+            for (AvlNode node = findMinNode(right); node != null; node = successor(node)) {
+                nameIndex.remove(node.name, node);
+                upper.nameIndex.put(node.name, node);
+            }
+        }
+        return upper;
+    }
+
+    /**
+     * Adds all members of another tree to this tree. Where both trees hold a
+     * member with the same grams value, the member of this tree is kept. Large
+     * trees are merged in parallel on the common {@link ForkJoinPool}. The other
+     * tree is left empty. Nothing is logged.
+     *
+     * @param other The tree whose members are added.
+     */
+    public void union(AvlTree other) {
+        combine(other, SetOperation.UNION);
+    }
+
+    /**
+     * Keeps only the members of this tree whose grams value also occurs in another
+     * tree. Large trees are processed in parallel on the common
+     * {@link ForkJoinPool}. The other tree is left empty. Nothing is logged.
+     *
+     * @param other The tree holding the grams values to keep.
+     */
+    public void intersection(AvlTree other) {
+        combine(other, SetOperation.INTERSECTION);
+    }
+
+    /**
+     * Removes the members of this tree whose grams value occurs in another tree.
+     * Large trees are processed in parallel on the common {@link ForkJoinPool}.
+     * The other tree is left empty. Nothing is logged.
+     *
+     * @param other The tree holding the grams values to remove.
+     */
+    public void difference(AvlTree other) {
+        combine(other, SetOperation.DIFFERENCE);
+    }
+
+    private void combine(AvlTree other, int operation) {
+        if (other == this) {
+            throw new IllegalArgumentException("Cannot combine a tree with itself");
+        }
+        modCount++;
+        other.modCount++;
+        if (policy == BalancePolicy.AVL && other.policy == BalancePolicy.AVL) {
+            root = ForkJoinPool.commonPool().invoke(new SetOperation(operation, root, other.root));
+            if (root != null) {
+                root.parent = null;
+            }
+        } else {
+            // The split and join based merge relies on AVL balanced inputs.
+            mergeSorted(inorder(root), inorder(other.root), operation);
+        }
+        other.root = null;
+        other.nameIndex.clear();
+        rebuildNameIndex();
+    }
+
+    /**
+     * Combines the sorted members of this tree and another tree in one merge
+     * pass and relinks the kept members of this tree, for the policies the
+     * rotation based set operations do not apply to. Members of the other tree
+     * are only kept by a union and only where this tree has no member with the
+     * same grams value.
+     */
+    private void mergeSorted(AvlNode[] mine, AvlNode[] theirs, int operation) {
+        AvlNode[] kept = new AvlNode[mine.length + theirs.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < mine.length || j < theirs.length) {
+            if (j == theirs.length || (i < mine.length && mine[i].gmsValue < theirs[j].gmsValue)) {
+                if (operation != SetOperation.INTERSECTION) {
+                    kept[count++] = mine[i];
+                }
+                i++;
+            } else if (i == mine.length || theirs[j].gmsValue < mine[i].gmsValue) {
+                if (operation == SetOperation.UNION) {
+                    kept[count++] = theirs[j];
+                }
+                j++;
+            } else {
+                if (operation != SetOperation.DIFFERENCE) {
+                    kept[count++] = mine[i];
+                }
+                i++;
+                j++;
+            }
+        }
+        relink(kept, 0, count - 1);
+    }
+
+    /**
+     * Result of splitting a subtree at a grams value: the subtrees of the lighter
+     * and of the heavier nodes, and the node holding the value itself, if any.
+     */
+    private static final class Split {
+        AvlNode left;
+        AvlNode found;
+        AvlNode right;
+    }
+
+    /**
+     * One union, intersection or difference of two subtrees. The root of the first
+     * subtree splits the second one, and the two halves are combined recursively,
+     * in parallel if both together hold at least PARALLEL_CUTOFF nodes. The
+     * halves work on disjoint nodes, so they need no synchronization.
+     */
+    @SuppressWarnings("serial") // Never serialized; it only runs in the fork-join pool.
+    private final class SetOperation extends RecursiveTask<AvlNode> {
+        static final int UNION = 0;
+        static final int INTERSECTION = 1;
+        static final int DIFFERENCE = 2;
+
+        private static final int PARALLEL_CUTOFF = 4096;
+
+        private final int operation;
+        private final AvlNode first;
+        private final AvlNode second;
+
+        SetOperation(int operation, AvlNode first, AvlNode second) {
+            this.operation = operation;
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        protected AvlNode compute() {
+            return combine(first, second);
+        }
+
+        private AvlNode combine(AvlNode first, AvlNode second) {
+            if (first == null) {
+                return operation == UNION ? second : null;
+            }
+            if (second == null) {
+                return operation == INTERSECTION ? null : first;
+            }
+            AvlNode left = first.leftChild;
+            AvlNode right = first.rightChild;
+            detach(first);
+            Split split = split(second, first.gmsValue);
+
+            AvlNode combinedLeft;
+            AvlNode combinedRight;
+            if (avlNodeSize(left) + avlNodeSize(split.left) + avlNodeSize(right)
+                    + avlNodeSize(split.right) >= PARALLEL_CUTOFF) {
+                SetOperation leftTask = new SetOperation(operation, left, split.left);
+                leftTask.fork();
+                combinedRight = combine(right, split.right);
+                combinedLeft = leftTask.join();
+            } else {
+                combinedLeft = combine(left, split.left);
+                combinedRight = combine(right, split.right);
+            }
+
+            boolean keep = operation == UNION || (operation == INTERSECTION) == (split.found != null);
+            return keep ? joinNodes(combinedLeft, first, combinedRight) : joinTrees(combinedLeft, combinedRight);
+        }
+    }
+
+    /**
+     * Unlinks a node from its children and its parent, leaving the children as
+     * separate subtrees.
+     */
+    private static void detach(AvlNode node) {
+        if (node.leftChild != null) {
+            node.leftChild.parent = null;
+        }
+        if (node.rightChild != null) {
+            node.rightChild.parent = null;
+        }
+        node.leftChild = null;
+        node.rightChild = null;
+        node.parent = null;
+    }
+
+    /**
+     * Splits a subtree at a grams value, reusing its nodes.
+     *
+     * @param node     The root of the subtree.
+     * @param gmsValue The grams value to split at.
+     * @return The subtrees of the nodes lighter and heavier than gmsValue, and the
+     *         node holding gmsValue (null if there is none).
+     */
+    private Split split(AvlNode node, float gmsValue) {
+        if (node == null) {
+            return new Split();
+        }
+        AvlNode left = node.leftChild;
+        AvlNode right = node.rightChild;
+        detach(node);
+        if (gmsValue < node.gmsValue) {
+            Split split = split(left, gmsValue);
+            split.right = joinNodes(split.right, node, right);
+            return split;
+        } else if (gmsValue > node.gmsValue) {
+            Split split = split(right, gmsValue);
+            split.left = joinNodes(left, node, split.left);
+            return split;
+        }
+        Split split = new Split();
+        split.left = left;
+        split.found = node;
+        split.right = right;
+        return split;
+    }
+
+    /**
+     * Joins two subtrees, where every node of the first is lighter than every node
+     * of the second. The heaviest node of the first subtree becomes the middle
+     * node of the join.
+     *
+     * @return The root of the joined subtree, without a parent.
+     */
+    private AvlNode joinTrees(AvlNode left, AvlNode right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        Split split = splitLast(left);
+        return joinNodes(split.left, split.found, right);
+    }
+
+    /**
+     * Removes the heaviest node of a subtree.
+     *
+     * @return The remaining subtree (in left) and the removed node (in found).
+     */
+    private Split splitLast(AvlNode node) {
+        AvlNode left = node.leftChild;
+        AvlNode right = node.rightChild;
+        detach(node);
+        if (right == null) {
+            Split split = new Split();
+            split.left = left;
+            split.found = node;
+            return split;
+        }
+        Split split = splitLast(right);
+        split.left = joinNodes(left, node, split.left);
+        return split;
+    }
+
+    /**
+     * Joins two subtrees and a middle node into one balanced subtree, where every
+     * node of the left subtree is lighter and every node of the right subtree is
+     * heavier than the middle node. The middle node is attached along the right
+     * spine of the taller left subtree, or the left spine of the taller right
+     * subtree, where the heights differ by at most one, and the spine is
+     * rebalanced on the way back up. This takes O(|h(left) - h(right)| + 1) time.
+     *
+     * @return The root of the joined subtree, without a parent.
+     */
+    private AvlNode joinNodes(AvlNode left, AvlNode middle, AvlNode right) {
+        AvlNode joined;
+        if (avlNodeHeight(left) > avlNodeHeight(right) + 1) {
+            joined = joinRight(left, middle, right);
+        } else if (avlNodeHeight(right) > avlNodeHeight(left) + 1) {
+            joined = joinLeft(left, middle, right);
+        } else {
+            joined = attach(left, middle, right);
+        }
+        joined.parent = null;
+        return joined;
+    }
+
+    private AvlNode attach(AvlNode left, AvlNode middle, AvlNode right) {
+        middle.leftChild = left;
+        middle.rightChild = right;
+        if (left != null) {
+            left.parent = middle;
+        }
+        if (right != null) {
+            right.parent = middle;
+        }
+        updateNode(middle);
+        return middle;
+    }
+
+    private AvlNode joinRight(AvlNode left, AvlNode middle, AvlNode right) {
+        AvlNode spine = left.rightChild;
+        AvlNode joined;
+        if (avlNodeHeight(spine) <= avlNodeHeight(right) + 1) {
+            joined = attach(spine, middle, right);
+            if (avlNodeHeight(joined) > avlNodeHeight(left.leftChild) + 1) {
+                joined = srWithLeftChild(joined);
+            }
+        } else {
+            joined = joinRight(spine, middle, right);
+        }
+        left.rightChild = joined;
+        joined.parent = left;
+        updateNode(left);
+        if (avlNodeHeight(joined) > avlNodeHeight(left.leftChild) + 1) {
+            return srWithRightChild(left);
+        }
+        return left;
+    }
+
+    private AvlNode joinLeft(AvlNode left, AvlNode middle, AvlNode right) {
+        AvlNode spine = right.leftChild;
+        AvlNode joined;
+        if (avlNodeHeight(spine) <= avlNodeHeight(left) + 1) {
+            joined = attach(left, middle, spine);
+            if (avlNodeHeight(joined) > avlNodeHeight(right.rightChild) + 1) {
+                joined = srWithRightChild(joined);
+            }
+        } else {
+            joined = joinLeft(left, middle, spine);
+        }
+        right.leftChild = joined;
+        joined.parent = right;
+        updateNode(right);
+        if (avlNodeHeight(joined) > avlNodeHeight(right.rightChild) + 1) {
+            return srWithLeftChild(right);
+        }
+        return right;
+    }
+
+    /**
+     * Writes the number of members lighter than the given grams value.
+     *
+     * @param gmsValue The grams value to rank.
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void intel_rank_of(float gmsValue) throws IOException {
+        events.rankOf(rankOf(gmsValue));
+    }
+
+    /**
+     * Writes the name and grams value of the k-th heaviest member, counting from
+     * 1. Nothing is written if there is no such member.
+     *
+     * @param k The 1-based position in descending grams order.
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void intel_select(int k) throws IOException {
+        AvlNode node = select(size() - k);
+        if (node == null) {
+            return;
+        }
+        events.select(node.name, node.gmsValue);
+    }
+
+    /**
+     * Writes the number of members whose grams value lies in [lo, hi].
+     *
+     * @param lo The lower bound (inclusive).
+     * @param hi The upper bound (inclusive).
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void intel_count(float lo, float hi) throws IOException {
+        events.count(countBetween(lo, hi));
+    }
+
+    /**
+     * Writes the name and grams value of the heaviest member whose grams value is
+     * at most the given value. Nothing is written if there is no such member.
+     *
+     * @param gmsValue The upper bound (inclusive).
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void intel_floor(float gmsValue) throws IOException {
+        AvlNode node = floor(gmsValue);
+        if (node == null) {
+            return;
+        }
+        events.floor(node.name, node.gmsValue);
+    }
+
+    /**
+     * Writes the name and grams value of the lightest member whose grams value is
+     * at least the given value. Nothing is written if there is no such member.
+     *
+     * @param gmsValue The lower bound (inclusive).
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void intel_ceiling(float gmsValue) throws IOException {
+        AvlNode node = ceiling(gmsValue);
+        if (node == null) {
+            return;
+        }
+        events.ceiling(node.name, node.gmsValue);
+    }
+
+    /**
+     * Writes the members whose grams value lies in [lo, hi] in ascending order, on
+     * one line in the format of the rank analysis. The members are written while
+     * the range is walked.
+     *
+     * @param lo The lower bound (inclusive).
+     * @param hi The upper bound (inclusive).
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void intel_range(float lo, float hi) throws IOException {
+        events.rangeBegin();
+        for (Iterator<AvlNode> members = range(lo, hi); members.hasNext();) {
+            AvlNode current = members.next();
+            events.member(current.name, current.gmsValue);
+        }
+        events.endList();
+    }
+
+    /**
+     * Writes the k members closest to the given grams value in order of increasing
+     * distance, on one line in the format of the rank analysis.
+     *
+     * @param gmsValue The grams value to measure the distances from.
+     * @param k        The maximum number of members to write.
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void intel_nearest(float gmsValue, int k) throws IOException {
+        events.nearestBegin();
+        for (Iterator<AvlNode> members = nearest(gmsValue, k); members.hasNext();) {
+            AvlNode current = members.next();
+            events.member(current.name, current.gmsValue);
+        }
+        events.endList();
+    }
+
+    /**
+     * Writes and returns the division analysis result. Every node keeps its two
+     * division values up to date, so the result is read from the root in O(1).
+     *
+     * @return The maximum number of members that can be picked without picking a
+     *         member together with its parent.
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
     public int intel_divide() throws IOException {
+        int result = divideResult();
+        events.divide(result);
+        return result;
+    }
+
+    /**
+     * Returns the division analysis result without writing it.
+     */
+    int divideResult() {
+        AvlNode top = root;
+        return top == null ? 0 : Math.max(top.withRoot, top.withoutRoot);
+    }
+
+    /**
+     * Computes the division analysis result by walking the whole tree, without
+     * using the values kept in the nodes. Used to check and benchmark the
+     * incrementally maintained values.
+     *
+     * @return The division analysis result.
+     */
+    int recomputeDivide() {
         int[] res = intel_divide(root);
-        myWriter.write("Division Analysis Result: " + Math.max(res[0], res[1]) + "\n");
         return Math.max(res[0], res[1]);
     }
 
@@ -474,19 +2081,52 @@ public class AvlTree {
      *         included.
      */
     public void intel_targeter(String name1, String name2, float gmsValue1, float gmsValue2) throws IOException {
+        AvlNode current = target(gmsValue1, gmsValue2);
+        events.target(current.name, current.gmsValue);
+        // System.out.println("Target Analysis Result: " + current.name + " ");
+    }
+
+    /**
+     * Finds the member the target analysis reports for two grams values: the
+     * first member on the way down whose grams value is not below both values
+     * and not above both values.
+     *
+     * @param gmsValue1 The grams value of the first member.
+     * @param gmsValue2 The grams value of the second member.
+     * @return The node of that member, or null if the descent runs off the tree.
+     */
+    AvlNode target(float gmsValue1, float gmsValue2) {
         AvlNode current = root;
-        while (true) {
+        int visited = 0;
+        while (current != null) {
+            visited++;
             if (gmsValue1 < current.gmsValue && gmsValue2 < current.gmsValue) {
                 current = current.leftChild;
             } else if (gmsValue1 > current.gmsValue && gmsValue2 > current.gmsValue) {
                 current = current.rightChild;
             } else {
-                myWriter.write("Target Analysis Result: " + current.name + " "
-                        + String.format("%.3f", current.gmsValue).replace(",", ".") + "\n");
-                // System.out.println("Target Analysis Result: " + current.name + " ");
                 break;
             }
         }
+        if (AvlMetrics.ENABLED) {
+            AvlMetrics.descent(visited);
+        }
+        return current;
+    }
+
+    /**
+     * Performs the rank analysis for the member with the given name, found through
+     * the name index. Nothing is written if no member has this name.
+     *
+     * @param name The name for which the rank analysis is performed.
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void intel_rank(String name) throws IOException {
+        AvlNode node = nameIndex.get(name);
+        if (node != null) {
+            intel_rank(name, node.gmsValue);
+        }
     }
 
     /**
@@ -495,6 +2135,11 @@ public class AvlTree {
      * The method finds nodes with the same rank as the node with the specified name
      * and grams value
      * and writes their names and grams values to the output.
+     * The members at that depth are collected by a depth-first walk that only
+     * enters the subtrees tall enough to reach the depth, so it visits the
+     * members of the answer and their ancestors, not every member above the
+     * depth, and allocates nothing. Nothing is written if no member has the
+     * grams value.
      *
      * @param name     The name for which the rank analysis is performed.
      * @param gmsValue The grams value for which the rank analysis is performed.
@@ -502,40 +2147,51 @@ public class AvlTree {
      *                     (e.g., a file) for logging.
      */
     public void intel_rank(String name, float gmsValue) throws IOException {
-        int rank = 0;
         int des_rank = searchNodeRank(name, gmsValue);
+        if (des_rank < 0) {
+            return;
+        }
+        events.rankBegin();
+        reportLevel(root, des_rank, memberEvents);
+        events.endList();
+    }
 
-        Queue<AvlNode> queue = new LinkedList<>();
-        queue.add(root);
-
-        while (!queue.isEmpty()) {
-            int relRanks = queue.size();
-            if (rank == des_rank) {
-                myWriter.write("Rank Analysis Result:");
-                // System.out.print("Rank Analysis Result: ");
-                while (!queue.isEmpty()) {
-                    AvlNode current = queue.poll();
-                    myWriter.write(" " + current.name + " ");
-                    myWriter.write(String.format("%.3f", current.gmsValue).replace(",", "."));
-
-                }
-                myWriter.write("\n");
-                break;
-
-            } else {
-                for (int i = 0; i < relRanks; i++) {
-                    AvlNode current = queue.poll();
-                    if (current.leftChild != null) {
-                        queue.add(current.leftChild);
-                    }
-                    if (current.rightChild != null) {
-                        queue.add(current.rightChild);
-                    }
-                }
-                rank++;
-            }
+    /**
+     * Reports the members at the given depth, from left to right: the members
+     * of a rank analysis without its begin and end events.
+     *
+     * @param depth   The depth of the members, at most the height of the tree.
+     * @param visitor Receives the members.
+     * @throws IOException if the visitor fails.
+     */
+    void reportDepth(int depth, MemberVisitor visitor) throws IOException {
+        if (root != null) {
+            reportLevel(root, depth, visitor);
         }
+    }
 
+    /**
+     * Reports the members the given number of levels below a node, from left to
+     * right. A subtree holds members that deep only if its height is at least
+     * the number of levels, so shorter subtrees are skipped.
+     *
+     * @param node    A node whose height is at least levels.
+     * @param levels  The number of levels below the node.
+     * @param visitor Receives the members.
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    private static void reportLevel(AvlNode node, int levels, MemberVisitor visitor) throws IOException {
+        if (levels == 0) {
+            visitor.visit(node.name, node.gmsValue);
+            return;
+        }
+        if (node.leftChild != null && node.leftChild.height >= levels - 1) {
+            reportLevel(node.leftChild, levels - 1, visitor);
+        }
+        if (node.rightChild != null && node.rightChild.height >= levels - 1) {
+            reportLevel(node.rightChild, levels - 1, visitor);
+        }
     }
 
 }
@@ -0,0 +1,32 @@
+/**
+ * The rule an {@link AvlTree} keeps its shape balanced by. The shape decides the
+ * results of the depth based analyses (intel_rank, intel_divide), so the policy
+ * of a tree is fixed when it is created and is saved with its checkpoints.
+ *
+ * Under every policy the nodes keep their true heights, sizes and division
+ * values, so all queries work unchanged; only the shapes differ.
+ */
+public enum BalancePolicy {
+
+    /**
+     * Strict AVL balance: the heights of the two subtrees of every node differ by
+     * at most one. The shortest trees, but a removal can rotate at every level on
+     * the way up.
+     */
+    AVL,
+
+    /**
+     * Weak AVL (rank balanced) trees: every node has a rank, and the rank
+     * difference to each child is one or two, with leaves of rank 0. Insertions
+     * build exactly AVL trees; removals only demote ranks, so every update does at
+     * most two rotations, and the height stays below 2 log n.
+     */
+    WAVL,
+
+    /**
+     * Red-black trees: no red node has a red child and every path down to a
+     * missing child passes the same number of black nodes. Every update does at
+     * most three rotations; the height stays below 2 log n.
+     */
+    RED_BLACK
+}
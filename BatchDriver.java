@@ -0,0 +1,341 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Processes many independent command files in one JVM, so that the JVM start
+ * and the JIT warmup are paid once for the whole batch. Run with
+ *
+ * java BatchDriver manifest|input directory output directory [--parallelism=n] [--writers=n] [--balance=policy]
+ *
+ * A manifest lists one job per line: the input file and the output file,
+ * separated by white space (blank lines and lines starting with # are
+ * skipped; relative outputs are placed in the output directory). For an input
+ * directory every regular file is a job, and its output file gets the same
+ * name in the output directory.
+ *
+ * Every file is processed against its own {@link AvlTree} exactly as Main
+ * processes it, so every output file is identical to a standalone run. The
+ * jobs run on virtual threads where the JVM has them (Java 21 and later) and on
+ * a pool of platform threads otherwise; at most parallelism jobs run at once.
+ * Their output is written in chunks by a shared pool of writer threads; the
+ * chunks of one file are written one after the other in order, and the number
+ * of chunks waiting to be written is bounded, so a slow disk holds back the
+ * jobs instead of filling the heap.
+ */
+public class BatchDriver {
+
+    private static final int CHUNK_SIZE = 1 << 14;
+    private static final int MAX_PENDING_CHUNKS = 256;
+    private static final int DEFAULT_WRITERS = 2;
+
+    /**
+     * One command file and the file its output goes to.
+     */
+    static final class Job {
+        final File input;
+        final File output;
+
+        Job(File input, File output) {
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    private final ExecutorService writerPool;
+    private final Semaphore pendingChunks = new Semaphore(MAX_PENDING_CHUNKS);
+    private final BalancePolicy policy;
+
+    private BatchDriver(int writers, BalancePolicy policy) {
+        this.writerPool = Executors.newFixedThreadPool(writers, task -> {
+            Thread thread = new Thread(task, "avl-batch-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.policy = policy;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File source = new File(args[0]);
+        File outputDirectory = new File(args[1]);
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        int writers = DEFAULT_WRITERS;
+        BalancePolicy policy = BalancePolicy.AVL;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].startsWith("--parallelism=")) {
+                parallelism = Integer.parseInt(args[i].substring("--parallelism=".length()));
+            } else if (args[i].startsWith("--writers=")) {
+                writers = Integer.parseInt(args[i].substring("--writers=".length()));
+            } else if (args[i].startsWith("--balance=")) {
+                String name = args[i].substring("--balance=".length());
+                policy = BalancePolicy.valueOf(name.toUpperCase(Locale.ROOT).replace('-', '_'));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (parallelism < 1 || writers < 1) {
+            throw new IllegalArgumentException("--parallelism and --writers must be positive");
+        }
+
+        List<Job> jobs = source.isDirectory() ? directoryJobs(source, outputDirectory)
+                : manifestJobs(source, outputDirectory);
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Cannot create the output directory " + outputDirectory);
+        }
+
+        long start = System.nanoTime();
+        List<String> failures = run(jobs, parallelism, writers, policy);
+        System.err.printf(Locale.ROOT, "%d files, %d failed, %.1f s%n", jobs.size(), failures.size(),
+                (System.nanoTime() - start) / 1e9);
+        for (String failure : failures) {
+            System.err.println(failure);
+        }
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Processes all jobs and waits until every output file is written and closed.
+     *
+     * @param jobs        The command files and their output files.
+     * @param parallelism The maximum number of jobs that run at once.
+     * @param writers     The number of threads that write the output files.
+     * @param policy      The balance policy of the trees.
+     * @return One message per failed job, in job order; empty if all succeeded.
+     * @throws InterruptedException if interrupted while waiting for the jobs.
+     */
+    public static List<String> run(List<Job> jobs, int parallelism, int writers, BalancePolicy policy)
+            throws InterruptedException {
+        BatchDriver driver = new BatchDriver(writers, policy);
+        Semaphore running = new Semaphore(parallelism);
+        List<Future<?>> results = new ArrayList<>(jobs.size());
+        ExecutorService jobPool = newJobExecutor(parallelism);
+        try {
+            for (Job job : jobs) {
+                running.acquire();
+                results.add(jobPool.submit(() -> {
+                    try {
+                        driver.process(job);
+                        return null;
+                    } finally {
+                        running.release();
+                    }
+                }));
+            }
+            List<String> failures = new ArrayList<>();
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    failures.add(jobs.get(i).input + ": " + e.getCause());
+                }
+            }
+            return failures;
+        } finally {
+            jobPool.shutdown();
+            driver.writerPool.shutdown();
+        }
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread per job if the JVM
+     * supports them, or else a pool of parallelism platform threads. The lookup
+     * is reflective so that the driver also compiles and runs on Java 17.
+     */
+    private static ExecutorService newJobExecutor(int parallelism) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return Executors.newFixedThreadPool(parallelism, task -> {
+                Thread thread = new Thread(task, "avl-batch-job");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Applies the commands of one file to a new tree, exactly like a sequential
+     * run of Main, and waits until its output file is written.
+     */
+    private void process(Job job) throws IOException {
+        OrderedChunkWriter writer = new OrderedChunkWriter(job.output);
+        try {
+            new CommandParser(new Main.TreeHandler(new AvlTree(writer, policy)), true).parse(job.input);
+        } finally {
+            writer.close();
+        }
+        writer.awaitWritten();
+    }
+
+    private static List<Job> directoryJobs(File directory, File outputDirectory) throws IOException {
+        File[] files = directory.listFiles(File::isFile);
+        if (files == null) {
+            throw new IOException("Cannot list " + directory);
+        }
+        Arrays.sort(files);
+        List<Job> jobs = new ArrayList<>(files.length);
+        for (File file : files) {
+            jobs.add(new Job(file, new File(outputDirectory, file.getName())));
+        }
+        return jobs;
+    }
+
+    private static List<Job> manifestJobs(File manifest, File outputDirectory) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length != 2) {
+                throw new IOException(manifest + ":" + lineNumber + ": expected an input and an output file");
+            }
+            File output = new File(fields[1]);
+            jobs.add(new Job(new File(fields[0]), output.isAbsolute() ? output : new File(outputDirectory, fields[1])));
+        }
+        return jobs;
+    }
+
+    /**
+     * Writer of one job. It fills fixed size chunks and hands every full chunk to
+     * the shared writer pool, chained behind the previous chunk of the same file
+     * so that the chunks are written in order. Handing over a chunk waits while
+     * MAX_PENDING_CHUNKS chunks of all jobs are waiting to be written.
+     */
+    private final class OrderedChunkWriter extends Writer {
+        private final FileWriter fileWriter;
+        private CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+        private char[] chunk = new char[CHUNK_SIZE];
+        private int length;
+        private boolean closed;
+
+        OrderedChunkWriter(File output) throws IOException {
+            this.fileWriter = new FileWriter(output);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, chunk.length - length);
+                System.arraycopy(cbuf, off, chunk, length, n);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == chunk.length) {
+                    publish(chunk, length);
+                    chunk = new char[CHUNK_SIZE];
+                    length = 0;
+                }
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, chunk.length - length);
+                str.getChars(off, off + n, chunk, length);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == chunk.length) {
+                    publish(chunk, length);
+                    chunk = new char[CHUNK_SIZE];
+                    length = 0;
+                }
+            }
+        }
+
+        private void publish(char[] full, int count) throws IOException {
+            try {
+                pendingChunks.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the writer pool");
+            }
+            // Every chunk releases its permit, also behind a failed write, which it skips.
+            written = written.handleAsync((ignored, failure) -> {
+                try {
+                    if (failure != null) {
+                        throw failure instanceof CompletionException ? (CompletionException) failure
+                                : new CompletionException(failure);
+                    }
+                    fileWriter.write(full, 0, count);
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    pendingChunks.release();
+                }
+            }, writerPool);
+        }
+
+        /**
+         * Does nothing; the chunks are handed over when they are full and on
+         * {@link #close()}.
+         */
+        @Override
+        public void flush() {
+        }
+
+        /**
+         * Hands over the partially filled chunk, if any, and closes the file after
+         * the last chunk is written.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (length > 0) {
+                publish(chunk, length);
+            }
+            written = written.whenCompleteAsync((ignored, failure) -> {
+                try {
+                    fileWriter.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }, writerPool);
+        }
+
+        /**
+         * Waits until all chunks are written and the file is closed.
+         *
+         * @throws IOException if writing or closing the file failed.
+         */
+        void awaitWritten() throws IOException {
+            try {
+                written.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                throw e;
+            }
+        }
+    }
+}
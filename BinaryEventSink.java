@@ -0,0 +1,378 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the events of a tree as compact binary records, a fraction of the size
+ * of the text log and without formatting any numbers. Each record is a type
+ * byte followed by its fields:
+ *
+ * <pre>
+ * name   varint reference: 0 for a name not seen before, followed by its
+ *        varint length in UTF-8 bytes and the bytes; otherwise 1 + the number
+ *        of the name, counting the new names from 0 in the order they appear
+ * float  grams value, 4 bytes of raw float bits, big-endian
+ * int    4 bytes, big-endian
+ *
+ * 1  WELCOMED        name welcomer, name newcomer
+ * 2  LEFT_FAMILY     name, name replacement
+ * 3  LEFT_NOBODY     name
+ * 4  TARGET          name, float
+ * 5  DIVIDE          int
+ * 6  RANK_OF         int
+ * 7  COUNT           int
+ * 8  SELECT          name, float
+ * 9  FLOOR           name, float
+ * 10 CEILING         name, float
+ * 11 RANK_BEGIN
+ * 12 RANGE_BEGIN
+ * 13 NEAREST_BEGIN
+ * 14 MEMBER          name, float
+ * 15 END_LIST
+ * </pre>
+ *
+ * The records are collected in a buffer and written to the stream when it is
+ * full and on {@link #flush()} and {@link #close()}. {@link #decode} reads them
+ * back into another sink, for example a {@link TextEventSink} to get the text
+ * log.
+ */
+public class BinaryEventSink implements AvlEventSink, Flushable, Closeable {
+
+    private static final byte WELCOMED = 1;
+    private static final byte LEFT_FAMILY = 2;
+    private static final byte LEFT_NOBODY = 3;
+    private static final byte TARGET = 4;
+    private static final byte DIVIDE = 5;
+    private static final byte RANK_OF = 6;
+    private static final byte COUNT = 7;
+    private static final byte SELECT = 8;
+    private static final byte FLOOR = 9;
+    private static final byte CEILING = 10;
+    private static final byte RANK_BEGIN = 11;
+    private static final byte RANGE_BEGIN = 12;
+    private static final byte NEAREST_BEGIN = 13;
+    private static final byte MEMBER = 14;
+    private static final byte END_LIST = 15;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * When this many names are numbered, the numbering starts over with the next
+     * new name, on both the writing and the reading side, so that the name table
+     * stays bounded however many members come and go.
+     */
+    private static final int MAX_NAMES = 1 << 20;
+    /** Room for a type byte, two name references and lengths, a float and an int. */
+    private static final int MAX_FIXED_BYTES = 1 + 10 + 10 + 4 + 4;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private final Map<String, Integer> nameNumbers = new HashMap<>();
+
+    public BinaryEventSink(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void welcomed(String welcomer, String newcomer) throws IOException {
+        ensure(MAX_FIXED_BYTES + 3 * (welcomer.length() + newcomer.length()));
+        buffer[position++] = WELCOMED;
+        putName(welcomer);
+        putName(newcomer);
+    }
+
+    @Override
+    public void leftFamily(String name, String replacement) throws IOException {
+        if (replacement == null) {
+            ensure(MAX_FIXED_BYTES + 3 * name.length());
+            buffer[position++] = LEFT_NOBODY;
+            putName(name);
+        } else {
+            ensure(MAX_FIXED_BYTES + 3 * (name.length() + replacement.length()));
+            buffer[position++] = LEFT_FAMILY;
+            putName(name);
+            putName(replacement);
+        }
+    }
+
+    @Override
+    public void target(String name, float gmsValue) throws IOException {
+        named(TARGET, name, gmsValue);
+    }
+
+    @Override
+    public void divide(int result) throws IOException {
+        number(DIVIDE, result);
+    }
+
+    @Override
+    public void rankOf(int rank) throws IOException {
+        number(RANK_OF, rank);
+    }
+
+    @Override
+    public void count(int count) throws IOException {
+        number(COUNT, count);
+    }
+
+    @Override
+    public void select(String name, float gmsValue) throws IOException {
+        named(SELECT, name, gmsValue);
+    }
+
+    @Override
+    public void floor(String name, float gmsValue) throws IOException {
+        named(FLOOR, name, gmsValue);
+    }
+
+    @Override
+    public void ceiling(String name, float gmsValue) throws IOException {
+        named(CEILING, name, gmsValue);
+    }
+
+    @Override
+    public void rankBegin() throws IOException {
+        marker(RANK_BEGIN);
+    }
+
+    @Override
+    public void rangeBegin() throws IOException {
+        marker(RANGE_BEGIN);
+    }
+
+    @Override
+    public void nearestBegin() throws IOException {
+        marker(NEAREST_BEGIN);
+    }
+
+    @Override
+    public void member(String name, float gmsValue) throws IOException {
+        named(MEMBER, name, gmsValue);
+    }
+
+    @Override
+    public void endList() throws IOException {
+        marker(END_LIST);
+    }
+
+    private void named(byte type, String name, float gmsValue) throws IOException {
+        ensure(MAX_FIXED_BYTES + 3 * name.length());
+        buffer[position++] = type;
+        putName(name);
+        putInt(Float.floatToRawIntBits(gmsValue));
+    }
+
+    private void number(byte type, int value) throws IOException {
+        ensure(MAX_FIXED_BYTES);
+        buffer[position++] = type;
+        putInt(value);
+    }
+
+    private void marker(byte type) throws IOException {
+        ensure(1);
+        buffer[position++] = type;
+    }
+
+    /**
+     * Makes room for the given number of bytes, writing out the buffer if
+     * needed. A record larger than the buffer is not supported.
+     */
+    private void ensure(int bytes) throws IOException {
+        if (bytes > buffer.length) {
+            throw new IOException("Event too large for the buffer: " + bytes + " bytes");
+        }
+        if (buffer.length - position < bytes) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Puts a reference to a name seen before, or else the name itself, copying
+     * ASCII names char by char without encoding them into a new array. The caller
+     * ensured room for 3 bytes per char.
+     */
+    private void putName(String name) {
+        Integer number = nameNumbers.get(name);
+        if (number != null) {
+            putVarint(number + 1);
+            return;
+        }
+        if (nameNumbers.size() == MAX_NAMES) {
+            nameNumbers.clear();
+        }
+        nameNumbers.put(name, nameNumbers.size());
+        putVarint(0);
+        int length = name.length();
+        int i = 0;
+        while (i < length && name.charAt(i) < 0x80) {
+            i++;
+        }
+        if (i < length) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            putVarint(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+            return;
+        }
+        putVarint(length);
+        for (i = 0; i < length; i++) {
+            buffer[position++] = (byte) name.charAt(i);
+        }
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer[position++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void putInt(int value) {
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    /**
+     * Writes the buffered records to the stream and flushes it.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Writes the buffered records and closes the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the records written by a binary sink and reports them, in order, to
+     * another sink.
+     *
+     * @param in   The records.
+     * @param sink The sink that receives the events.
+     * @return The number of records read.
+     * @throws IOException if the records cannot be read or are corrupt.
+     */
+    public static long decode(InputStream in, AvlEventSink sink) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        List<String> names = new ArrayList<>();
+        long count = 0;
+        for (int type; (type = data.read()) >= 0; count++) {
+            switch (type) {
+                case WELCOMED:
+                    sink.welcomed(readName(data, names), readName(data, names));
+                    break;
+                case LEFT_FAMILY:
+                    sink.leftFamily(readName(data, names), readName(data, names));
+                    break;
+                case LEFT_NOBODY:
+                    sink.leftFamily(readName(data, names), null);
+                    break;
+                case TARGET:
+                    sink.target(readName(data, names), data.readFloat());
+                    break;
+                case DIVIDE:
+                    sink.divide(data.readInt());
+                    break;
+                case RANK_OF:
+                    sink.rankOf(data.readInt());
+                    break;
+                case COUNT:
+                    sink.count(data.readInt());
+                    break;
+                case SELECT:
+                    sink.select(readName(data, names), data.readFloat());
+                    break;
+                case FLOOR:
+                    sink.floor(readName(data, names), data.readFloat());
+                    break;
+                case CEILING:
+                    sink.ceiling(readName(data, names), data.readFloat());
+                    break;
+                case RANK_BEGIN:
+                    sink.rankBegin();
+                    break;
+                case RANGE_BEGIN:
+                    sink.rangeBegin();
+                    break;
+                case NEAREST_BEGIN:
+                    sink.nearestBegin();
+                    break;
+                case MEMBER:
+                    sink.member(readName(data, names), data.readFloat());
+                    break;
+                case END_LIST:
+                    sink.endList();
+                    break;
+                default:
+                    throw new IOException("Unknown event type " + type + " after " + count + " records");
+            }
+        }
+        return count;
+    }
+
+    private static String readName(DataInputStream data, List<String> names) throws IOException {
+        int reference = readVarint(data);
+        if (reference > 0) {
+            if (reference > names.size()) {
+                throw new IOException("Unknown name number " + (reference - 1));
+            }
+            return names.get(reference - 1);
+        }
+        byte[] bytes = new byte[readVarint(data)];
+        data.readFully(bytes);
+        String name = new String(bytes, StandardCharsets.UTF_8);
+        if (names.size() == MAX_NAMES) {
+            names.clear();
+        }
+        names.add(name);
+        return name;
+    }
+
+    private static int readVarint(DataInputStream data) throws IOException {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = data.read();
+            if (b < 0) {
+                throw new EOFException("Truncated record");
+            }
+            if (shift > 28) {
+                throw new IOException("Varint is too long");
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("Negative varint");
+                }
+                return value;
+            }
+        }
+    }
+}
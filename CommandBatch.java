@@ -0,0 +1,193 @@
+import java.io.IOException;
+
+/**
+ * A fixed size batch of parsed commands stored column by column. Batches are
+ * what the parser stage hands to the apply stage in the pipelined mode, so the
+ * ring buffer is touched once per batch instead of once per command.
+ */
+public class CommandBatch implements CommandParser.Handler {
+
+    static final byte MEMBER_IN = 0;
+    static final byte MEMBER_OUT = 1;
+    static final byte INTEL_TARGET = 2;
+    static final byte INTEL_RANK = 3;
+    static final byte INTEL_DIVIDE = 4;
+    static final byte INTEL_RANK_OF = 5;
+    static final byte INTEL_SELECT = 6;
+    static final byte INTEL_COUNT = 7;
+    static final byte MEMBER_OUT_BY_NAME = 8;
+    static final byte INTEL_RANK_BY_NAME = 9;
+    static final byte INTEL_FLOOR = 10;
+    static final byte INTEL_CEILING = 11;
+    static final byte INTEL_RANGE = 12;
+    static final byte INTEL_NEAREST = 13;
+
+    /**
+     * Marker batch that signals the end of the command stream.
+     */
+    static final CommandBatch END = new CommandBatch(0);
+
+    private final byte[] types;
+    private final String[] names1;
+    private final float[] gmsValues1;
+    private final String[] names2;
+    private final float[] gmsValues2;
+    private final int[] ints;
+    private int size;
+
+    public CommandBatch(int capacity) {
+        types = new byte[capacity];
+        names1 = new String[capacity];
+        gmsValues1 = new float[capacity];
+        names2 = new String[capacity];
+        gmsValues2 = new float[capacity];
+        ints = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == types.length;
+    }
+
+    private void add(byte type, String name1, float gmsValue1, String name2, float gmsValue2) {
+        types[size] = type;
+        names1[size] = name1;
+        gmsValues1[size] = gmsValue1;
+        names2[size] = name2;
+        gmsValues2[size] = gmsValue2;
+        ints[size] = 0;
+        size++;
+    }
+
+    @Override
+    public void memberIn(String name, float gmsValue) {
+        add(MEMBER_IN, name, gmsValue, null, 0);
+    }
+
+    @Override
+    public void memberOut(String name, float gmsValue) {
+        add(MEMBER_OUT, name, gmsValue, null, 0);
+    }
+
+    @Override
+    public void memberOutByName(String name) {
+        add(MEMBER_OUT_BY_NAME, name, 0, null, 0);
+    }
+
+    @Override
+    public void intelTarget(String name1, float gmsValue1, String name2, float gmsValue2) {
+        add(INTEL_TARGET, name1, gmsValue1, name2, gmsValue2);
+    }
+
+    @Override
+    public void intelRank(String name, float gmsValue) {
+        add(INTEL_RANK, name, gmsValue, null, 0);
+    }
+
+    @Override
+    public void intelRankByName(String name) {
+        add(INTEL_RANK_BY_NAME, name, 0, null, 0);
+    }
+
+    @Override
+    public void intelDivide() {
+        add(INTEL_DIVIDE, null, 0, null, 0);
+    }
+
+    @Override
+    public void intelRankOf(float gmsValue) {
+        add(INTEL_RANK_OF, null, gmsValue, null, 0);
+    }
+
+    @Override
+    public void intelSelect(int k) {
+        add(INTEL_SELECT, null, 0, null, 0);
+        ints[size - 1] = k;
+    }
+
+    @Override
+    public void intelCount(float lo, float hi) {
+        add(INTEL_COUNT, null, lo, null, hi);
+    }
+
+    @Override
+    public void intelFloor(float gmsValue) {
+        add(INTEL_FLOOR, null, gmsValue, null, 0);
+    }
+
+    @Override
+    public void intelCeiling(float gmsValue) {
+        add(INTEL_CEILING, null, gmsValue, null, 0);
+    }
+
+    @Override
+    public void intelRange(float lo, float hi) {
+        add(INTEL_RANGE, null, lo, null, hi);
+    }
+
+    @Override
+    public void intelNearest(float gmsValue, int k) {
+        add(INTEL_NEAREST, null, gmsValue, null, 0);
+        ints[size - 1] = k;
+    }
+
+    /**
+     * Replays the commands of this batch, in order, on the given handler.
+     *
+     * @param handler The handler that applies the commands.
+     * @throws IOException if the handler fails.
+     */
+    public void applyTo(CommandParser.Handler handler) throws IOException {
+        for (int i = 0; i < size; i++) {
+            switch (types[i]) {
+                case MEMBER_IN:
+                    handler.memberIn(names1[i], gmsValues1[i]);
+                    break;
+                case MEMBER_OUT:
+                    handler.memberOut(names1[i], gmsValues1[i]);
+                    break;
+                case INTEL_TARGET:
+                    handler.intelTarget(names1[i], gmsValues1[i], names2[i], gmsValues2[i]);
+                    break;
+                case INTEL_RANK:
+                    handler.intelRank(names1[i], gmsValues1[i]);
+                    break;
+                case INTEL_DIVIDE:
+                    handler.intelDivide();
+                    break;
+                case INTEL_RANK_OF:
+                    handler.intelRankOf(gmsValues1[i]);
+                    break;
+                case INTEL_SELECT:
+                    handler.intelSelect(ints[i]);
+                    break;
+                case INTEL_COUNT:
+                    handler.intelCount(gmsValues1[i], gmsValues2[i]);
+                    break;
+                case MEMBER_OUT_BY_NAME:
+                    handler.memberOutByName(names1[i]);
+                    break;
+                case INTEL_RANK_BY_NAME:
+                    handler.intelRankByName(names1[i]);
+                    break;
+                case INTEL_FLOOR:
+                    handler.intelFloor(gmsValues1[i]);
+                    break;
+                case INTEL_CEILING:
+                    handler.intelCeiling(gmsValues1[i]);
+                    break;
+                case INTEL_RANGE:
+                    handler.intelRange(gmsValues1[i], gmsValues2[i]);
+                    break;
+                case INTEL_NEAREST:
+                    handler.intelNearest(gmsValues1[i], ints[i]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown command type " + types[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal of the commands that change the tree
+ * (MEMBER_IN and MEMBER_OUT). Every such command is appended before it is
+ * applied, so the tree can be recovered after a crash by restoring the last
+ * checkpoint and replaying the journal onto it.
+ *
+ * The file starts with a header
+ *
+ * <pre>
+ * int   magic ("AVLJ")
+ * long  epoch of the checkpoint the records continue
+ * </pre>
+ *
+ * A checkpoint is saved before the journal is emptied, so a crash in between
+ * leaves records that the checkpoint already holds. Their epoch is then older
+ * than the checkpoint's, and replay skips them instead of applying them twice.
+ * Journals written before the header existed start directly with a record and
+ * count as epoch 0.
+ *
+ * Each record follows the header and is encoded as
+ *
+ * <pre>
+ * byte  type (1: MEMBER_IN, 2: MEMBER_OUT, 3: MEMBER_OUT by name)
+ * float grams value
+ * int   name length, in UTF-8 bytes
+ * byte  name [name length]
+ * int   CRC32 of the bytes above
+ * </pre>
+ *
+ * Records are collected in memory and written and synced to disk as a group
+ * (group commit): when the group holds {@link #DEFAULT_GROUP_COMMANDS}
+ * commands, when an append or {@link #commitIfDue()} finds the group older than
+ * the group delay, or on {@link #commit()} and {@link #close()}. The age is only
+ * checked on those calls, so a caller that stops appending must keep calling
+ * commitIfDue, as Main does for every query, to bound how long a group stays
+ * unsynced. A crash can therefore lose at most the last uncommitted group, and
+ * the cost of an fsync is shared by all commands of a group. A record torn by
+ * a crash fails its CRC check and ends the replay.
+ */
+public class CommandJournal implements Closeable {
+
+    public static final int DEFAULT_GROUP_COMMANDS = 512;
+    public static final long DEFAULT_GROUP_NANOS = 5_000_000L;
+
+    private static final byte MEMBER_IN = 1;
+    private static final byte MEMBER_OUT = 2;
+    private static final byte MEMBER_OUT_BY_NAME = 3;
+    private static final int MAGIC = 0x41564C4A;
+    private static final int FILE_HEADER_BYTES = 12;
+    private static final int HEADER_BYTES = 9;
+
+    private final FileChannel channel;
+    private final int groupCommands;
+    private final long groupNanos;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(64 << 10);
+    private int pending;
+    private long groupStart;
+
+    /**
+     * Opens a journal of epoch 0 with the default group size and delay, appending
+     * to the records already in the file.
+     *
+     * @param file The journal file.
+     * @throws IOException if the file cannot be opened.
+     */
+    public CommandJournal(File file) throws IOException {
+        this(file, 0);
+    }
+
+    /**
+     * Opens a journal with the default group size and delay, see
+     * {@link #CommandJournal(File, long, int, long)}.
+     *
+     * @param file  The journal file.
+     * @param epoch The epoch of the checkpoint the journal continues.
+     * @throws IOException if the file cannot be opened.
+     */
+    public CommandJournal(File file, long epoch) throws IOException {
+        this(file, epoch, DEFAULT_GROUP_COMMANDS, DEFAULT_GROUP_NANOS);
+    }
+
+    /**
+     * Opens a journal of epoch 0, see {@link #CommandJournal(File, long, int, long)}.
+     *
+     * @param file          The journal file.
+     * @param groupCommands The number of commands after which a group is
+     *                      committed; 1 syncs every command.
+     * @param groupNanos    The age in nanoseconds after which a group is
+     *                      committed by the next append.
+     * @throws IOException if the file cannot be opened.
+     */
+    public CommandJournal(File file, int groupCommands, long groupNanos) throws IOException {
+        this(file, 0, groupCommands, groupNanos);
+    }
+
+    /**
+     * Opens a journal, appending to the records already in the file if they
+     * continue the same checkpoint. Records of an older epoch are stale and
+     * discarded.
+     *
+     * @param file          The journal file.
+     * @param epoch         The epoch of the checkpoint the journal continues.
+     * @param groupCommands The number of commands after which a group is
+     *                      committed; 1 syncs every command.
+     * @param groupNanos    The age in nanoseconds after which a group is
+     *                      committed by the next append.
+     * @throws IOException if the file cannot be opened, or continues a newer
+     *                     checkpoint.
+     */
+    public CommandJournal(File file, long epoch, int groupCommands, long groupNanos) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.groupCommands = groupCommands;
+        this.groupNanos = groupNanos;
+        long journalEpoch = epochOf(channel, file);
+        if (journalEpoch > epoch) {
+            channel.close();
+            throw new IOException("The journal continues checkpoint epoch " + journalEpoch + ", not " + epoch);
+        }
+        if (journalEpoch < epoch || channel.size() == 0) {
+            start(epoch);
+        }
+        this.channel.position(channel.size());
+    }
+
+    public void memberIn(String name, float gmsValue) throws IOException {
+        append(MEMBER_IN, name, gmsValue);
+    }
+
+    public void memberOut(String name, float gmsValue) throws IOException {
+        append(MEMBER_OUT, name, gmsValue);
+    }
+
+    public void memberOutByName(String name) throws IOException {
+        append(MEMBER_OUT_BY_NAME, name, 0);
+    }
+
+    private void append(byte type, String name, float gmsValue) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int recordLength = HEADER_BYTES + nameBytes.length + Integer.BYTES;
+        if (buffer.remaining() < recordLength) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + recordLength));
+            buffer.flip();
+            buffer = grown.put(buffer);
+        }
+        int start = buffer.position();
+        buffer.put(type).putFloat(gmsValue).putInt(nameBytes.length).put(nameBytes);
+        crc.reset();
+        crc.update(buffer.array(), start, buffer.position() - start);
+        buffer.putInt((int) crc.getValue());
+
+        if (pending++ == 0) {
+            groupStart = System.nanoTime();
+        }
+        if (pending >= groupCommands || System.nanoTime() - groupStart >= groupNanos) {
+            commit();
+        }
+    }
+
+    /**
+     * Commits the current group if it is older than the group delay. Cheap when
+     * nothing is pending, so it can be called for every command that does not
+     * append.
+     *
+     * @throws IOException if writing or syncing fails.
+     */
+    public void commitIfDue() throws IOException {
+        if (pending > 0 && System.nanoTime() - groupStart >= groupNanos) {
+            commit();
+        }
+    }
+
+    /**
+     * Writes the records of the current group and syncs them to disk.
+     *
+     * @throws IOException if writing or syncing fails.
+     */
+    public void commit() throws IOException {
+        if (pending == 0) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        channel.force(false);
+        pending = 0;
+    }
+
+    /**
+     * Discards all records after a checkpoint that includes them was written, and
+     * continues that checkpoint.
+     *
+     * @param epoch The epoch of the new checkpoint.
+     * @throws IOException if the file cannot be truncated.
+     */
+    public void reset(long epoch) throws IOException {
+        buffer.clear();
+        pending = 0;
+        start(epoch);
+        channel.position(FILE_HEADER_BYTES);
+    }
+
+    /** Empties the file and writes the header of the given epoch. */
+    private void start(long epoch) throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).putInt(MAGIC).putLong(epoch).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(true);
+    }
+
+    /**
+     * Returns the epoch in the header of a journal file: 0 if the file starts
+     * with a record (no header), -1 if it is empty or its header was torn by a
+     * crash.
+     */
+    private static long epochOf(FileChannel channel, File file) throws IOException {
+        long length = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+        }
+        if (length == 0) {
+            return -1;
+        }
+        if (header.get(0) != (byte) (MAGIC >>> 24)) {
+            return 0;
+        }
+        if (length < FILE_HEADER_BYTES) {
+            return -1;
+        }
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a journal file: " + file);
+        }
+        return header.getLong(4);
+    }
+
+    /**
+     * Tells whether a journal file holds any records, of whatever epoch.
+     *
+     * @param file The journal file. A missing file holds no records.
+     * @return true if the file holds records after its header.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean hasRecords(File file) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The shortest record is longer than the header, so this also holds without one.
+            return epochOf(channel, file) >= 0 && channel.size() > FILE_HEADER_BYTES;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Replays the records of a journal file onto a tree, without writing to the
+     * tree's log. The replay stops at the first incomplete or corrupt record,
+     * which a crash during a group commit leaves behind, and the file is cut off
+     * there so that new records follow the last valid one. Records of an epoch
+     * older than the tree's are already in its checkpoint and are skipped.
+     *
+     * @param file The journal file. A missing file counts as an empty journal.
+     * @param tree The tree to replay onto, usually restored from the checkpoint
+     *             the journal continues.
+     * @return The number of replayed records.
+     * @throws IOException if the file cannot be read, or continues a newer
+     *                     checkpoint than the tree's.
+     */
+    public static int replay(File file, AvlTree tree) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        AvlEventSink events = tree.getEventSink();
+        tree.setEventSink(NoOpEventSink.INSTANCE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long epoch = epochOf(channel, file);
+            if (epoch > tree.checkpointEpoch) {
+                throw new IOException("The journal continues checkpoint epoch " + epoch + ", not "
+                        + tree.checkpointEpoch);
+            }
+            if (epoch < tree.checkpointEpoch) {
+                return 0;
+            }
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Journal file is too large: " + file);
+            }
+            // Read into the heap rather than mapped, so that the torn tail can be cut off on every platform.
+            ByteBuffer records = ByteBuffer.allocate((int) length);
+            while (records.hasRemaining() && channel.read(records) >= 0) {
+            }
+            CRC32 crc = new CRC32();
+            byte[] name = new byte[64];
+            int position = records.get(0) == (byte) (MAGIC >>> 24) ? FILE_HEADER_BYTES : 0;
+            int count = 0;
+            while (length - position >= HEADER_BYTES + Integer.BYTES) {
+                byte type = records.get(position);
+                float gmsValue = records.getFloat(position + 1);
+                int nameLength = records.getInt(position + 5);
+                if (nameLength < 0 || nameLength > length - position - HEADER_BYTES - Integer.BYTES) {
+                    break;
+                }
+                int end = position + HEADER_BYTES + nameLength;
+                crc.reset();
+                crc.update(records.duplicate().position(position).limit(end));
+                if (records.getInt(end) != (int) crc.getValue()) {
+                    break;
+                }
+                if (name.length < nameLength) {
+                    name = new byte[Math.max(nameLength, name.length * 2)];
+                }
+                records.get(position + HEADER_BYTES, name, 0, nameLength);
+                String memberName = new String(name, 0, nameLength, StandardCharsets.UTF_8);
+                if (type == MEMBER_IN) {
+                    tree.insert(memberName, gmsValue);
+                } else if (type == MEMBER_OUT) {
+                    tree.delete(memberName, gmsValue);
+                } else if (type == MEMBER_OUT_BY_NAME) {
+                    tree.deleteByName(memberName);
+                } else {
+                    break;
+                }
+                position = end + Integer.BYTES;
+                count++;
+            }
+            if (position < length) {
+                channel.truncate(position);
+                channel.force(true);
+            }
+            return count;
+        } finally {
+            tree.setEventSink(events);
+        }
+    }
+}
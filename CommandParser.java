@@ -0,0 +1,391 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming command parser that reads the input file through memory-mapped
+ * windows of a {@link FileChannel} and hands every command to a
+ * {@link Handler} as soon as its line has been parsed.
+ * Keywords are matched and grams values are parsed directly on the mapped
+ * bytes, so no String is created for keywords or numbers and no list is
+ * built per line. Only member names are turned into Strings.
+ */
+public class CommandParser {
+
+    /**
+     * Receives the commands of an input file in the order they appear.
+     * The first line of the file (the root member) is reported through
+     * {@link #memberIn(String, float)}.
+     */
+    public interface Handler {
+        void memberIn(String name, float gmsValue) throws IOException;
+
+        void memberOut(String name, float gmsValue) throws IOException;
+
+        void memberOutByName(String name) throws IOException;
+
+        void intelTarget(String name1, float gmsValue1, String name2, float gmsValue2) throws IOException;
+
+        void intelRank(String name, float gmsValue) throws IOException;
+
+        void intelRankByName(String name) throws IOException;
+
+        void intelDivide() throws IOException;
+
+        void intelRankOf(float gmsValue) throws IOException;
+
+        void intelSelect(int k) throws IOException;
+
+        void intelCount(float lo, float hi) throws IOException;
+
+        void intelFloor(float gmsValue) throws IOException;
+
+        void intelCeiling(float gmsValue) throws IOException;
+
+        void intelRange(float lo, float hi) throws IOException;
+
+        void intelNearest(float gmsValue, int k) throws IOException;
+
+        /**
+         * Called once after the last command of the input. Handlers that hold
+         * back commands must apply them here.
+         */
+        default void endOfInput() throws IOException {
+        }
+    }
+
+    /**
+     * Size of a single mapped window. A line must fit in one window.
+     */
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    private static final byte[] MEMBER_IN = ascii("MEMBER_IN");
+    private static final byte[] MEMBER_OUT = ascii("MEMBER_OUT");
+    private static final byte[] INTEL_TARGET = ascii("INTEL_TARGET");
+    private static final byte[] INTEL_RANK = ascii("INTEL_RANK");
+    private static final byte[] INTEL_DIVIDE = ascii("INTEL_DIVIDE");
+    private static final byte[] INTEL_RANK_OF = ascii("INTEL_RANK_OF");
+    private static final byte[] INTEL_SELECT = ascii("INTEL_SELECT");
+    private static final byte[] INTEL_COUNT = ascii("INTEL_COUNT");
+    private static final byte[] INTEL_FLOOR = ascii("INTEL_FLOOR");
+    private static final byte[] INTEL_CEILING = ascii("INTEL_CEILING");
+    private static final byte[] INTEL_RANGE = ascii("INTEL_RANGE");
+    private static final byte[] INTEL_NEAREST = ascii("INTEL_NEAREST");
+
+    /**
+     * Powers of ten that are exactly representable as floats.
+     */
+    private static final float[] FLOAT_POW10 = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f,
+            1e10f };
+
+    private final Handler handler;
+    private final boolean rootLine;
+
+    private MappedByteBuffer buffer;
+    private byte[] scratch = new byte[64];
+    private int tokenStart;
+    private int tokenEnd;
+
+    public CommandParser(Handler handler) {
+        this(handler, true);
+    }
+
+    /**
+     * Creates a parser for an input whose first line is either the root member or,
+     * for an input that continues a restored tree, an ordinary command.
+     *
+     * @param handler  The handler that receives the commands.
+     * @param rootLine Whether the first line names the root member.
+     */
+    public CommandParser(Handler handler, boolean rootLine) {
+        this.handler = handler;
+        this.rootLine = rootLine;
+    }
+
+    private static byte[] ascii(String keyword) {
+        return keyword.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Parses the given input file window by window and dispatches every command
+     * to the handler while reading.
+     *
+     * @param file The input file to parse.
+     * @throws IOException if the file cannot be read, a line does not fit in a
+     *                     mapped window, or the handler fails.
+     */
+    public void parse(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            long fileSize = channel.size();
+            long windowStart = 0;
+            boolean first = rootLine;
+
+            while (windowStart < fileSize) {
+                int limit = (int) Math.min(WINDOW_SIZE, fileSize - windowStart);
+                boolean lastWindow = windowStart + limit == fileSize;
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, limit);
+
+                int pos = 0;
+                while (pos < limit) {
+                    int eol = indexOfNewline(pos, limit);
+                    if (eol < 0) {
+                        if (!lastWindow) {
+                            break;
+                        }
+                        eol = limit;
+                    }
+                    if (first) {
+                        parseRootLine(pos, eol);
+                        first = false;
+                    } else {
+                        parseCommandLine(pos, eol);
+                    }
+                    pos = eol + 1;
+                }
+
+                if (pos == 0) {
+                    throw new IOException("Line at offset " + windowStart + " is longer than " + WINDOW_SIZE
+                            + " bytes");
+                }
+                windowStart += Math.min(pos, limit);
+            }
+            buffer = null;
+        }
+        handler.endOfInput();
+    }
+
+    private int indexOfNewline(int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the first line of the input, which only holds the name and the
+     * grams value of the root member.
+     */
+    private void parseRootLine(int pos, int end) throws IOException {
+        end = trimCarriageReturn(pos, end);
+        if (!nextToken(pos, end)) {
+            return;
+        }
+        String name = tokenString();
+        if (!nextToken(tokenEnd, end)) {
+            return;
+        }
+        handler.memberIn(name, tokenFloat());
+    }
+
+    /**
+     * Parses one command line and dispatches it to the handler. Lines with an
+     * unknown keyword are ignored.
+     */
+    private void parseCommandLine(int pos, int end) throws IOException {
+        end = trimCarriageReturn(pos, end);
+        if (!nextToken(pos, end)) {
+            return;
+        }
+
+        if (tokenEquals(MEMBER_IN)) {
+            nextToken(tokenEnd, end);
+            String name = tokenString();
+            nextToken(tokenEnd, end);
+            handler.memberIn(name, tokenFloat());
+        } else if (tokenEquals(MEMBER_OUT)) {
+            nextToken(tokenEnd, end);
+            String name = tokenString();
+            if (nextToken(tokenEnd, end)) {
+                handler.memberOut(name, tokenFloat());
+            } else {
+                handler.memberOutByName(name);
+            }
+        } else if (tokenEquals(INTEL_TARGET)) {
+            nextToken(tokenEnd, end);
+            String name1 = tokenString();
+            nextToken(tokenEnd, end);
+            float gmsValue1 = tokenFloat();
+            nextToken(tokenEnd, end);
+            String name2 = tokenString();
+            nextToken(tokenEnd, end);
+            handler.intelTarget(name1, gmsValue1, name2, tokenFloat());
+        } else if (tokenEquals(INTEL_RANK)) {
+            nextToken(tokenEnd, end);
+            String name = tokenString();
+            if (nextToken(tokenEnd, end)) {
+                handler.intelRank(name, tokenFloat());
+            } else {
+                handler.intelRankByName(name);
+            }
+        } else if (tokenEquals(INTEL_DIVIDE)) {
+            handler.intelDivide();
+        } else if (tokenEquals(INTEL_RANK_OF)) {
+            nextToken(tokenEnd, end);
+            handler.intelRankOf(tokenFloat());
+        } else if (tokenEquals(INTEL_SELECT)) {
+            nextToken(tokenEnd, end);
+            handler.intelSelect(tokenInt());
+        } else if (tokenEquals(INTEL_COUNT)) {
+            nextToken(tokenEnd, end);
+            float lo = tokenFloat();
+            nextToken(tokenEnd, end);
+            handler.intelCount(lo, tokenFloat());
+        } else if (tokenEquals(INTEL_FLOOR)) {
+            nextToken(tokenEnd, end);
+            handler.intelFloor(tokenFloat());
+        } else if (tokenEquals(INTEL_CEILING)) {
+            nextToken(tokenEnd, end);
+            handler.intelCeiling(tokenFloat());
+        } else if (tokenEquals(INTEL_RANGE)) {
+            nextToken(tokenEnd, end);
+            float lo = tokenFloat();
+            nextToken(tokenEnd, end);
+            handler.intelRange(lo, tokenFloat());
+        } else if (tokenEquals(INTEL_NEAREST)) {
+            nextToken(tokenEnd, end);
+            float gmsValue = tokenFloat();
+            nextToken(tokenEnd, end);
+            handler.intelNearest(gmsValue, tokenInt());
+        }
+    }
+
+    private int trimCarriageReturn(int pos, int end) {
+        if (end > pos && buffer.get(end - 1) == '\r') {
+            return end - 1;
+        }
+        return end;
+    }
+
+    /**
+     * Moves to the next space separated token in [from, end) and stores its bounds
+     * in tokenStart and tokenEnd.
+     *
+     * @return true if a token was found, false otherwise (the bounds then describe
+     *         an empty token at the end of the line).
+     */
+    private boolean nextToken(int from, int end) {
+        int i = from;
+        while (i < end && isSeparator(buffer.get(i))) {
+            i++;
+        }
+        tokenStart = i;
+        while (i < end && !isSeparator(buffer.get(i))) {
+            i++;
+        }
+        tokenEnd = i;
+        return tokenStart < tokenEnd;
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private boolean tokenEquals(byte[] keyword) {
+        if (tokenEnd - tokenStart != keyword.length) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length; i++) {
+            if (buffer.get(tokenStart + i) != keyword[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String tokenString() {
+        int length = tokenEnd - tokenStart;
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        buffer.get(tokenStart, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses the current token as a float. Plain decimal numbers whose digits fit
+     * in the float mantissa are converted with a single float division, which is
+     * correctly rounded and therefore equal to {@link Float#parseFloat(String)}.
+     * Anything else (exponents, long fractions, malformed input) falls back to
+     * {@link Float#parseFloat(String)}.
+     *
+     * @return The parsed grams value.
+     * @throws NumberFormatException if the token is not a valid float.
+     */
+    private float tokenFloat() {
+        int i = tokenStart;
+        boolean negative = false;
+        if (i < tokenEnd && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenDot = false;
+        for (; i < tokenEnd; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (seenDot) {
+                    fractionDigits++;
+                }
+                if (mantissa > (1 << 24)) {
+                    return slowTokenFloat();
+                }
+            } else if (b == '.' && !seenDot) {
+                seenDot = true;
+            } else {
+                return slowTokenFloat();
+            }
+        }
+
+        if (digits == 0 || fractionDigits >= FLOAT_POW10.length) {
+            return slowTokenFloat();
+        }
+        float value = (float) mantissa / FLOAT_POW10[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses the current token as a decimal int.
+     *
+     * @return The parsed value.
+     * @throws NumberFormatException if the token is not a valid int.
+     */
+    private int tokenInt() {
+        int i = tokenStart;
+        boolean negative = false;
+        if (i < tokenEnd && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        if (i == tokenEnd) {
+            return Integer.parseInt(tokenString());
+        }
+        long value = 0;
+        for (; i < tokenEnd; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9' || value > Integer.MAX_VALUE) {
+                return Integer.parseInt(tokenString());
+            }
+            value = value * 10 + (b - '0');
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return Integer.parseInt(tokenString());
+        }
+        return (int) value;
+    }
+
+    private float slowTokenFloat() {
+        return Float.parseFloat(tokenString());
+    }
+}
@@ -0,0 +1,301 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Thread-safe view of an {@link AvlTree} for workloads where queries far
+ * outnumber updates. insert and delete take the write lock of a
+ * {@link StampedLock}. Point queries first run without any lock (an
+ * optimistic read) and only count if no writer got in between; otherwise they
+ * are retried, and finally run under the read lock. Queries therefore scale
+ * across cores while updates keep exclusive access.
+ * A writer can rotate nodes under an optimistic reader and send its descent
+ * around in circles, so the point queries use bounded copies of the tree's
+ * descents, which give up below {@link #MAX_DEPTH}; during an optimistic
+ * attempt that only fails the validation. AvlTree's own descents stay
+ * unbounded.
+ * The wrapped tree must not be used directly once it is wrapped. Queries
+ * return values or {@link Member} copies instead of writing to the tree's log.
+ */
+public class ConcurrentAvlTree {
+
+    private static final int OPTIMISTIC_ATTEMPTS = 2;
+
+    /**
+     * Upper bound on the depth of any balanced tree that fits in memory. A
+     * descent can only get deeper while a writer changes the tree under an
+     * optimistic read.
+     */
+    static final int MAX_DEPTH = 128;
+
+    private final AvlTree tree;
+    private final StampedLock lock = new StampedLock();
+
+    public ConcurrentAvlTree(AvlTree tree) {
+        this.tree = tree;
+    }
+
+    public void insert(String name, float gmsValue) throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            tree.insert(name, gmsValue);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void delete(String name, float gmsValue) throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            tree.delete(name, gmsValue);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        return readInt(tree::size);
+    }
+
+    /**
+     * Returns the depth of the member with the given grams value, like
+     * {@link AvlTree#searchNodeRank(String, float)}.
+     *
+     * @param name     The name of the member (not used for the lookup).
+     * @param gmsValue The grams value of the member.
+     * @return The depth of the member, or -1 if it is not in the tree.
+     */
+    public int searchNodeRank(String name, float gmsValue) {
+        return readInt(() -> depthOf(gmsValue));
+    }
+
+    /**
+     * Returns the member that {@link AvlTree#intel_targeter} would report for the
+     * two grams values.
+     *
+     * @param gmsValue1 The grams value of the first member.
+     * @param gmsValue2 The grams value of the second member.
+     * @return The lowest member whose grams value lies between the two values, or
+     *         null if the tree holds no such member.
+     */
+    public Member target(float gmsValue1, float gmsValue2) {
+        return read(() -> member(targetOf(gmsValue1, gmsValue2)));
+    }
+
+    /**
+     * Returns the number of members lighter than the given grams value, like
+     * {@link AvlTree#rankOf(float)}.
+     *
+     * @param gmsValue The grams value to rank.
+     * @return The number of members with a smaller grams value.
+     */
+    public int rankOf(float gmsValue) {
+        return readInt(() -> countBelow(gmsValue, false));
+    }
+
+    /**
+     * Counts the members whose grams value lies in [lo, hi], like
+     * {@link AvlTree#countBetween(float, float)}.
+     *
+     * @param lo The lower bound (inclusive).
+     * @param hi The upper bound (inclusive).
+     * @return The number of members in the range.
+     */
+    public int countBetween(float lo, float hi) {
+        return readInt(() -> lo > hi ? 0 : countBelow(hi, true) - countBelow(lo, false));
+    }
+
+    /**
+     * Returns the member with exactly k lighter members, like
+     * {@link AvlTree#select(int)}.
+     *
+     * @param k The 0-based position in ascending grams order.
+     * @return The member at position k, or null if k is out of range.
+     */
+    public Member select(int k) {
+        return read(() -> member(nodeAt(k)));
+    }
+
+    /**
+     * Returns the division analysis result, like {@link AvlTree#intel_divide()},
+     * without writing it.
+     *
+     * @return The division analysis result.
+     */
+    public int divide() {
+        return readInt(tree::divideResult);
+    }
+
+    /**
+     * Returns the members at the depth of the member with the given grams value,
+     * from left to right, like {@link AvlTree#intel_rank(String, float)}. The
+     * level walk can visit many nodes, so it runs under the read lock.
+     *
+     * @param name     The name of the member (not used for the lookup).
+     * @param gmsValue The grams value of the member.
+     * @return The members at the same depth, or an empty list if the member is not
+     *         in the tree.
+     */
+    public List<Member> rankMembers(String name, float gmsValue) {
+        long stamp = lock.readLock();
+        try {
+            List<Member> members = new ArrayList<>();
+            int depth = tree.searchNodeRank(name, gmsValue);
+            if (depth >= 0) {
+                tree.reportDepth(depth, (memberName, value) -> members.add(new Member(memberName, value)));
+            }
+            return members;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static Member member(AvlTree.AvlNode node) {
+        return node == null ? null : new Member(node.name, node.gmsValue);
+    }
+
+    /** {@link AvlTree#searchNodeRank(String, float)}, bounded by MAX_DEPTH. */
+    private int depthOf(float gmsValue) {
+        AvlTree.AvlNode current = tree.root;
+        for (int depth = 0; current != null; depth++) {
+            checkDepth(depth);
+            if (gmsValue < current.gmsValue) {
+                current = current.leftChild;
+            } else if (gmsValue > current.gmsValue) {
+                current = current.rightChild;
+            } else {
+                return depth;
+            }
+        }
+        return -1;
+    }
+
+    /** {@link AvlTree#target(float, float)}, bounded by MAX_DEPTH. */
+    private AvlTree.AvlNode targetOf(float gmsValue1, float gmsValue2) {
+        AvlTree.AvlNode current = tree.root;
+        for (int depth = 0; current != null; depth++) {
+            checkDepth(depth);
+            if (gmsValue1 < current.gmsValue && gmsValue2 < current.gmsValue) {
+                current = current.leftChild;
+            } else if (gmsValue1 > current.gmsValue && gmsValue2 > current.gmsValue) {
+                current = current.rightChild;
+            } else {
+                break;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * {@link AvlTree#rankOf(float)}, or with inclusive set the number of members
+     * of at most the grams value, bounded by MAX_DEPTH.
+     */
+    private int countBelow(float gmsValue, boolean inclusive) {
+        AvlTree.AvlNode current = tree.root;
+        int count = 0;
+        for (int depth = 0; current != null; depth++) {
+            checkDepth(depth);
+            if (gmsValue < current.gmsValue || (!inclusive && gmsValue == current.gmsValue)) {
+                current = current.leftChild;
+            } else {
+                count += sizeOf(current.leftChild) + 1;
+                current = current.rightChild;
+            }
+        }
+        return count;
+    }
+
+    /** {@link AvlTree#select(int)}, bounded by MAX_DEPTH. */
+    private AvlTree.AvlNode nodeAt(int k) {
+        AvlTree.AvlNode current = tree.root;
+        if (k < 0 || k >= sizeOf(current)) {
+            return null;
+        }
+        for (int depth = 0; current != null; depth++) {
+            checkDepth(depth);
+            int leftSize = sizeOf(current.leftChild);
+            if (k < leftSize) {
+                current = current.leftChild;
+            } else if (k > leftSize) {
+                k -= leftSize + 1;
+                current = current.rightChild;
+            } else {
+                return current;
+            }
+        }
+        return null;
+    }
+
+    private static int sizeOf(AvlTree.AvlNode node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static void checkDepth(int depth) {
+        if (depth >= MAX_DEPTH) {
+            throw new ConcurrentModificationException("Descent deeper than " + MAX_DEPTH);
+        }
+    }
+
+    /**
+     * Runs a query optimistically, retrying it while writers interfere, and under
+     * the read lock as a last resort. A query that runs into an inconsistent
+     * state (a cycle or a missing node) during an optimistic attempt simply
+     * fails validation.
+     */
+    private <T> T read(Supplier<T> query) {
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0) {
+                continue;
+            }
+            try {
+                T result = query.get();
+                if (lock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        long stamp = lock.readLock();
+        try {
+            return query.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private int readInt(IntSupplier query) {
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0) {
+                continue;
+            }
+            try {
+                int result = query.getAsInt();
+                if (lock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        long stamp = lock.readLock();
+        try {
+            return query.getAsInt();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.util.ConcurrentModificationException;
+
+/**
+ * Read-only copy of an {@link AvlTree} in flat arrays, for phases of the input
+ * that only query the tree. The copy has exactly the shape of the tree, so the
+ * depth based analyses give the same results, and it reports them to the event
+ * sink of the tree.
+ *
+ * The nodes are stored in van Emde Boas order: the top half of the levels of
+ * the tree is laid out first, recursively in the same order, followed by each
+ * subtree hanging below it, left to right, also recursively. A descent from the
+ * root therefore stays within a few contiguous blocks of the array, whatever
+ * the cache line and page sizes are. Each node takes three ints (grams value
+ * bits, left slot, right slot), so a cache line holds several nodes of a path,
+ * where the pointer tree touches a separate object per node. The names are
+ * only read for the answer and are kept in a separate array.
+ *
+ * For the rank analysis the slots are also listed level by level, so the
+ * members at a depth are found without a breadth first search from the root.
+ *
+ * The copy is valid until the next modification of the tree (see
+ * {@link #isValid()}); queries on a stale copy throw a
+ * {@link ConcurrentModificationException}.
+ */
+public final class FrozenAvlTree {
+
+    private static final int NONE = -1;
+
+    private final AvlTree tree;
+    private final int modCount;
+
+    /** Three ints per slot: Float.floatToRawIntBits(grams value), left slot, right slot. */
+    private final int[] nodes;
+    private final String[] names;
+    /** The slots in breadth first order; depth d is levels[levelStarts[d] .. levelStarts[d + 1]). */
+    private final int[] levels;
+    private final int[] levelStarts;
+
+    FrozenAvlTree(AvlTree tree) {
+        this.tree = tree;
+        this.modCount = tree.modCount;
+        int count = tree.size();
+        int height = tree.root == null ? -1 : tree.root.height;
+
+        // Number the nodes in breadth first order, remembering where each level starts.
+        AvlTree.AvlNode[] order = new AvlTree.AvlNode[count];
+        int[] left = new int[count];
+        int[] right = new int[count];
+        levelStarts = new int[height + 2];
+        int head = 0;
+        int tail = 0;
+        if (tree.root != null) {
+            order[tail++] = tree.root;
+        }
+        for (int depth = 0; depth <= height; depth++) {
+            levelStarts[depth] = head;
+            for (int end = tail; head < end; head++) {
+                AvlTree.AvlNode node = order[head];
+                left[head] = node.leftChild == null ? NONE : tail;
+                if (node.leftChild != null) {
+                    order[tail++] = node.leftChild;
+                }
+                right[head] = node.rightChild == null ? NONE : tail;
+                if (node.rightChild != null) {
+                    order[tail++] = node.rightChild;
+                }
+            }
+        }
+        levelStarts[height + 1] = count;
+
+        int[] slotOf = new int[count];
+        if (count > 0) {
+            layout(0, height + 1, left, right, slotOf, 0);
+        }
+
+        nodes = new int[3 * count];
+        names = new String[count];
+        levels = new int[count];
+        for (int i = 0; i < count; i++) {
+            int slot = slotOf[i];
+            nodes[3 * slot] = Float.floatToRawIntBits(order[i].gmsValue);
+            nodes[3 * slot + 1] = left[i] == NONE ? NONE : slotOf[left[i]];
+            nodes[3 * slot + 2] = right[i] == NONE ? NONE : slotOf[right[i]];
+            names[slot] = order[i].name;
+            levels[i] = slot;
+        }
+    }
+
+    /**
+     * Assigns slots from next on to the subtree of a node, cut off after the
+     * given number of levels, in van Emde Boas order.
+     *
+     * @return The first slot after the subtree.
+     */
+    private static int layout(int node, int levelCount, int[] left, int[] right, int[] slotOf, int next) {
+        if (levelCount == 1) {
+            slotOf[node] = next;
+            return next + 1;
+        }
+        int top = levelCount / 2;
+        next = layout(node, top, left, right, slotOf, next);
+        return layoutBelow(node, top, levelCount - top, left, right, slotOf, next);
+    }
+
+    /**
+     * Lays out the subtrees rooted at the given depth below a node, left to right.
+     */
+    private static int layoutBelow(int node, int depth, int levelCount, int[] left, int[] right, int[] slotOf,
+            int next) {
+        if (node == NONE) {
+            return next;
+        }
+        if (depth == 0) {
+            return layout(node, levelCount, left, right, slotOf, next);
+        }
+        next = layoutBelow(left[node], depth - 1, levelCount, left, right, slotOf, next);
+        return layoutBelow(right[node], depth - 1, levelCount, left, right, slotOf, next);
+    }
+
+    /**
+     * Returns whether the tree is unmodified since this copy was made.
+     */
+    public boolean isValid() {
+        return tree.modCount == modCount;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    private void checkValid() {
+        if (tree.modCount != modCount) {
+            throw new ConcurrentModificationException("The tree was modified after it was frozen");
+        }
+    }
+
+    float gmsValue(int slot) {
+        return Float.intBitsToFloat(nodes[3 * slot]);
+    }
+
+    String name(int slot) {
+        return names[slot];
+    }
+
+    /**
+     * Returns the slot of the lowest common ancestor of two grams values, the
+     * member {@link AvlTree#intel_targeter} reports, or -1 if no member lies
+     * between them.
+     */
+    int target(float gmsValue1, float gmsValue2) {
+        checkValid();
+        int slot = names.length == 0 ? NONE : 0;
+        while (slot != NONE) {
+            float gmsValue = Float.intBitsToFloat(nodes[3 * slot]);
+            if (gmsValue1 < gmsValue && gmsValue2 < gmsValue) {
+                slot = nodes[3 * slot + 1];
+            } else if (gmsValue1 > gmsValue && gmsValue2 > gmsValue) {
+                slot = nodes[3 * slot + 2];
+            } else {
+                break;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the depth of the member with the given grams value, like
+     * {@link AvlTree#searchNodeRank}.
+     *
+     * @param gmsValue The grams value of the member.
+     * @return The depth of the member, or -1 if no member has this grams value.
+     */
+    public int depthOf(float gmsValue) {
+        checkValid();
+        int slot = names.length == 0 ? NONE : 0;
+        int depth = 0;
+        while (slot != NONE) {
+            float current = Float.intBitsToFloat(nodes[3 * slot]);
+            if (gmsValue < current) {
+                slot = nodes[3 * slot + 1];
+            } else if (gmsValue > current) {
+                slot = nodes[3 * slot + 2];
+            } else {
+                return depth;
+            }
+            depth++;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of distinct 64 byte blocks of the node array that a
+     * descent to the given grams value reads: an estimate of its cache misses on a
+     * cold cache, for benchmarks where hardware counters are not available.
+     */
+    int blocksTouched(float gmsValue) {
+        int slot = names.length == 0 ? NONE : 0;
+        int blocks = 0;
+        long lastBlock = -1;
+        while (slot != NONE) {
+            long block = 12L * slot / 64;
+            if (block != lastBlock) {
+                blocks++;
+                lastBlock = block;
+            }
+            float current = Float.intBitsToFloat(nodes[3 * slot]);
+            if (gmsValue < current) {
+                slot = nodes[3 * slot + 1];
+            } else if (gmsValue > current) {
+                slot = nodes[3 * slot + 2];
+            } else {
+                break;
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Performs the target analysis exactly like {@link AvlTree#intel_targeter}.
+     *
+     * @param gmsValue1 The grams value of the first member.
+     * @param gmsValue2 The grams value of the second member.
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void intel_targeter(float gmsValue1, float gmsValue2) throws IOException {
+        int slot = target(gmsValue1, gmsValue2);
+        if (slot == NONE) {
+            // No member lies between the two values; let the tree fail the way it does.
+            tree.intel_targeter(null, null, gmsValue1, gmsValue2);
+            return;
+        }
+        tree.events.target(names[slot], gmsValue(slot));
+    }
+
+    /**
+     * Performs the rank analysis exactly like
+     * {@link AvlTree#intel_rank(String, float)}, writing the members at the depth
+     * of the given member from left to right.
+     *
+     * @param name     The name for which the rank analysis is performed.
+     * @param gmsValue The grams value for which the rank analysis is performed.
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void intel_rank(String name, float gmsValue) throws IOException {
+        int depth = depthOf(gmsValue);
+        if (depth < 0) {
+            // Not a member; the tree writes nothing.
+            return;
+        }
+        AvlEventSink events = tree.events;
+        events.rankBegin();
+        for (int i = levelStarts[depth]; i < levelStarts[depth + 1]; i++) {
+            int slot = levels[i];
+            events.member(names[slot], gmsValue(slot));
+        }
+        events.endList();
+    }
+
+    /**
+     * Performs the rank analysis for the member with the given name, like
+     * {@link AvlTree#intel_rank(String)}.
+     *
+     * @param name The name for which the rank analysis is performed.
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void intel_rank(String name) throws IOException {
+        checkValid();
+        AvlTree.AvlNode node = tree.findByName(name);
+        if (node != null) {
+            intel_rank(name, node.gmsValue);
+        }
+    }
+}
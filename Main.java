@@ -1,61 +1,608 @@
+import java.io.CharArrayWriter;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.lang.reflect.Array;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Scanner;
-import java.util.stream.Stream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class Main {
-    public static ArrayList<ArrayList<String>> inputReader(File file) throws IOException {
-        Scanner scanner = new Scanner(file);
-        ArrayList<ArrayList<String>> res = new ArrayList<>();
-        String rootNameAndGms = scanner.nextLine();
-        String[] arrOfStr = rootNameAndGms.split(" ");
-        ArrayList<String> temp = new ArrayList<String>(Arrays.asList(arrOfStr[0], arrOfStr[1]));
-        res.add(temp);
-
-        while (scanner.hasNextLine()) {
-            arrOfStr = scanner.nextLine().split(" ");
-            temp = new ArrayList<String>(Arrays.asList(arrOfStr));
-            res.add(temp);
-        }
-        scanner.close();
-        return res;
+
+    /**
+     * Applies every parsed command to the AVL tree as soon as it is read, except
+     * for runs of target analyses, which are collected and answered together by a
+     * {@link TargetBatch} before the next other command. Changes of the family are
+     * optionally appended to a {@link CommandJournal} before they are applied. At
+     * the end of the input the tree is optionally saved to a checkpoint file, which
+     * makes the journaled changes redundant, so the journal is then emptied and
+     * continues the epoch of the new checkpoint.
+     *
+     * Once enough rank and target analyses follow a change of the family to pay
+     * for the copy, the tree is frozen into a {@link FrozenAvlTree}, which answers
+     * them until the next change.
+     */
+    static class TreeHandler implements CommandParser.Handler {
+        /** A query whose text is captured for the result cache. */
+        private interface Query {
+            void run() throws IOException;
+        }
+
+        private final AvlTree tree;
+        private final TargetBatch targets;
+        private final File checkpoint;
+        private final CommandJournal journal;
+        private final QueryCache cache;
+        /** Collects the text of a query whose result goes into the cache. */
+        private final CharArrayWriter captured;
+        private final TextEventSink capture;
+        private FrozenAvlTree frozen;
+        private int readModCount = -1;
+        /** The rank and target analyses since the last change. */
+        private int reads;
+
+        TreeHandler(AvlTree tree) {
+            this(tree, null);
+        }
+
+        TreeHandler(AvlTree tree, File checkpoint) {
+            this(tree, checkpoint, null);
+        }
+
+        TreeHandler(AvlTree tree, File checkpoint, CommandJournal journal) {
+            this(tree, checkpoint, journal, null);
+        }
+
+        /**
+         * Creates a handler that answers repeated target, rank and division
+         * analyses from a result cache, while the tree writes the text log.
+         *
+         * @param cache The result cache, or null to compute every answer.
+         */
+        TreeHandler(AvlTree tree, File checkpoint, CommandJournal journal, QueryCache cache) {
+            this.tree = tree;
+            this.targets = new TargetBatch(tree);
+            this.checkpoint = checkpoint;
+            this.journal = journal;
+            this.cache = cache;
+            this.captured = cache == null ? null : new CharArrayWriter();
+            this.capture = cache == null ? null : new TextEventSink(captured);
+        }
+
+        @Override
+        public void memberIn(String name, float gmsValue) throws IOException {
+            flushTargets();
+            if (journal != null) {
+                journal.memberIn(name, gmsValue);
+            }
+            tree.insert(name, gmsValue);
+        }
+
+        @Override
+        public void memberOut(String name, float gmsValue) throws IOException {
+            flushTargets();
+            if (journal != null) {
+                journal.memberOut(name, gmsValue);
+            }
+            tree.delete(name, gmsValue);
+        }
+
+        @Override
+        public void memberOutByName(String name) throws IOException {
+            flushTargets();
+            if (journal != null) {
+                journal.memberOutByName(name);
+            }
+            tree.deleteByName(name);
+        }
+
+        /**
+         * Returns a frozen copy of the tree for the given number of read queries,
+         * or null while the copy would not pay off. Freezing copies all n members,
+         * while each query saves at most a part of an O(log n) descent, so the
+         * tree is only frozen once about n / log2(n) rank and target analyses
+         * have followed the last change. Short read runs between changes keep
+         * using the tree.
+         */
+        private FrozenAvlTree frozen(int queries) {
+            if (frozen != null && frozen.isValid()) {
+                return frozen;
+            }
+            frozen = null;
+            if (tree.modCount != readModCount) {
+                readModCount = tree.modCount;
+                reads = 0;
+            }
+            reads = (int) Math.min(Integer.MAX_VALUE, (long) reads + queries);
+            int size = tree.size();
+            if (size > 0 && reads >= Math.max(2, size / (32 - Integer.numberOfLeadingZeros(size)))) {
+                frozen = tree.freeze();
+            }
+            return frozen;
+        }
+
+        /**
+         * Answers the collected target analyses. Every command but a target
+         * analysis starts here, so this is also where a journal group left behind
+         * by the last change is committed once it is due.
+         */
+        private void flushTargets() throws IOException {
+            if (journal != null) {
+                journal.commitIfDue();
+            }
+            if (!targets.isEmpty()) {
+                targets.flush(frozen(targets.size()), cache);
+            }
+        }
+
+        /**
+         * Returns whether query results go through the cache: only if there is
+         * one and the tree writes the text log.
+         */
+        private boolean caching() {
+            return cache != null && tree.getEventSink() instanceof TextEventSink;
+        }
+
+        /**
+         * Writes the cached text of a query, or runs the query with its text
+         * captured, stores the text in the cache and writes it.
+         */
+        private void cached(byte type, int key1, int key2, Query query) throws IOException {
+            TextEventSink text = (TextEventSink) tree.getEventSink();
+            String result = cache.get(tree.modCount, type, key1, key2);
+            if (result == null) {
+                captured.reset();
+                tree.setEventSink(capture);
+                try {
+                    query.run();
+                } finally {
+                    tree.setEventSink(text);
+                }
+                result = captured.toString();
+                cache.put(type, key1, key2, result);
+            }
+            text.writeLine(result);
+        }
+
+        /**
+         * Writes the rank analysis of a member, keyed in the cache by its depth:
+         * all members at one depth have the same answer.
+         */
+        private void cachedRank(String name, float gmsValue) throws IOException {
+            int depth = tree.searchNodeRank(name, gmsValue);
+            if (depth < 0) {
+                return;
+            }
+            cached(QueryCache.RANK, depth, 0, () -> {
+                FrozenAvlTree copy = frozen(1);
+                if (copy != null) {
+                    copy.intel_rank(name, gmsValue);
+                } else {
+                    tree.intel_rank(name, gmsValue);
+                }
+            });
+        }
+
+        @Override
+        public void intelTarget(String name1, float gmsValue1, String name2, float gmsValue2) throws IOException {
+            if (journal != null) {
+                journal.commitIfDue();
+            }
+            targets.add(gmsValue1, gmsValue2);
+        }
+
+        @Override
+        public void intelRank(String name, float gmsValue) throws IOException {
+            flushTargets();
+            if (caching()) {
+                cachedRank(name, gmsValue);
+                return;
+            }
+            FrozenAvlTree copy = frozen(1);
+            if (copy != null) {
+                copy.intel_rank(name, gmsValue);
+            } else {
+                tree.intel_rank(name, gmsValue);
+            }
+        }
+
+        @Override
+        public void intelRankByName(String name) throws IOException {
+            flushTargets();
+            if (caching()) {
+                AvlTree.AvlNode node = tree.findByName(name);
+                if (node != null) {
+                    cachedRank(name, node.gmsValue);
+                }
+                return;
+            }
+            FrozenAvlTree copy = frozen(1);
+            if (copy != null) {
+                copy.intel_rank(name);
+            } else {
+                tree.intel_rank(name);
+            }
+        }
+
+        @Override
+        public void intelDivide() throws IOException {
+            flushTargets();
+            if (caching()) {
+                cached(QueryCache.DIVIDE, 0, 0, tree::intel_divide);
+                return;
+            }
+            tree.intel_divide();
+        }
+
+        @Override
+        public void intelRankOf(float gmsValue) throws IOException {
+            flushTargets();
+            tree.intel_rank_of(gmsValue);
+        }
+
+        @Override
+        public void intelSelect(int k) throws IOException {
+            flushTargets();
+            tree.intel_select(k);
+        }
+
+        @Override
+        public void intelCount(float lo, float hi) throws IOException {
+            flushTargets();
+            tree.intel_count(lo, hi);
+        }
+
+        @Override
+        public void intelFloor(float gmsValue) throws IOException {
+            flushTargets();
+            tree.intel_floor(gmsValue);
+        }
+
+        @Override
+        public void intelCeiling(float gmsValue) throws IOException {
+            flushTargets();
+            tree.intel_ceiling(gmsValue);
+        }
+
+        @Override
+        public void intelRange(float lo, float hi) throws IOException {
+            flushTargets();
+            tree.intel_range(lo, hi);
+        }
+
+        @Override
+        public void intelNearest(float gmsValue, int k) throws IOException {
+            flushTargets();
+            tree.intel_nearest(gmsValue, k);
+        }
+
+        @Override
+        public void endOfInput() throws IOException {
+            flushTargets();
+            if (checkpoint != null) {
+                tree.writeCheckpoint(checkpoint);
+            }
+            if (journal != null) {
+                if (checkpoint != null) {
+                    journal.reset(tree.getCheckpointEpoch());
+                }
+                journal.close();
+            }
+        }
+    }
+
+    /**
+     * Applies every parsed command to the struct-of-arrays arena tree.
+     */
+    static class ArenaTreeHandler implements CommandParser.Handler {
+        private final ArenaAvlTree tree;
+
+        ArenaTreeHandler(ArenaAvlTree tree) {
+            this.tree = tree;
+        }
+
+        @Override
+        public void memberIn(String name, float gmsValue) throws IOException {
+            tree.insert(name, gmsValue);
+        }
+
+        @Override
+        public void memberOut(String name, float gmsValue) throws IOException {
+            tree.delete(name, gmsValue);
+        }
+
+        @Override
+        public void memberOutByName(String name) throws IOException {
+            tree.deleteByName(name);
+        }
+
+        @Override
+        public void intelTarget(String name1, float gmsValue1, String name2, float gmsValue2) throws IOException {
+            tree.intel_targeter(name1, name2, gmsValue1, gmsValue2);
+        }
+
+        @Override
+        public void intelRank(String name, float gmsValue) throws IOException {
+            tree.intel_rank(name, gmsValue);
+        }
+
+        @Override
+        public void intelRankByName(String name) throws IOException {
+            tree.intel_rank(name);
+        }
+
+        @Override
+        public void intelDivide() throws IOException {
+            tree.intel_divide();
+        }
+
+        @Override
+        public void intelRankOf(float gmsValue) throws IOException {
+            tree.intel_rank_of(gmsValue);
+        }
+
+        @Override
+        public void intelSelect(int k) throws IOException {
+            tree.intel_select(k);
+        }
+
+        @Override
+        public void intelCount(float lo, float hi) throws IOException {
+            tree.intel_count(lo, hi);
+        }
+
+        @Override
+        public void intelFloor(float gmsValue) throws IOException {
+            tree.intel_floor(gmsValue);
+        }
+
+        @Override
+        public void intelCeiling(float gmsValue) throws IOException {
+            tree.intel_ceiling(gmsValue);
+        }
+
+        @Override
+        public void intelRange(float lo, float hi) throws IOException {
+            tree.intel_range(lo, hi);
+        }
+
+        @Override
+        public void intelNearest(float gmsValue, int k) throws IOException {
+            tree.intel_nearest(gmsValue, k);
+        }
+    }
+
+    /**
+     * Times every command passed on to another handler and records the latency in
+     * {@link AvlMetrics}. Only used when the metrics are enabled.
+     */
+    static class TimedHandler implements CommandParser.Handler {
+        private final CommandParser.Handler handler;
+
+        TimedHandler(CommandParser.Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void memberIn(String name, float gmsValue) throws IOException {
+            long start = System.nanoTime();
+            handler.memberIn(name, gmsValue);
+            AvlMetrics.command(CommandBatch.MEMBER_IN, start);
+        }
+
+        @Override
+        public void memberOut(String name, float gmsValue) throws IOException {
+            long start = System.nanoTime();
+            handler.memberOut(name, gmsValue);
+            AvlMetrics.command(CommandBatch.MEMBER_OUT, start);
+        }
+
+        @Override
+        public void memberOutByName(String name) throws IOException {
+            long start = System.nanoTime();
+            handler.memberOutByName(name);
+            AvlMetrics.command(CommandBatch.MEMBER_OUT_BY_NAME, start);
+        }
+
+        @Override
+        public void intelTarget(String name1, float gmsValue1, String name2, float gmsValue2) throws IOException {
+            long start = System.nanoTime();
+            handler.intelTarget(name1, gmsValue1, name2, gmsValue2);
+            AvlMetrics.command(CommandBatch.INTEL_TARGET, start);
+        }
+
+        @Override
+        public void intelRank(String name, float gmsValue) throws IOException {
+            long start = System.nanoTime();
+            handler.intelRank(name, gmsValue);
+            AvlMetrics.command(CommandBatch.INTEL_RANK, start);
+        }
+
+        @Override
+        public void intelRankByName(String name) throws IOException {
+            long start = System.nanoTime();
+            handler.intelRankByName(name);
+            AvlMetrics.command(CommandBatch.INTEL_RANK_BY_NAME, start);
+        }
+
+        @Override
+        public void intelDivide() throws IOException {
+            long start = System.nanoTime();
+            handler.intelDivide();
+            AvlMetrics.command(CommandBatch.INTEL_DIVIDE, start);
+        }
+
+        @Override
+        public void intelRankOf(float gmsValue) throws IOException {
+            long start = System.nanoTime();
+            handler.intelRankOf(gmsValue);
+            AvlMetrics.command(CommandBatch.INTEL_RANK_OF, start);
+        }
+
+        @Override
+        public void intelSelect(int k) throws IOException {
+            long start = System.nanoTime();
+            handler.intelSelect(k);
+            AvlMetrics.command(CommandBatch.INTEL_SELECT, start);
+        }
+
+        @Override
+        public void intelCount(float lo, float hi) throws IOException {
+            long start = System.nanoTime();
+            handler.intelCount(lo, hi);
+            AvlMetrics.command(CommandBatch.INTEL_COUNT, start);
+        }
+
+        @Override
+        public void intelFloor(float gmsValue) throws IOException {
+            long start = System.nanoTime();
+            handler.intelFloor(gmsValue);
+            AvlMetrics.command(CommandBatch.INTEL_FLOOR, start);
+        }
+
+        @Override
+        public void intelCeiling(float gmsValue) throws IOException {
+            long start = System.nanoTime();
+            handler.intelCeiling(gmsValue);
+            AvlMetrics.command(CommandBatch.INTEL_CEILING, start);
+        }
+
+        @Override
+        public void intelRange(float lo, float hi) throws IOException {
+            long start = System.nanoTime();
+            handler.intelRange(lo, hi);
+            AvlMetrics.command(CommandBatch.INTEL_RANGE, start);
+        }
+
+        @Override
+        public void intelNearest(float gmsValue, int k) throws IOException {
+            long start = System.nanoTime();
+            handler.intelNearest(gmsValue, k);
+            AvlMetrics.command(CommandBatch.INTEL_NEAREST, start);
+        }
+
+        @Override
+        public void endOfInput() throws IOException {
+            handler.endOfInput();
+        }
     }
 
     public static void main(String[] args) throws IOException {
 
         String inputName = args[0];
         String outputName = args[1];
+        boolean pipelined = false;
+        boolean arena = false;
+        long metricsInterval = 0;
+        File saveCheckpoint = null;
+        File restoreCheckpoint = null;
+        File journalFile = null;
+        BalancePolicy balancePolicy = null;
+        int queryCacheEntries = 0;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--pipelined")) {
+                pipelined = true;
+            } else if (args[i].equals("--arena")) {
+                arena = true;
+            } else if (args[i].startsWith("--save-checkpoint=")) {
+                saveCheckpoint = new File(args[i].substring("--save-checkpoint=".length()));
+            } else if (args[i].startsWith("--restore-checkpoint=")) {
+                restoreCheckpoint = new File(args[i].substring("--restore-checkpoint=".length()));
+            } else if (args[i].startsWith("--balance=")) {
+                String policy = args[i].substring("--balance=".length());
+                balancePolicy = BalancePolicy.valueOf(policy.toUpperCase(Locale.ROOT).replace('-', '_'));
+            } else if (args[i].startsWith("--query-cache=")) {
+                queryCacheEntries = Integer.parseInt(args[i].substring("--query-cache=".length()));
+                if (queryCacheEntries < 0) {
+                    throw new IllegalArgumentException("--query-cache must not be negative");
+                }
+            } else if (args[i].startsWith("--journal=")) {
+                journalFile = new File(args[i].substring("--journal=".length()));
+            } else if (args[i].startsWith("--metrics-interval=")) {
+                metricsInterval = Long.parseLong(args[i].substring("--metrics-interval=".length()));
+                if (!AvlMetrics.ENABLED) {
+                    throw new IllegalArgumentException("--metrics-interval requires -Davl.metrics=true");
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        if (arena && (saveCheckpoint != null || restoreCheckpoint != null)) {
+            throw new IllegalArgumentException("Checkpoints are not supported in arena mode");
+        }
+        if (arena && journalFile != null) {
+            throw new IllegalArgumentException("Journals are not supported in arena mode");
+        }
+        if (arena && queryCacheEntries > 0) {
+            throw new IllegalArgumentException("The query cache is not supported in arena mode");
+        }
+        if (arena && balancePolicy != null && balancePolicy != BalancePolicy.AVL) {
+            throw new IllegalArgumentException("Only the AVL balance policy is supported in arena mode");
+        }
+
+        Function<Writer, CommandParser.Handler> handlerFactory;
+        File checkpoint = saveCheckpoint;
+        File restore = restoreCheckpoint;
+        File journaled = journalFile;
+        BalancePolicy requested = balancePolicy;
+        BalancePolicy policy = requested == null ? BalancePolicy.AVL : requested;
+        int cacheEntries = queryCacheEntries;
+        Supplier<QueryCache> caches = () -> cacheEntries == 0 ? null
+                : new QueryCache(cacheEntries, QueryCache.DEFAULT_MAX_CHARS);
+        if (arena) {
+            handlerFactory = writer -> new ArenaTreeHandler(new ArenaAvlTree(writer));
+        } else if (restore != null || journaled != null) {
+            // Recovery: the journal holds the changes since the restored checkpoint,
+            // or since the empty tree if there is none.
+            handlerFactory = writer -> {
+                try {
+                    AvlTree tree = restore != null ? AvlTree.restoreCheckpoint(restore, writer)
+                            : new AvlTree(writer, policy);
+                    if (requested != null && tree.getBalancePolicy() != requested) {
+                        throw new IllegalArgumentException("The checkpoint uses the " + tree.getBalancePolicy()
+                                + " balance policy, not " + requested);
+                    }
+                    if (journaled == null) {
+                        return new TreeHandler(tree, checkpoint, null, caches.get());
+                    }
+                    CommandJournal.replay(journaled, tree);
+                    return new TreeHandler(tree, checkpoint, new CommandJournal(journaled, tree.getCheckpointEpoch()),
+                            caches.get());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            };
+        } else {
+            handlerFactory = writer -> new TreeHandler(new AvlTree(writer, policy), checkpoint, null, caches.get());
+        }
+        // A restored or recovered tree is continued: the first line is an ordinary command.
+        boolean rootLine = restore == null && (journaled == null || !CommandJournal.hasRecords(journaled));
+        ScheduledExecutorService metricsDump = null;
+        if (AvlMetrics.ENABLED) {
+            AvlMetrics.register();
+            handlerFactory = handlerFactory.andThen(TimedHandler::new);
+            if (metricsInterval > 0) {
+                metricsDump = AvlMetrics.startPeriodicDump(System.err, metricsInterval);
+            }
+        }
 
-        AvlTree tree = new AvlTree(outputName);
         File file = new File(inputName);
-        boolean first = true;
-        for (ArrayList<String> item : inputReader(file)) {
-            if (first) {
-                String name = item.get(0);
-                float gms = Float.parseFloat(item.get(1));
-                tree.insert(name, gms);
-                first = false;
-            } else if (item.get(0).equals("MEMBER_IN")) {
-                String name = item.get(1);
-                float gms = Float.parseFloat(item.get(2));
-                tree.insert(name, gms);
-            } else if (item.get(0).equals("MEMBER_OUT")) {
-                String name = item.get(1);
-                float gms = Float.parseFloat(item.get(2));
-                tree.delete(name, gms);
-            } else if (item.get(0).equals("INTEL_TARGET")) {
-                tree.intel_targeter(item.get(1), item.get(3), Float.parseFloat(item.get(2)),
-                        Float.parseFloat(item.get(4)));
-            } else if (item.get(0).equals("INTEL_RANK")) {
-                tree.intel_rank(item.get(1), Float.parseFloat(item.get(2)));
-            } else if (item.get(0).equals("INTEL_DIVIDE")) {
-                tree.intel_divide();
-            }
-        }
-        tree.myWriter.close();
+        try {
+            if (pipelined) {
+                Pipeline.run(file, outputName, handlerFactory, rootLine);
+            } else {
+                Writer myWriter = new FileWriter(outputName);
+                new CommandParser(handlerFactory.apply(myWriter), rootLine).parse(file);
+                myWriter.close();
+            }
+        } finally {
+            if (metricsDump != null) {
+                metricsDump.shutdownNow();
+                System.err.print(AvlMetrics.report());
+            }
+        }
     }
-}
\ No newline at end of file
+}
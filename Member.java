@@ -0,0 +1,41 @@
+/**
+ * Immutable copy of a member's name and grams value, returned by queries that
+ * must not hand out live tree nodes (a node's fields change when a delete
+ * moves its successor into it).
+ */
+public final class Member {
+    private final String name;
+    private final float gmsValue;
+
+    public Member(String name, float gmsValue) {
+        this.name = name;
+        this.gmsValue = gmsValue;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public float getGmsValue() {
+        return gmsValue;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Member)) {
+            return false;
+        }
+        Member other = (Member) o;
+        return name.equals(other.name) && Float.compare(gmsValue, other.gmsValue) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * name.hashCode() + Float.hashCode(gmsValue);
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + String.format("%.3f", gmsValue).replace(",", ".");
+    }
+}
@@ -0,0 +1,209 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from member names to the tree nodes holding them.
+ * The hash codes live in a primitive int array next to the node array, so a
+ * lookup compares ints while probing and only calls equals on a hash match.
+ * Collisions are resolved by linear probing and removals shift the following
+ * entries back, so there are no tombstones.
+ * Several members may share a name. They are kept in a doubly linked chain
+ * through their nodes, newest first, and the map refers to the newest one: a
+ * lookup finds the member of that name that was indexed last and is still in
+ * the tree. Removing a member makes the next older one of its name reachable
+ * again. A node that takes over another node's member (the two-child delete)
+ * takes over its place in the chain with {@link #replace}. Trees rebuilt as a
+ * whole (restore, bulk and set operations) index their members in ascending
+ * grams order, so there the heaviest member of a name counts as the newest.
+ */
+public class NameIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int EMPTY = 0;
+
+    private int[] hashes;
+    private AvlTree.AvlNode[] nodes;
+    private int size;
+    private int mask;
+
+    public NameIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        hashes = new int[capacity];
+        nodes = new AvlTree.AvlNode[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Spreads the bits of the String hash code and reserves 0 for empty slots.
+     */
+    private static int hash(String name) {
+        int h = name.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return h == EMPTY ? 1 : h;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(hashes, EMPTY);
+        Arrays.fill(nodes, null);
+        size = 0;
+    }
+
+    /**
+     * Returns the node holding the newest member with the given name.
+     *
+     * @param name The name of the member.
+     * @return The node of the member, or null if no member has this name.
+     */
+    public AvlTree.AvlNode get(String name) {
+        int h = hash(name);
+        for (int i = h & mask; hashes[i] != EMPTY; i = (i + 1) & mask) {
+            if (hashes[i] == h && nodes[i].name.equals(name)) {
+                return nodes[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Indexes a node as the newest member of its name, in front of the members
+     * already indexed under that name.
+     *
+     * @param name The name of the member. Must be equal to node.name.
+     * @param node The node holding the member, not yet in the index.
+     */
+    public void put(String name, AvlTree.AvlNode node) {
+        if ((size + 1) * 4L > hashes.length * 3L) {
+            resize(hashes.length * 2);
+        }
+        node.newerSameName = null;
+        int h = hash(name);
+        int i = h & mask;
+        for (; hashes[i] != EMPTY; i = (i + 1) & mask) {
+            if (hashes[i] == h && nodes[i].name.equals(name)) {
+                node.olderSameName = nodes[i];
+                nodes[i].newerSameName = node;
+                nodes[i] = node;
+                return;
+            }
+        }
+        node.olderSameName = null;
+        hashes[i] = h;
+        nodes[i] = node;
+        size++;
+    }
+
+    /**
+     * Removes a node from the index. The next older member of its name, if any,
+     * becomes the one the name refers to. Must be called before the node's name
+     * is changed.
+     *
+     * @param name The name of the member.
+     * @param node The node that is leaving the tree or changing its name.
+     */
+    public void remove(String name, AvlTree.AvlNode node) {
+        AvlTree.AvlNode older = node.olderSameName;
+        if (node.newerSameName != null) {
+            node.newerSameName.olderSameName = older;
+            if (older != null) {
+                older.newerSameName = node.newerSameName;
+            }
+        } else {
+            int i = slotOf(name, node);
+            if (i < 0) {
+                return;
+            }
+            if (older != null) {
+                older.newerSameName = null;
+                nodes[i] = older;
+            } else {
+                deleteSlot(i);
+            }
+        }
+        node.newerSameName = null;
+        node.olderSameName = null;
+    }
+
+    /**
+     * Puts a node in the place of another one in the chain of their name, for a
+     * node that takes over the member of the other one.
+     *
+     * @param name The name of the member. Must be equal to node.name.
+     * @param old  The indexed node that gives up the member.
+     * @param node The node that takes over the member, not in the index.
+     */
+    public void replace(String name, AvlTree.AvlNode old, AvlTree.AvlNode node) {
+        node.newerSameName = old.newerSameName;
+        node.olderSameName = old.olderSameName;
+        if (old.olderSameName != null) {
+            old.olderSameName.newerSameName = node;
+        }
+        if (old.newerSameName != null) {
+            old.newerSameName.olderSameName = node;
+        } else {
+            int i = slotOf(name, old);
+            if (i >= 0) {
+                nodes[i] = node;
+            }
+        }
+        old.newerSameName = null;
+        old.olderSameName = null;
+    }
+
+    /** Returns the slot that refers to the given node, or -1. */
+    private int slotOf(String name, AvlTree.AvlNode node) {
+        int h = hash(name);
+        for (int i = h & mask; hashes[i] != EMPTY; i = (i + 1) & mask) {
+            if (nodes[i] == node) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Empties a slot and moves back every following entry of the probe run that
+     * would otherwise become unreachable.
+     */
+    private void deleteSlot(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (hashes[i] == EMPTY) {
+                break;
+            }
+            int home = hashes[i] & mask;
+            // Move the entry if its home slot is not in the cyclic range (hole, i].
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                hashes[hole] = hashes[i];
+                nodes[hole] = nodes[i];
+                hole = i;
+            }
+        }
+        hashes[hole] = EMPTY;
+        nodes[hole] = null;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        int[] oldHashes = hashes;
+        AvlTree.AvlNode[] oldNodes = nodes;
+        allocate(capacity);
+        for (int j = 0; j < oldHashes.length; j++) {
+            if (oldHashes[j] == EMPTY) {
+                continue;
+            }
+            int i = oldHashes[j] & mask;
+            while (hashes[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            hashes[i] = oldHashes[j];
+            nodes[i] = oldNodes[j];
+        }
+    }
+}
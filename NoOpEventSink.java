@@ -0,0 +1,68 @@
+/**
+ * Drops all events of a tree, for runs that only need the tree itself, such as
+ * replaying a journal or benchmarking. The calls are empty, so the JIT inlines
+ * them away; {@link #INSTANCE} is the only instance needed.
+ */
+public final class NoOpEventSink implements AvlEventSink {
+
+    public static final NoOpEventSink INSTANCE = new NoOpEventSink();
+
+    private NoOpEventSink() {
+    }
+
+    @Override
+    public void welcomed(String welcomer, String newcomer) {
+    }
+
+    @Override
+    public void leftFamily(String name, String replacement) {
+    }
+
+    @Override
+    public void target(String name, float gmsValue) {
+    }
+
+    @Override
+    public void divide(int result) {
+    }
+
+    @Override
+    public void rankOf(int rank) {
+    }
+
+    @Override
+    public void count(int count) {
+    }
+
+    @Override
+    public void select(String name, float gmsValue) {
+    }
+
+    @Override
+    public void floor(String name, float gmsValue) {
+    }
+
+    @Override
+    public void ceiling(String name, float gmsValue) {
+    }
+
+    @Override
+    public void rankBegin() {
+    }
+
+    @Override
+    public void rangeBegin() {
+    }
+
+    @Override
+    public void nearestBegin() {
+    }
+
+    @Override
+    public void member(String name, float gmsValue) {
+    }
+
+    @Override
+    public void endList() {
+    }
+}
@@ -0,0 +1,587 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent (immutable) version of the AVL tree. insert and delete never
+ * change an existing node: they copy the O(log n) nodes on the path to the
+ * change and return a new tree, while every older tree stays valid and keeps
+ * answering queries. Old and new versions share all untouched subtrees, so a
+ * snapshot costs nothing and a version that is no longer referenced is
+ * reclaimed by the garbage collector.
+ * insert and delete perform exactly the same rotations as {@link AvlTree}, so
+ * every version has the same shape as the mutable tree after the same
+ * commands and the depth based queries give the same answers.
+ * {@link #snapshot(AvlTree)} copies a live tree into a persistent version, so
+ * a tree built or restored by the command line program can be versioned from
+ * there on.
+ */
+public final class PersistentAvlTree {
+
+    /**
+     * Immutable tree node. The height, size and division values are computed from
+     * the children when the node is created.
+     */
+    static final class Node {
+        final String name;
+        final float gmsValue;
+        final Node leftChild;
+        final Node rightChild;
+        final int height;
+        final int size;
+        final int withRoot;
+        final int withoutRoot;
+
+        Node(String name, float gmsValue, Node leftChild, Node rightChild) {
+            this.name = name;
+            this.gmsValue = gmsValue;
+            this.leftChild = leftChild;
+            this.rightChild = rightChild;
+            this.height = Math.max(height(leftChild), height(rightChild)) + 1;
+            this.size = size(leftChild) + size(rightChild) + 1;
+            int leftWith = leftChild == null ? 0 : leftChild.withRoot;
+            int leftWithout = leftChild == null ? 0 : leftChild.withoutRoot;
+            int rightWith = rightChild == null ? 0 : rightChild.withRoot;
+            int rightWithout = rightChild == null ? 0 : rightChild.withoutRoot;
+            this.withRoot = leftWithout + rightWithout + 1;
+            this.withoutRoot = Math.max(leftWith, leftWithout) + Math.max(rightWith, rightWithout);
+        }
+
+        Node withChildren(Node left, Node right) {
+            if (left == leftChild && right == rightChild) {
+                return this;
+            }
+            return new Node(name, gmsValue, left, right);
+        }
+    }
+
+    public static final PersistentAvlTree EMPTY = new PersistentAvlTree(null);
+
+    private final Node root;
+
+    private PersistentAvlTree(Node root) {
+        this.root = root;
+    }
+
+    private static int height(Node node) {
+        return node == null ? -1 : node.height;
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static int balance(Node node) {
+        return node == null ? 0 : height(node.leftChild) - height(node.rightChild);
+    }
+
+    /**
+     * Copies a live tree, node for node, into a persistent version of the same
+     * shape. Later versions are rebalanced like an AVL tree, so they only match
+     * the live tree if it uses the {@link BalancePolicy#AVL} policy.
+     *
+     * @param tree The tree to copy.
+     * @return A version holding the members of the tree.
+     */
+    public static PersistentAvlTree snapshot(AvlTree tree) {
+        return tree.root == null ? EMPTY : new PersistentAvlTree(copy(tree.root));
+    }
+
+    private static Node copy(AvlTree.AvlNode node) {
+        if (node == null) {
+            return null;
+        }
+        return new Node(node.name, node.gmsValue, copy(node.leftChild), copy(node.rightChild));
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * Returns a tree that also holds the given member. If a member with the same
+     * grams value exists, this tree is returned unchanged.
+     *
+     * @param name     The name of the new member.
+     * @param gmsValue The grams value of the new member.
+     * @return The new version of the tree.
+     */
+    public PersistentAvlTree insert(String name, float gmsValue) {
+        Node newRoot = insert(name, gmsValue, root);
+        return newRoot == root ? this : new PersistentAvlTree(newRoot);
+    }
+
+    private static Node insert(String name, float gmsValue, Node node) {
+        if (node == null) {
+            return new Node(name, gmsValue, null, null);
+        }
+        if (gmsValue < node.gmsValue) {
+            node = node.withChildren(insert(name, gmsValue, node.leftChild), node.rightChild);
+            if (height(node.leftChild) - height(node.rightChild) > 1) {
+                if (gmsValue < node.leftChild.gmsValue) {
+                    node = srWithLeftChild(node);
+                } else {
+                    node = drWithLeftChild(node);
+                }
+            }
+        } else if (gmsValue > node.gmsValue) {
+            node = node.withChildren(node.leftChild, insert(name, gmsValue, node.rightChild));
+            if (height(node.rightChild) - height(node.leftChild) > 1) {
+                if (gmsValue > node.rightChild.gmsValue) {
+                    node = srWithRightChild(node);
+                } else {
+                    node = drWithRightChild(node);
+                }
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Returns a tree without the member with the given grams value. A member with
+     * two children is replaced by a copy of its successor, like in
+     * {@link AvlTree#delete(String, float)}. If there is no such member, this
+     * tree is returned unchanged.
+     *
+     * @param gmsValue The grams value of the member to remove.
+     * @return The new version of the tree.
+     */
+    public PersistentAvlTree delete(float gmsValue) {
+        Node newRoot = delete(root, gmsValue);
+        return newRoot == root ? this : new PersistentAvlTree(newRoot);
+    }
+
+    private static Node delete(Node node, float gmsValue) {
+        if (node == null) {
+            return null;
+        }
+        if (gmsValue < node.gmsValue) {
+            node = node.withChildren(delete(node.leftChild, gmsValue), node.rightChild);
+        } else if (gmsValue > node.gmsValue) {
+            node = node.withChildren(node.leftChild, delete(node.rightChild, gmsValue));
+        } else if (node.leftChild == null || node.rightChild == null) {
+            return node.leftChild == null ? node.rightChild : node.leftChild;
+        } else {
+            Node successor = node.rightChild;
+            while (successor.leftChild != null) {
+                successor = successor.leftChild;
+            }
+            node = new Node(successor.name, successor.gmsValue, node.leftChild,
+                    delete(node.rightChild, successor.gmsValue));
+        }
+
+        int balanceNum = balance(node);
+        if (balanceNum > 1 && balance(node.leftChild) >= 0) {
+            return srWithLeftChild(node);
+        }
+        if (balanceNum > 1) {
+            return drWithLeftChild(node);
+        }
+        if (balanceNum < -1 && balance(node.rightChild) <= 0) {
+            return srWithRightChild(node);
+        }
+        if (balanceNum < -1) {
+            return drWithRightChild(node);
+        }
+        return node;
+    }
+
+    private static Node srWithLeftChild(Node node) {
+        Node tempNode = node.leftChild;
+        return tempNode.withChildren(tempNode.leftChild, node.withChildren(tempNode.rightChild, node.rightChild));
+    }
+
+    private static Node srWithRightChild(Node node) {
+        Node tempNode = node.rightChild;
+        return tempNode.withChildren(node.withChildren(node.leftChild, tempNode.leftChild), tempNode.rightChild);
+    }
+
+    private static Node drWithLeftChild(Node node) {
+        return srWithLeftChild(node.withChildren(srWithRightChild(node.leftChild), node.rightChild));
+    }
+
+    private static Node drWithRightChild(Node node) {
+        return srWithRightChild(node.withChildren(node.leftChild, srWithLeftChild(node.rightChild)));
+    }
+
+    /**
+     * Returns the member with the given grams value.
+     *
+     * @param gmsValue The grams value of the member.
+     * @return The member, or null if it is not in this version.
+     */
+    public Member find(float gmsValue) {
+        Node current = root;
+        while (current != null) {
+            if (gmsValue < current.gmsValue) {
+                current = current.leftChild;
+            } else if (gmsValue > current.gmsValue) {
+                current = current.rightChild;
+            } else {
+                return new Member(current.name, current.gmsValue);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the depth of the member with the given grams value, like
+     * {@link AvlTree#searchNodeRank(String, float)}.
+     *
+     * @param gmsValue The grams value of the member.
+     * @return The depth of the member, or -1 if it is not in this version.
+     */
+    public int searchNodeRank(float gmsValue) {
+        Node current = root;
+        int i = 0;
+        while (current != null) {
+            if (gmsValue < current.gmsValue) {
+                current = current.leftChild;
+            } else if (gmsValue > current.gmsValue) {
+                current = current.rightChild;
+            } else {
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the member that {@link AvlTree#intel_targeter} reports for the two
+     * grams values.
+     *
+     * @param gmsValue1 The grams value of the first member.
+     * @param gmsValue2 The grams value of the second member.
+     * @return The lowest member whose grams value lies between the two values, or
+     *         null if there is none.
+     */
+    public Member target(float gmsValue1, float gmsValue2) {
+        Node current = root;
+        while (current != null) {
+            if (gmsValue1 < current.gmsValue && gmsValue2 < current.gmsValue) {
+                current = current.leftChild;
+            } else if (gmsValue1 > current.gmsValue && gmsValue2 > current.gmsValue) {
+                current = current.rightChild;
+            } else {
+                return new Member(current.name, current.gmsValue);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the members at the depth of the member with the given grams value,
+     * from left to right, like {@link AvlTree#intel_rank(String, float)}. Like
+     * there, the walk only enters the subtrees tall enough to reach the depth.
+     *
+     * @param gmsValue The grams value of the member.
+     * @return The members at the same depth, or an empty list if the member is not
+     *         in this version.
+     */
+    public List<Member> rankMembers(float gmsValue) {
+        List<Member> members = new ArrayList<>();
+        int desRank = searchNodeRank(gmsValue);
+        if (desRank >= 0) {
+            collectLevel(root, desRank, members);
+        }
+        return members;
+    }
+
+    /**
+     * Adds the members the given number of levels below a node, from left to
+     * right, skipping the subtrees whose height is below the remaining levels.
+     */
+    private static void collectLevel(Node node, int levels, List<Member> members) {
+        if (levels == 0) {
+            members.add(new Member(node.name, node.gmsValue));
+            return;
+        }
+        if (height(node.leftChild) >= levels - 1) {
+            collectLevel(node.leftChild, levels - 1, members);
+        }
+        if (height(node.rightChild) >= levels - 1) {
+            collectLevel(node.rightChild, levels - 1, members);
+        }
+    }
+
+    /**
+     * Returns the division analysis result of this version in O(1).
+     *
+     * @return The division analysis result.
+     */
+    public int divide() {
+        return root == null ? 0 : Math.max(root.withRoot, root.withoutRoot);
+    }
+
+    /**
+     * Returns the number of members lighter than the given grams value.
+     *
+     * @param gmsValue The grams value to rank.
+     * @return The number of members with a smaller grams value.
+     */
+    public int rankOf(float gmsValue) {
+        Node current = root;
+        int rank = 0;
+        while (current != null) {
+            if (gmsValue <= current.gmsValue) {
+                current = current.leftChild;
+            } else {
+                rank += size(current.leftChild) + 1;
+                current = current.rightChild;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Returns the member with exactly k lighter members.
+     *
+     * @param k The 0-based position in ascending grams order.
+     * @return The member at position k, or null if k is out of range.
+     */
+    public Member select(int k) {
+        if (k < 0 || k >= size()) {
+            return null;
+        }
+        Node current = root;
+        while (true) {
+            int leftSize = size(current.leftChild);
+            if (k < leftSize) {
+                current = current.leftChild;
+            } else if (k > leftSize) {
+                k -= leftSize + 1;
+                current = current.rightChild;
+            } else {
+                return new Member(current.name, current.gmsValue);
+            }
+        }
+    }
+
+    /**
+     * Keeps the version of the tree after every command of a replay, so that the
+     * tree can be queried "as of command #N". Commands are numbered from 1 in the
+     * order they are handed to the history; command 0 is the empty tree. Query
+     * commands do not change the tree and only record the current version again.
+     * Storing a version costs one reference plus the nodes copied by its
+     * mutation. Versions dropped with {@link #discardBefore(long)} are reclaimed
+     * by the garbage collector unless a caller still holds them.
+     * The members of the latest version are kept by name, newest first, so
+     * MEMBER_OUT by name finds its member like {@link AvlTree#deleteByName} does
+     * (see {@link NameIndex}): if several members share a name, the one inserted
+     * last that is still in the tree.
+     */
+    public static final class History implements CommandParser.Handler {
+        private final ArrayList<PersistentAvlTree> versions = new ArrayList<>();
+        private final Map<String, NameEntry> newestByName = new HashMap<>();
+        private final Map<Float, NameEntry> entriesByGmsValue = new HashMap<>();
+        private long firstCommand;
+
+        /** A member in the chain of the members of its name, newest first. */
+        private static final class NameEntry {
+            final String name;
+            final float gmsValue;
+            NameEntry newer;
+            NameEntry older;
+
+            NameEntry(String name, float gmsValue) {
+                this.name = name;
+                this.gmsValue = gmsValue;
+            }
+        }
+
+        public History() {
+            this(EMPTY);
+        }
+
+        /**
+         * Creates a history whose command 0 is the given version, for example a
+         * {@link PersistentAvlTree#snapshot(AvlTree)} of a restored tree.
+         *
+         * @param initial The version before the first recorded command.
+         */
+        public History(PersistentAvlTree initial) {
+            versions.add(initial);
+            indexNames(initial.root);
+        }
+
+        private void indexNames(Node node) {
+            if (node != null) {
+                indexNames(node.leftChild);
+                indexName(node.name, node.gmsValue);
+                indexNames(node.rightChild);
+            }
+        }
+
+        private void indexName(String name, float gmsValue) {
+            NameEntry entry = new NameEntry(name, gmsValue);
+            entry.older = newestByName.put(name, entry);
+            if (entry.older != null) {
+                entry.older.newer = entry;
+            }
+            entriesByGmsValue.put(gmsValue, entry);
+        }
+
+        private void unindexName(float gmsValue) {
+            NameEntry entry = entriesByGmsValue.remove(gmsValue);
+            if (entry == null) {
+                return;
+            }
+            if (entry.older != null) {
+                entry.older.newer = entry.newer;
+            }
+            if (entry.newer != null) {
+                entry.newer.older = entry.older;
+            } else if (entry.older != null) {
+                newestByName.put(entry.name, entry.older);
+            } else {
+                newestByName.remove(entry.name);
+            }
+        }
+
+        /**
+         * Returns the version after the last recorded command. Taking it is a cheap
+         * snapshot: later commands never change it.
+         *
+         * @return The latest version.
+         */
+        public PersistentAvlTree latest() {
+            return versions.get(versions.size() - 1);
+        }
+
+        /**
+         * Returns the number of the last recorded command.
+         *
+         * @return The number of the last command, or 0 if none was recorded.
+         */
+        public long lastCommand() {
+            return firstCommand + versions.size() - 1;
+        }
+
+        /**
+         * Returns the tree as it was right after the given command.
+         *
+         * @param command The command number (0 for the initial empty tree).
+         * @return The version after that command.
+         * @throws IndexOutOfBoundsException if the command was not recorded or was
+         *                                   discarded.
+         */
+        public PersistentAvlTree asOf(long command) {
+            if (command < firstCommand || command > lastCommand()) {
+                throw new IndexOutOfBoundsException("No version for command " + command + ", available: "
+                        + firstCommand + ".." + lastCommand());
+            }
+            return versions.get((int) (command - firstCommand));
+        }
+
+        /**
+         * Forgets the versions before the given command.
+         *
+         * @param command The first command whose version is kept.
+         */
+        public void discardBefore(long command) {
+            int drop = (int) Math.min(Math.max(0, command - firstCommand), versions.size() - 1);
+            versions.subList(0, drop).clear();
+            firstCommand += drop;
+        }
+
+        private void record(PersistentAvlTree version) {
+            versions.add(version);
+        }
+
+        @Override
+        public void memberIn(String name, float gmsValue) {
+            PersistentAvlTree version = latest().insert(name, gmsValue);
+            if (version != latest()) {
+                indexName(name, gmsValue);
+            }
+            record(version);
+        }
+
+        @Override
+        public void memberOut(String name, float gmsValue) {
+            PersistentAvlTree version = latest();
+            Member member = version.find(gmsValue);
+            if (member != null) {
+                // A member with two children is replaced by its successor, which keeps its own name.
+                unindexName(gmsValue);
+                version = version.delete(gmsValue);
+            }
+            record(version);
+        }
+
+        /**
+         * Removes the member with the given name from the latest version, or
+         * records it again if no member has this name.
+         */
+        @Override
+        public void memberOutByName(String name) {
+            NameEntry entry = newestByName.get(name);
+            if (entry == null) {
+                record(latest());
+            } else {
+                memberOut(name, entry.gmsValue);
+            }
+        }
+
+        @Override
+        public void intelTarget(String name1, float gmsValue1, String name2, float gmsValue2) {
+            record(latest());
+        }
+
+        @Override
+        public void intelRank(String name, float gmsValue) {
+            record(latest());
+        }
+
+        @Override
+        public void intelRankByName(String name) {
+            record(latest());
+        }
+
+        @Override
+        public void intelDivide() {
+            record(latest());
+        }
+
+        @Override
+        public void intelRankOf(float gmsValue) {
+            record(latest());
+        }
+
+        @Override
+        public void intelSelect(int k) {
+            record(latest());
+        }
+
+        @Override
+        public void intelCount(float lo, float hi) {
+            record(latest());
+        }
+
+        @Override
+        public void intelFloor(float gmsValue) {
+            record(latest());
+        }
+
+        @Override
+        public void intelCeiling(float gmsValue) {
+            record(latest());
+        }
+
+        @Override
+        public void intelRange(float lo, float hi) {
+            record(latest());
+        }
+
+        @Override
+        public void intelNearest(float gmsValue, int k) {
+            record(latest());
+        }
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Pipelined execution of a command file. The parser, the tree updates and the
+ * output file writes run on three threads connected by two bounded
+ * single-producer/single-consumer ring buffers:
+ *
+ * parser thread --(command batches)--> apply thread --(output chunks)--> writer
+ * thread
+ *
+ * Commands are applied in file order and output chunks are written in the
+ * order they were produced, so the output file is byte-identical to the
+ * sequential run.
+ */
+public class Pipeline {
+
+    private static final int BATCH_SIZE = 1024;
+    private static final int COMMAND_RING_CAPACITY = 64;
+    private static final int CHUNK_SIZE = 1 << 14;
+    private static final int OUTPUT_RING_CAPACITY = 64;
+
+    /**
+     * Marker chunk that signals the end of the output stream.
+     */
+    private static final char[] END_OF_OUTPUT = new char[0];
+
+    private final SpscRingBuffer<CommandBatch> commands = new SpscRingBuffer<>(COMMAND_RING_CAPACITY);
+    private final SpscRingBuffer<char[]> output = new SpscRingBuffer<>(OUTPUT_RING_CAPACITY);
+    private Throwable failure;
+
+    /**
+     * Parses the input file, applies its commands to a new AVL tree and writes the
+     * operation log to the output file, with the three steps running on
+     * separate threads.
+     *
+     * @param input          The command file.
+     * @param outputName     The name of the output file.
+     * @param handlerFactory Creates the handler that applies the commands, given
+     *                       the writer that feeds the writer stage.
+     * @throws IOException if reading, writing or applying a command fails.
+     */
+    public static void run(File input, String outputName, Function<Writer, CommandParser.Handler> handlerFactory)
+            throws IOException {
+        run(input, outputName, handlerFactory, true);
+    }
+
+    /**
+     * Processes an input file like {@link #run(File, String, Function)}.
+     *
+     * @param rootLine Whether the first line of the input names the root member,
+     *                 see {@link CommandParser#CommandParser(CommandParser.Handler, boolean)}.
+     */
+    public static void run(File input, String outputName, Function<Writer, CommandParser.Handler> handlerFactory,
+            boolean rootLine) throws IOException {
+        new Pipeline().execute(input, outputName, handlerFactory, rootLine);
+    }
+
+    private void execute(File input, String outputName, Function<Writer, CommandParser.Handler> handlerFactory,
+            boolean rootLine) throws IOException {
+        Thread parser = new Thread(() -> parse(input, rootLine), "avl-parser");
+        Thread writer = new Thread(() -> write(outputName), "avl-writer");
+        parser.start();
+        writer.start();
+
+        apply(handlerFactory);
+
+        try {
+            parser.join();
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e);
+            throw new InterruptedIOException("Interrupted while waiting for the pipeline");
+        }
+        rethrowFailure();
+    }
+
+    private void parse(File input, boolean rootLine) {
+        try {
+            BatchingHandler handler = new BatchingHandler();
+            new CommandParser(handler, rootLine).parse(input);
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    private void apply(Function<Writer, CommandParser.Handler> handlerFactory) {
+        try {
+            ChunkedWriter chunkedWriter = new ChunkedWriter();
+            CommandParser.Handler handler = handlerFactory.apply(chunkedWriter);
+            for (CommandBatch batch = commands.take(); batch != CommandBatch.END; batch = commands.take()) {
+                batch.applyTo(handler);
+            }
+            handler.endOfInput();
+            chunkedWriter.close();
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    private void write(String outputName) {
+        try (FileWriter fileWriter = new FileWriter(outputName)) {
+            for (char[] chunk = output.take(); chunk != END_OF_OUTPUT; chunk = output.take()) {
+                fileWriter.write(chunk, 0, chunk.length);
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * Records the first failure of any stage and aborts both ring buffers so that
+     * the other stages stop waiting.
+     */
+    private synchronized void fail(Throwable t) {
+        if (failure == null) {
+            failure = t;
+        }
+        commands.abort();
+        output.abort();
+    }
+
+    private synchronized void rethrowFailure() throws IOException {
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IOException(failure);
+    }
+
+    /**
+     * Parser side handler that collects commands into batches and publishes every
+     * full batch to the apply stage.
+     */
+    private class BatchingHandler implements CommandParser.Handler {
+        private CommandBatch batch = new CommandBatch(BATCH_SIZE);
+
+        private CommandBatch batch() {
+            if (batch.isFull()) {
+                commands.put(batch);
+                batch = new CommandBatch(BATCH_SIZE);
+            }
+            return batch;
+        }
+
+        @Override
+        public void memberIn(String name, float gmsValue) {
+            batch().memberIn(name, gmsValue);
+        }
+
+        @Override
+        public void memberOut(String name, float gmsValue) {
+            batch().memberOut(name, gmsValue);
+        }
+
+        @Override
+        public void memberOutByName(String name) {
+            batch().memberOutByName(name);
+        }
+
+        @Override
+        public void intelTarget(String name1, float gmsValue1, String name2, float gmsValue2) {
+            batch().intelTarget(name1, gmsValue1, name2, gmsValue2);
+        }
+
+        @Override
+        public void intelRank(String name, float gmsValue) {
+            batch().intelRank(name, gmsValue);
+        }
+
+        @Override
+        public void intelRankByName(String name) {
+            batch().intelRankByName(name);
+        }
+
+        @Override
+        public void intelDivide() {
+            batch().intelDivide();
+        }
+
+        @Override
+        public void intelRankOf(float gmsValue) {
+            batch().intelRankOf(gmsValue);
+        }
+
+        @Override
+        public void intelSelect(int k) {
+            batch().intelSelect(k);
+        }
+
+        @Override
+        public void intelCount(float lo, float hi) {
+            batch().intelCount(lo, hi);
+        }
+
+        @Override
+        public void intelFloor(float gmsValue) {
+            batch().intelFloor(gmsValue);
+        }
+
+        @Override
+        public void intelCeiling(float gmsValue) {
+            batch().intelCeiling(gmsValue);
+        }
+
+        @Override
+        public void intelRange(float lo, float hi) {
+            batch().intelRange(lo, hi);
+        }
+
+        @Override
+        public void intelNearest(float gmsValue, int k) {
+            batch().intelNearest(gmsValue, k);
+        }
+
+        @Override
+        public void endOfInput() {
+            if (batch.size() > 0) {
+                commands.put(batch);
+            }
+            commands.put(CommandBatch.END);
+        }
+    }
+
+    /**
+     * Writer used by the tree in the apply stage. It fills fixed size chunks and
+     * hands every full chunk to the writer stage.
+     */
+    private class ChunkedWriter extends Writer {
+        private char[] chunk = new char[CHUNK_SIZE];
+        private int length;
+        private boolean closed;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            while (len > 0) {
+                int n = Math.min(len, chunk.length - length);
+                System.arraycopy(cbuf, off, chunk, length, n);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == chunk.length) {
+                    output.put(chunk);
+                    chunk = new char[CHUNK_SIZE];
+                    length = 0;
+                }
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            while (len > 0) {
+                int n = Math.min(len, chunk.length - length);
+                str.getChars(off, off + n, chunk, length);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == chunk.length) {
+                    output.put(chunk);
+                    chunk = new char[CHUNK_SIZE];
+                    length = 0;
+                }
+            }
+        }
+
+        /**
+         * Publishes the partially filled chunk, if any.
+         */
+        @Override
+        public void flush() {
+            if (length > 0) {
+                output.put(Arrays.copyOf(chunk, length));
+                length = 0;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                flush();
+                output.put(END_OF_OUTPUT);
+                closed = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * Bounded cache of formatted analysis results, for inputs that repeat the same
+ * queries between changes of the tree. A result is stored under its query type
+ * and two int keys (for example the raw bits of two grams values) together
+ * with the text the query wrote, so a hit writes the stored text without
+ * touching the tree or formatting anything.
+ *
+ * Every result is only valid for the tree as it was when the result was
+ * computed: the cache remembers the modification count of the tree and drops
+ * all results as soon as it sees a different one. Within one version of the
+ * tree, the least recently used result is evicted when the cache holds too
+ * many results or too many chars. Results larger than a quarter of the char
+ * budget are not stored.
+ *
+ * The entries live in parallel arrays, linked into a recency list through int
+ * indexes and found through an open-addressing table with linear probing, so
+ * a lookup allocates nothing.
+ */
+public class QueryCache {
+
+    public static final byte TARGET = 0;
+    public static final byte RANK = 1;
+    public static final byte DIVIDE = 2;
+
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+    public static final long DEFAULT_MAX_CHARS = 1L << 24;
+
+    private static final int NONE = -1;
+    private static final int EMPTY = 0;
+
+    private final int maxEntries;
+    private final long maxChars;
+
+    private final byte[] types;
+    private final int[] keys1;
+    private final int[] keys2;
+    private final String[] results;
+    /** The table slot of each entry. */
+    private final int[] slots;
+    /** The next more and less recently used entry, or NONE. */
+    private final int[] newer;
+    private final int[] older;
+    private int newest = NONE;
+    private int oldest = NONE;
+    /** Entries not in the recency list, linked through older. */
+    private int free;
+    private int count;
+    private long chars;
+
+    /** Entry index + 1 per slot, or EMPTY. */
+    private final int[] table;
+    private final int mask;
+
+    private int modCount;
+    private boolean valid;
+    private long hits;
+    private long misses;
+
+    public QueryCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_CHARS);
+    }
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxEntries The maximum number of results held.
+     * @param maxChars   The maximum total length of the results held.
+     */
+    public QueryCache(int maxEntries, long maxChars) {
+        if (maxEntries < 1 || maxChars < 1) {
+            throw new IllegalArgumentException("The cache needs room for at least one result");
+        }
+        this.maxEntries = maxEntries;
+        this.maxChars = maxChars;
+        types = new byte[maxEntries];
+        keys1 = new int[maxEntries];
+        keys2 = new int[maxEntries];
+        results = new String[maxEntries];
+        slots = new int[maxEntries];
+        newer = new int[maxEntries];
+        older = new int[maxEntries];
+        // At most half full, so probe runs stay short.
+        table = new int[Integer.highestOneBit(maxEntries) * 4];
+        mask = table.length - 1;
+        for (int i = 0; i < maxEntries; i++) {
+            older[i] = i + 1 < maxEntries ? i + 1 : NONE;
+        }
+        free = 0;
+    }
+
+    private static int hash(byte type, int key1, int key2) {
+        int h = (key1 * 0x9E3779B9 + key2) * 0x85EBCA6B + type;
+        return h ^ (h >>> 15);
+    }
+
+    /**
+     * Drops all results, in time proportional to their number.
+     */
+    public void clear() {
+        if (count == 0) {
+            return;
+        }
+        for (int entry = newest; entry != NONE;) {
+            int next = older[entry];
+            table[slots[entry]] = EMPTY;
+            results[entry] = null;
+            older[entry] = free;
+            free = entry;
+            entry = next;
+        }
+        newest = NONE;
+        oldest = NONE;
+        count = 0;
+        chars = 0;
+    }
+
+    /**
+     * Returns the stored result of a query, and makes it the most recently used
+     * one. All results are dropped first if the tree changed since they were
+     * stored.
+     *
+     * @param treeModCount The current modification count of the tree.
+     * @param type         The query type.
+     * @param key1         The first key of the query.
+     * @param key2         The second key of the query, 0 if it has one key.
+     * @return The text the query wrote, or null on a miss.
+     */
+    public String get(int treeModCount, byte type, int key1, int key2) {
+        if (!valid || treeModCount != modCount) {
+            clear();
+            modCount = treeModCount;
+            valid = true;
+        }
+        int slot = find(type, key1, key2);
+        if (slot < 0) {
+            misses++;
+            if (AvlMetrics.ENABLED) {
+                AvlMetrics.queryCacheMiss();
+            }
+            return null;
+        }
+        int entry = table[slot] - 1;
+        unlink(entry);
+        linkNewest(entry);
+        hits++;
+        if (AvlMetrics.ENABLED) {
+            AvlMetrics.queryCacheHit();
+        }
+        return results[entry];
+    }
+
+    /**
+     * Stores the result of a query after a miss of {@link #get}, for the same
+     * version of the tree, evicting the least recently used results as needed.
+     *
+     * @param type   The query type.
+     * @param key1   The first key of the query.
+     * @param key2   The second key of the query, 0 if it has one key.
+     * @param result The text the query wrote.
+     */
+    public void put(byte type, int key1, int key2, String result) {
+        if (!valid || result.length() > maxChars / 4 || find(type, key1, key2) >= 0) {
+            return;
+        }
+        while (count == maxEntries || chars + result.length() > maxChars) {
+            evict(oldest);
+        }
+        int entry = free;
+        free = older[entry];
+        types[entry] = type;
+        keys1[entry] = key1;
+        keys2[entry] = key2;
+        results[entry] = result;
+        int i = hash(type, key1, key2) & mask;
+        while (table[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        table[i] = entry + 1;
+        slots[entry] = i;
+        linkNewest(entry);
+        count++;
+        chars += result.length();
+    }
+
+    private int find(byte type, int key1, int key2) {
+        for (int i = hash(type, key1, key2) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+            int entry = table[i] - 1;
+            if (keys1[entry] == key1 && keys2[entry] == key2 && types[entry] == type) {
+                return i;
+            }
+        }
+        return NONE;
+    }
+
+    private void evict(int entry) {
+        int hole = slots[entry];
+        // Move back every following entry of the probe run that would otherwise become unreachable.
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (table[i] == EMPTY) {
+                break;
+            }
+            int moved = table[i] - 1;
+            int home = hash(types[moved], keys1[moved], keys2[moved]) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                table[hole] = table[i];
+                slots[moved] = hole;
+                hole = i;
+            }
+        }
+        table[hole] = EMPTY;
+        unlink(entry);
+        chars -= results[entry].length();
+        results[entry] = null;
+        older[entry] = free;
+        free = entry;
+        count--;
+    }
+
+    private void unlink(int entry) {
+        if (newer[entry] == NONE) {
+            newest = older[entry];
+        } else {
+            older[newer[entry]] = older[entry];
+        }
+        if (older[entry] == NONE) {
+            oldest = newer[entry];
+        } else {
+            newer[older[entry]] = newer[entry];
+        }
+    }
+
+    private void linkNewest(int entry) {
+        newer[entry] = NONE;
+        older[entry] = newest;
+        if (newest == NONE) {
+            oldest = entry;
+        } else {
+            newer[newest] = entry;
+        }
+        newest = entry;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the share of lookups that were hits, or 0 before the first lookup.
+     */
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer ring buffer used to connect the
+ * stages of the pipelined mode. Exactly one thread may call {@link #put} and
+ * exactly one other thread may call {@link #take}. Both block (spinning first,
+ * then parking) while the buffer is full or empty.
+ *
+ * @param <E> The type of the elements passed between the two threads.
+ */
+public class SpscRingBuffer<E> {
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 200;
+    private static final long PARK_NANOS = 50_000;
+
+    private final Object[] slots;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile boolean aborted;
+
+    // Cached copies of the other side's index, only touched by their owner thread.
+    private long producerHeadCache;
+    private long consumerTailCache;
+
+    /**
+     * Creates a ring buffer holding at least the given number of elements. The
+     * capacity is rounded up to the next power of two.
+     *
+     * @param capacity The minimum number of elements the buffer can hold.
+     */
+    public SpscRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Appends an element, waiting while the buffer is full.
+     *
+     * @param element The element to publish to the consumer.
+     * @throws IllegalStateException if the buffer was aborted.
+     */
+    public void put(E element) {
+        long t = tail.get();
+        int idle = 0;
+        while (t - producerHeadCache == slots.length) {
+            producerHeadCache = head.get();
+            if (t - producerHeadCache == slots.length) {
+                idle = backOff(idle);
+            }
+        }
+        slots[(int) t & mask] = element;
+        tail.lazySet(t + 1);
+    }
+
+    /**
+     * Removes the oldest element, waiting while the buffer is empty.
+     *
+     * @return The oldest element published by the producer.
+     * @throws IllegalStateException if the buffer was aborted.
+     */
+    @SuppressWarnings("unchecked")
+    public E take() {
+        long h = head.get();
+        int idle = 0;
+        while (h == consumerTailCache) {
+            consumerTailCache = tail.get();
+            if (h == consumerTailCache) {
+                idle = backOff(idle);
+            }
+        }
+        int index = (int) h & mask;
+        E element = (E) slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    /**
+     * Wakes up and fails every current and future blocking call. Used to tear
+     * the pipeline down when one of its stages fails.
+     */
+    public void abort() {
+        aborted = true;
+    }
+
+    private int backOff(int idle) {
+        if (aborted) {
+            throw new IllegalStateException("Ring buffer aborted");
+        }
+        if (idle < SPIN_TRIES) {
+            Thread.onSpinWait();
+        } else if (idle < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return idle + 1;
+    }
+}
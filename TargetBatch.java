@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Collects a run of target analyses (INTEL_TARGET) and answers the whole run
+ * at once, against the tree as it is when the run is flushed. The tree must
+ * not be modified between the first query of a run and the flush.
+ *
+ * A result line depends only on the name and grams value of the member found,
+ * so the batch keeps the lines it formatted in a direct-mapped table keyed by
+ * the member, across runs and across changes of the tree: a member that was
+ * the answer before is written without formatting anything, however short the
+ * run is. A slot of the table is checked against the name and grams value and
+ * simply overwritten by another member, so the table never holds a wrong line.
+ * The table only pays off for the text log; with any other
+ * {@link AvlEventSink} the answers of a run are reported to the sink as they
+ * are found.
+ *
+ * Every answer is found by the descent of {@link AvlTree#intel_targeter}, or
+ * of a valid {@link FrozenAvlTree} copy of the tree when one is at hand. A
+ * {@link QueryCache} passed to the flush keeps the lines of repeated queries
+ * across runs, for as long as the tree is unchanged.
+ */
+public class TargetBatch {
+
+    private static final int MIN_LINE_SLOTS = 1 << 10;
+    private static final int MAX_LINE_SLOTS = 1 << 20;
+
+    private final AvlTree tree;
+    private float[] gmsValues1 = new float[64];
+    private float[] gmsValues2 = new float[64];
+    private int count;
+
+    /** The formatted lines by member: raw grams value bits, name and line per slot. */
+    private int[] lineKeys;
+    private String[] lineNames;
+    private String[] lines;
+    private int lineShift;
+
+    public TargetBatch(AvlTree tree) {
+        this.tree = tree;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /** Returns the number of target analyses in the current run. */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Adds a target analysis to the current run.
+     *
+     * @param gmsValue1 The grams value of the first member.
+     * @param gmsValue2 The grams value of the second member.
+     */
+    public void add(float gmsValue1, float gmsValue2) {
+        if (count == gmsValues1.length) {
+            gmsValues1 = Arrays.copyOf(gmsValues1, count * 2);
+            gmsValues2 = Arrays.copyOf(gmsValues2, count * 2);
+        }
+        gmsValues1[count] = gmsValue1;
+        gmsValues2[count] = gmsValue2;
+        count++;
+    }
+
+    /**
+     * Writes the results of the current run, in order, exactly as intel_targeter
+     * would have written them, and starts a new run.
+     *
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void flush() throws IOException {
+        flush(null);
+    }
+
+    /**
+     * Writes the results of the current run like {@link #flush()}, descending
+     * through a frozen copy of the tree.
+     *
+     * @param frozen A valid frozen copy of the tree, or null to use the tree.
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void flush(FrozenAvlTree frozen) throws IOException {
+        flush(frozen, null);
+    }
+
+    /**
+     * Writes the results of the current run like {@link #flush(FrozenAvlTree)},
+     * answering repeated queries from a result cache. Every query is looked up
+     * in the cache first, and every line that had to be computed is stored in
+     * it. The cache is only used for the text log.
+     *
+     * @param frozen A valid frozen copy of the tree, or null to use the tree.
+     * @param cache  The result cache, or null.
+     * @throws IOException if there's an issue writing to an external resource
+     *                     (e.g., a file) for logging.
+     */
+    public void flush(FrozenAvlTree frozen, QueryCache cache) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        try {
+            TextEventSink text = tree.events instanceof TextEventSink ? (TextEventSink) tree.events : null;
+            if (text == null) {
+                for (int i = 0; i < count; i++) {
+                    answer(frozen, gmsValues1[i], gmsValues2[i]);
+                }
+                return;
+            }
+            ensureLineSlots(frozen != null ? frozen.size() : tree.size());
+            for (int i = 0; i < count; i++) {
+                float gmsValue1 = gmsValues1[i];
+                float gmsValue2 = gmsValues2[i];
+                // The answer does not depend on the order of the two values.
+                int key1 = Float.floatToRawIntBits(Math.min(gmsValue1, gmsValue2));
+                int key2 = Float.floatToRawIntBits(Math.max(gmsValue1, gmsValue2));
+                String line = cache == null ? null : cache.get(tree.modCount, QueryCache.TARGET, key1, key2);
+                if (line == null) {
+                    if (frozen != null) {
+                        int slot = frozen.target(gmsValue1, gmsValue2);
+                        line = slot < 0 ? null : line(frozen.name(slot), frozen.gmsValue(slot));
+                    } else {
+                        AvlTree.AvlNode node = tree.target(gmsValue1, gmsValue2);
+                        line = node == null ? null : line(node.name, node.gmsValue);
+                    }
+                    if (line == null) {
+                        // No member lies between the two values; let intel_targeter fail the way it does.
+                        tree.intel_targeter(null, null, gmsValue1, gmsValue2);
+                        continue;
+                    }
+                    if (cache != null) {
+                        cache.put(QueryCache.TARGET, key1, key2, line);
+                    }
+                }
+                text.writeLine(line);
+            }
+        } finally {
+            count = 0;
+        }
+    }
+
+    private void answer(FrozenAvlTree frozen, float gmsValue1, float gmsValue2) throws IOException {
+        if (frozen == null) {
+            tree.intel_targeter(null, null, gmsValue1, gmsValue2);
+            return;
+        }
+        int slot = frozen.target(gmsValue1, gmsValue2);
+        if (slot < 0) {
+            tree.intel_targeter(null, null, gmsValue1, gmsValue2);
+        } else {
+            tree.events.target(frozen.name(slot), frozen.gmsValue(slot));
+        }
+    }
+
+    /**
+     * Makes the line table about twice as large as the tree, within bounds. A
+     * resized table starts out empty.
+     */
+    private void ensureLineSlots(int members) {
+        int slots = Math.min(MAX_LINE_SLOTS, Math.max(MIN_LINE_SLOTS, Integer.highestOneBit(Math.max(members, 1)) * 2));
+        if (lines != null && lines.length >= slots) {
+            return;
+        }
+        lineKeys = new int[slots];
+        lineNames = new String[slots];
+        lines = new String[slots];
+        lineShift = Integer.numberOfLeadingZeros(slots - 1);
+    }
+
+    /**
+     * Returns the result line for a member, formatting it only if the member's
+     * slot holds another member's line.
+     */
+    private String line(String name, float gmsValue) {
+        int bits = Float.floatToRawIntBits(gmsValue);
+        int slot = (bits * 0x9E3779B9) >>> lineShift;
+        String line = lines[slot];
+        if (line == null || lineKeys[slot] != bits || !lineNames[slot].equals(name)) {
+            line = TextEventSink.targetLine(name, gmsValue);
+            lineKeys[slot] = bits;
+            lineNames[slot] = name;
+            lines[slot] = line;
+        }
+        return line;
+    }
+}
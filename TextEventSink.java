@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the events of a tree to a writer as the text log of the command line
+ * program, line for line as the tree wrote it before it had event sinks.
+ */
+public class TextEventSink implements AvlEventSink {
+
+    private final Writer writer;
+
+    public TextEventSink(Writer writer) {
+        this.writer = writer;
+    }
+
+    public Writer getWriter() {
+        return writer;
+    }
+
+    /**
+     * Formats a grams value with three decimals and a decimal point, whatever
+     * the default locale.
+     */
+    static String format(float gmsValue) {
+        return String.format("%.3f", gmsValue).replace(",", ".");
+    }
+
+    /**
+     * Formats the result line of a target analysis, for callers that write the
+     * same line many times (see {@link TargetBatch}).
+     */
+    static String targetLine(String name, float gmsValue) {
+        return "Target Analysis Result: " + name + " " + format(gmsValue) + "\n";
+    }
+
+    /**
+     * Writes a line formatted by {@link #targetLine}.
+     */
+    void writeLine(String line) throws IOException {
+        writer.write(line);
+    }
+
+    @Override
+    public void welcomed(String welcomer, String newcomer) throws IOException {
+        writer.write(welcomer + " welcomed " + newcomer + "\n");
+    }
+
+    @Override
+    public void leftFamily(String name, String replacement) throws IOException {
+        writer.write(name + " left the family, replaced by " + (replacement == null ? "nobody" : replacement) + "\n");
+    }
+
+    @Override
+    public void target(String name, float gmsValue) throws IOException {
+        writer.write(targetLine(name, gmsValue));
+    }
+
+    @Override
+    public void divide(int result) throws IOException {
+        writer.write("Division Analysis Result: " + result + "\n");
+    }
+
+    @Override
+    public void rankOf(int rank) throws IOException {
+        writer.write("Rank Of Analysis Result: " + rank + "\n");
+    }
+
+    @Override
+    public void count(int count) throws IOException {
+        writer.write("Count Analysis Result: " + count + "\n");
+    }
+
+    @Override
+    public void select(String name, float gmsValue) throws IOException {
+        writer.write("Select Analysis Result: " + name + " " + format(gmsValue) + "\n");
+    }
+
+    @Override
+    public void floor(String name, float gmsValue) throws IOException {
+        writer.write("Floor Analysis Result: " + name + " " + format(gmsValue) + "\n");
+    }
+
+    @Override
+    public void ceiling(String name, float gmsValue) throws IOException {
+        writer.write("Ceiling Analysis Result: " + name + " " + format(gmsValue) + "\n");
+    }
+
+    @Override
+    public void rankBegin() throws IOException {
+        writer.write("Rank Analysis Result:");
+    }
+
+    @Override
+    public void rangeBegin() throws IOException {
+        writer.write("Range Analysis Result:");
+    }
+
+    @Override
+    public void nearestBegin() throws IOException {
+        writer.write("Nearest Analysis Result:");
+    }
+
+    @Override
+    public void member(String name, float gmsValue) throws IOException {
+        writer.write(" " + name + " ");
+        writer.write(format(gmsValue));
+    }
+
+    @Override
+    public void endList() throws IOException {
+        writer.write("\n");
+    }
+}